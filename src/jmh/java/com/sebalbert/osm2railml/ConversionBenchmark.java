@@ -0,0 +1,89 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016-2017  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package com.sebalbert.osm2railml;
+
+import com.sebalbert.osm2railml.osm.GeodesicMethod;
+import com.sebalbert.osm2railml.osm.Junctions;
+import com.sebalbert.osm2railml.osm.OsmExtract;
+import com.sebalbert.osm2railml.osm.SyntheticOsm;
+import com.sebalbert.osm2railml.osm.Way;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.railml.schemas._2016.ETrack;
+import org.railml.schemas._2016.Infrastructure;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Topology inference: the junction analysis, wayToTrack() alone (single-threaded) and the whole conversion
+ * including linking
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ConversionBenchmark {
+
+    @Param({"1000", "10000"})
+    public int ways;
+
+    @Param({"0.05", "0.2"})
+    public double switchDensity;
+
+    private OsmExtract osm;
+
+    @Setup
+    public void read() throws Exception {
+        osm = OsmExtract.fromFile(SyntheticOsm.write(ways, switchDensity));
+        osm.computeGeometry(GeodesicMethod.GEODESIC);
+        osm.junctions();
+    }
+
+    @Benchmark
+    public Junctions junctions() {
+        return Junctions.of(osm.nodes, Workers.COMMON);
+    }
+
+    @Benchmark
+    public List<ETrack> wayToTrack() {
+        Conversion conversion = new Conversion();
+        List<ETrack> tracks = new ArrayList<>(osm.ways.size());
+        for (Way w : osm.ways) tracks.add(conversion.wayToTrack(osm.junctions(), w));
+        return tracks;
+    }
+
+    @Benchmark
+    public Infrastructure convert() {
+        return new Conversion().convert(osm);
+    }
+
+}
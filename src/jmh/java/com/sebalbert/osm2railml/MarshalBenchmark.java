@@ -0,0 +1,100 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016-2017  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package com.sebalbert.osm2railml;
+
+import com.sebalbert.osm2railml.osm.GeodesicMethod;
+import com.sebalbert.osm2railml.osm.OsmExtract;
+import com.sebalbert.osm2railml.osm.SyntheticOsm;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.railml.schemas._2016.ETrack;
+import org.railml.schemas._2016.Infrastructure;
+
+import javax.xml.bind.Marshaller;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing railML: marshalling the whole infrastructure at once, and track by track (c.f. RailmlWriter)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MarshalBenchmark {
+
+    @Param({"true", "false"})
+    public boolean pretty;
+
+    private Infrastructure is;
+
+    // counts the bytes written instead of keeping them
+    private static class CountingOutputStream extends OutputStream {
+
+        long count = 0;
+
+        @Override
+        public void write(int b) {
+            ++count;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+
+    }
+
+    @Setup
+    public void convert() throws Exception {
+        OsmExtract osm = OsmExtract.fromFile(SyntheticOsm.write(10000, 0.1));
+        osm.computeGeometry(GeodesicMethod.GEODESIC);
+        is = new Conversion().convert(osm);
+    }
+
+    @Benchmark
+    public long marshal() throws Exception {
+        Marshaller marshaller = RailmlWriter.context().createMarshaller();
+        marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, pretty);
+        CountingOutputStream out = new CountingOutputStream();
+        marshaller.marshal(is, out);
+        return out.count;
+    }
+
+    @Benchmark
+    public long stream() throws Exception {
+        CountingOutputStream out = new CountingOutputStream();
+        RailmlWriter writer = new RailmlWriter(out, "is", pretty);
+        for (ETrack t : is.getTracks().getTrack()) writer.write(t);
+        writer.close();
+        return out.count;
+    }
+
+}
@@ -0,0 +1,70 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016-2017  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package com.sebalbert.osm2railml.osm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Positions and azimuths of node references: reading them once precomputed, and computing them
+ * separately per node reference (as geodesicData() does)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class NodeRefBenchmark {
+
+    private OsmExtract osm;
+
+    @Setup
+    public void read() throws Exception {
+        osm = OsmExtract.fromFile(SyntheticOsm.write(2000, 0.1));
+        osm.computeGeometry(GeodesicMethod.GEODESIC);
+    }
+
+    @Benchmark
+    public double positionAndAzimuth() {
+        double sum = 0.0;
+        for (Way w : osm.ways)
+            for (Way.NodeRef r : w.nodeRefs()) sum += r.position() + r.azimuth();
+        return sum;
+    }
+
+    @Benchmark
+    public double geodesicDataPerNodeRef() {
+        double sum = 0.0;
+        for (Way w : osm.ways)
+            for (Way.NodeRef r : w.nodeRefs()) if (r.next() != null) sum += r.geodesicData().s12;
+        return sum;
+    }
+
+}
@@ -0,0 +1,72 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016-2017  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package com.sebalbert.osm2railml.osm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading (and filtering) OSM XML files of different sizes
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ParseBenchmark {
+
+    @Param({"1000", "10000"})
+    public int ways;
+
+    @Param({"0.05", "0.2"})
+    public double switchDensity;
+
+    private File file;
+
+    @Setup
+    public void generate() throws Exception {
+        file = SyntheticOsm.write(ways, switchDensity);
+    }
+
+    @Benchmark
+    public OsmExtract fromFile() throws Exception {
+        return OsmExtract.fromFile(file);
+    }
+
+    @Benchmark
+    public OsmExtract fromFileWithoutSidings() throws Exception {
+        OsmExtract.Options options = new OsmExtract.Options();
+        options.wayFilter = new WayFilter("rail").exclude("service", "siding");
+        return OsmExtract.fromFile(file, options);
+    }
+
+}
@@ -0,0 +1,292 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016-2017  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package com.sebalbert.osm2railml;
+
+import javax.xml.bind.JAXBException;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many conversions in one JVM, so JVM startup, creating the JAXB context and warming up are paid once
+ * instead of for every extract, and all conversions share the same threads.
+ *
+ * Conversions (jobs) are given as lines with the command line arguments of one conversion (c.f. Main.main(),
+ * separated by whitespace; --output is required), read from a manifest file, from standard input or from
+ * connections to a local port (after a token, c.f. listen()); the arguments given to the service itself are put in
+ * front of those of every job.
+ * Empty lines and lines starting with # are skipped, and "shutdown" stops the service (after the jobs of the same
+ * input have finished). For each job, its diagnostics followed by "done" or "failed" are written back
+ * as soon as it has finished, each line prefixed with the number of the job in its input (starting with 1).
+ *
+ * Several jobs run at a time, but a job only starts when its estimated memory (c.f. estimate()) fits into
+ * the budget along with the jobs already running, so a few large extracts do not run out of memory together.
+ * Note that timings and allocation in the RunReports of concurrent jobs include the work of each other;
+ * for the same reason, --profile is only accepted when the service runs one job at a time.
+ */
+public class BatchService implements AutoCloseable {
+
+    // rough heap needed per byte of input: most of an XML file is markup or elements that are dropped while
+    // reading, whereas PBF is compressed
+    private static final int XML_FACTOR = 1, PBF_FACTOR = 6;
+    // how often listen() checks whether a connection has asked for a shutdown, in ms
+    private static final int SHUTDOWN_POLL = 200;
+
+    private final Workers workers;
+    private final ExecutorService jobs;
+    private final int concurrency;
+    // numbers the jobs submitted to this service (e.g. for the names of their RunReports)
+    private final AtomicInteger submitted = new AtomicInteger();
+    // in MiB
+    private final int budget;
+    private final Semaphore memory;
+    private final List<String> defaults;
+
+    /**
+     * @param workers - threads for all jobs
+     * @param jobs - maximum number of jobs to run at a time
+     * @param memoryBudget - maximum estimated memory of the jobs running at a time, in bytes
+     * @param defaults - arguments put in front of those of every job
+     */
+    public BatchService(Workers workers, int jobs, long memoryBudget, List<String> defaults) throws JAXBException {
+        this.workers = workers;
+        this.concurrency = jobs;
+        this.jobs = Executors.newFixedThreadPool(jobs, r -> {
+            Thread t = new Thread(r, "batch-job");
+            t.setDaemon(true);
+            return t;
+        });
+        this.budget = (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget >> 20));
+        this.memory = new Semaphore(budget, true);
+        this.defaults = new ArrayList<>(defaults);
+        // created once for all jobs (instead of by the first one)
+        RailmlWriter.context();
+    }
+
+    /**
+     * @return - estimated memory of a job in MiB (not more than the whole budget, so any job can run on its own)
+     */
+    int estimate(Main.Job job) {
+        File file = new File(job.apply != null ? job.snapshot : job.input);
+        int factor = file.getName().endsWith(".pbf") || job.apply != null ? PBF_FACTOR : XML_FACTOR;
+        return (int) Math.max(1, Math.min(budget, (file.length() * factor) >> 20));
+    }
+
+    /**
+     * Run a job as soon as a thread and enough memory are available
+     * @param args - arguments of the job (after those given to the service)
+     * @param log - receives the diagnostics of the job
+     * @return - completes when the job has finished, exceptionally if it failed
+     */
+    public CompletableFuture<Void> submit(List<String> args, PrintStream log) {
+        List<String> all = new ArrayList<>(defaults);
+        all.addAll(args);
+        return CompletableFuture.runAsync(() -> {
+            try {
+                Main.Job job = new Main.Job(all.toArray(new String[0]));
+                if (job.output == null) throw new IllegalArgumentException("batch jobs need --output");
+                // the Flight Recorder records the whole JVM, so it could not tell concurrent jobs apart
+                if (job.profile && concurrency > 1)
+                    throw new IllegalArgumentException("--profile requires --jobs 1");
+                job.id = submitted.incrementAndGet();
+                int permits = estimate(job);
+                memory.acquireUninterruptibly(permits);
+                try {
+                    job.run(workers, log);
+                } finally {
+                    memory.release(permits);
+                }
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, jobs);
+    }
+
+    // submits a job and reports on it to out when it has finished
+    private CompletableFuture<Void> submit(int id, List<String> args, PrintStream out) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream log;
+        try {
+            log = new PrintStream(buffer, true, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        long start = System.nanoTime();
+        return submit(args, log).handle((v, e) -> {
+            String messages = new String(buffer.toByteArray(), StandardCharsets.UTF_8);
+            synchronized (out) {
+                for (String line : messages.split("\n"))
+                    if (!line.isEmpty()) out.println(id + " " + line);
+                if (e == null) out.println(id + " done in " + (System.nanoTime() - start) / 1000000 + " ms");
+                else out.println(id + " failed: " + (e instanceof CompletionException ? e.getCause() : e));
+                out.flush();
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Run the jobs given line by line (c.f. the class comment) and report on them
+     * @return - whether the input ended with "shutdown"
+     */
+    public boolean serve(BufferedReader in, PrintStream out) throws IOException {
+        List<CompletableFuture<Void>> running = new ArrayList<>();
+        boolean shutdown = false;
+        for (String line; (line = in.readLine()) != null; ) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            if (line.equals("shutdown")) {
+                shutdown = true;
+                break;
+            }
+            running.add(submit(running.size() + 1, Arrays.asList(line.split("\\s+")), out));
+        }
+        CompletableFuture.allOf(running.toArray(new CompletableFuture<?>[0])).join();
+        return shutdown;
+    }
+
+    /**
+     * Run the jobs of a manifest file, or convert all *.osm and *.osm.pbf files of a directory
+     * (to *.railml.xml, or *.railml.xml.gz with --gzip, next to them), and report on them
+     */
+    public void batch(File file, PrintStream out) throws IOException {
+        if (!file.isDirectory()) {
+            try (BufferedReader in = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                serve(in, out);
+            }
+            return;
+        }
+        File[] files = file.listFiles((dir, name) -> name.endsWith(".osm") || name.endsWith(".osm.pbf"));
+        if (files == null) throw new IOException("cannot list " + file);
+        Arrays.sort(files);
+        String suffix = defaults.contains("--gzip") ? ".railml.xml.gz" : ".railml.xml";
+        List<CompletableFuture<Void>> running = new ArrayList<>();
+        for (File f : files) {
+            String name = f.getPath().replaceFirst("\\.osm(\\.pbf)?$", "");
+            running.add(submit(running.size() + 1, Arrays.asList("--output", name + suffix, f.getPath()), out));
+        }
+        CompletableFuture.allOf(running.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    /**
+     * Run the jobs sent to a port of the loopback interface, reporting on them to the same connection,
+     * until a connection sends "shutdown". As any local user can connect to the port, and jobs write files,
+     * each connection must send a token as its first line: a random one, written to the given file (readable
+     * by its owner only) before listening and deleted afterwards. Connections without it get "unauthorized".
+     */
+    public void listen(int port, File tokenFile) throws IOException {
+        byte[] token = writeToken(tokenFile);
+        AtomicBoolean shutdown = new AtomicBoolean();
+        try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            server.setSoTimeout(SHUTDOWN_POLL);
+            while (!shutdown.get()) {
+                Socket socket;
+                try {
+                    socket = server.accept();
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+                Thread client = new Thread(() -> {
+                    try (Socket s = socket) {
+                        BufferedReader in = new BufferedReader(
+                                new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+                        PrintStream out = new PrintStream(s.getOutputStream(), true, "UTF-8");
+                        String first = in.readLine();
+                        // compared in constant time, so the token cannot be guessed by timing
+                        if (first == null ||
+                                !MessageDigest.isEqual(token, first.trim().getBytes(StandardCharsets.US_ASCII))) {
+                            out.println("unauthorized");
+                            return;
+                        }
+                        if (serve(in, out)) shutdown.set(true);
+                    } catch (IOException e) {
+                        // the client has gone away; the jobs it submitted still run to the end
+                    }
+                }, "batch-client");
+                client.setDaemon(true);
+                client.start();
+            }
+        } finally {
+            Files.deleteIfExists(tokenFile.toPath());
+        }
+    }
+
+    // a new random token, in hex, written to a new file that only its owner can read
+    private static byte[] writeToken(File file) throws IOException {
+        byte[] random = new byte[16];
+        new SecureRandom().nextBytes(random);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : random) hex.append(String.format("%02x", b));
+        byte[] token = hex.toString().getBytes(StandardCharsets.US_ASCII);
+        Path path = file.toPath();
+        // created anew (never following a link someone else has put there) before the token is written to it
+        Files.deleteIfExists(path);
+        try {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            // not a POSIX file system
+            Files.createFile(path);
+            if (!file.setReadable(false, false) || !file.setReadable(true, true))
+                throw new IOException("cannot restrict the permissions of " + file);
+        }
+        Files.write(path, token);
+        return token;
+    }
+
+    /**
+     * Wait for the jobs submitted to finish, and stop the threads for running jobs
+     */
+    @Override
+    public void close() {
+        jobs.shutdown();
+        try {
+            jobs.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
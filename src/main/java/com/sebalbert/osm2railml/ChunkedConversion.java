@@ -0,0 +1,110 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016-2017  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package com.sebalbert.osm2railml;
+
+import com.sebalbert.osm2railml.osm.ExtractChunks;
+import com.sebalbert.osm2railml.osm.GeodesicMethod;
+import com.sebalbert.osm2railml.osm.Junctions;
+import org.railml.schemas._2016.ETrack;
+
+import javax.xml.bind.JAXBException;
+import javax.xml.stream.XMLStreamException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Conversion of OSM data read in chunks of ways (c.f. ExtractChunks), so neither the ways nor the tracks are held
+ * in memory as a whole.
+ *
+ * Each chunk is converted and resolved on its own: the stubs of the other ways at its nodes are converted along
+ * with its ways (counted in a report of their own, but registered with the same Linker), so the references of its
+ * tracks find the switches and connections of those ways, and its tracks are written in order as soon as it is done.
+ * Diagnostics are kept if they belong to a track of the chunk; those about duplicate IDs belong to no track and are
+ * found again in each chunk with the node of that ID, so each is kept as often as found in any one chunk.
+ * Thus tracks, diagnostics and counters are the same as with a single Conversion.
+ */
+public class ChunkedConversion
+{
+
+    private final RunReport report;
+    private final Workers workers;
+    private List<Linker.Diagnostic> diagnostics = Collections.emptyList();
+
+    /**
+     * @param report - for phases (geodesic, junctions, tracks, resolve, marshal) and counters, c.f. Conversion
+     * @param workers - threads for converting the ways of a chunk and resolving their references
+     */
+    public ChunkedConversion(RunReport report, Workers workers) {
+        this.report = report;
+        this.workers = workers;
+    }
+
+    /**
+     * Create railML tracks from OSM data, chunk by chunk
+     * @param chunks - the OSM data to convert, whose chunks are read (once) by this
+     * @param method - how to compute the geometry of the ways
+     * @param sink - receives the tracks, in the order of their ways
+     */
+    public void convert(ExtractChunks chunks, GeodesicMethod method, Conversion.TrackSink sink)
+            throws IOException, JAXBException, XMLStreamException {
+        List<Linker.Diagnostic> owned = new ArrayList<>();
+        Map<Linker.Diagnostic, Integer> duplicates = new HashMap<>();
+        for (ExtractChunks.Chunk chunk; (chunk = chunks.next()) != null; ) {
+            report.phase(RunReport.GEODESIC);
+            chunk.osm.computeGeometry(method, workers);
+            report.phase(RunReport.JUNCTIONS);
+            Junctions junctions = chunk.osm.junctions(workers);
+            report.phase(RunReport.TRACKS);
+            Linker<RailmlId> linker = new Linker<>(workers);
+            new Conversion(new RunReport(), workers, linker).convertWays(junctions, chunk.context);
+            List<ETrack> tracks = new Conversion(report, workers, linker).convertWays(junctions, chunk.ways);
+            report.phase(RunReport.RESOLVE);
+            Set<Object> own = Collections.newSetFromMap(new IdentityHashMap<>());
+            own.addAll(tracks);
+            Map<Linker.Diagnostic, Integer> found = new HashMap<>();
+            for (Linker.Diagnostic d : linker.resolve()) {
+                if (d.owner == null) found.merge(d, 1, Integer::sum);
+                else if (own.contains(d.owner)) owned.add(d);
+            }
+            found.forEach((d, n) -> duplicates.merge(d, n, Math::max));
+            report.phase(RunReport.MARSHAL);
+            for (ETrack t : tracks) sink.write(t);
+        }
+        List<Linker.Diagnostic> sorted = new ArrayList<>(owned);
+        duplicates.forEach((d, n) -> sorted.addAll(Collections.nCopies(n, d)));
+        sorted.sort(Linker.Diagnostic.ORDER);
+        diagnostics = sorted;
+        report.add("chunks", chunks.chunks());
+        Conversion.countDiagnostics(report, sorted);
+    }
+
+    /**
+     * @return - problems found when resolving references in the last convert() call
+     */
+    public List<Linker.Diagnostic> diagnostics() {
+        return diagnostics;
+    }
+
+}
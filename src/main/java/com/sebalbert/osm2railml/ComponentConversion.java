@@ -0,0 +1,179 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016-2017  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package com.sebalbert.osm2railml;
+
+import com.sebalbert.osm2railml.osm.Components;
+import com.sebalbert.osm2railml.osm.Junctions;
+import com.sebalbert.osm2railml.osm.OsmExtract;
+import com.sebalbert.osm2railml.osm.Way;
+import org.railml.schemas._2016.ETrack;
+import org.railml.schemas._2016.ETracks;
+import org.railml.schemas._2016.Infrastructure;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Conversion of OSM data to railML infrastructure by connected components of the rail network.
+ *
+ * Tracks only reference tracks they are connected with, so each component is converted and resolved
+ * independently with its own Conversion, and there is no registry shared by all threads. Components that
+ * make up a large part of the network are converted one after the other with all threads; the others are
+ * converted in parallel, each within one thread.
+ * If the conversion of a component fails, its tracks are left out and the failure is reported as a diagnostic,
+ * so the other components are still converted.
+ * Otherwise the result is the same as with a single Conversion, including the order of tracks.
+ */
+public class ComponentConversion
+{
+
+    /**
+     * Message of the diagnostics about components whose conversion failed
+     */
+    public static final String FAILED = "conversion of connected component failed";
+
+    private final RunReport report;
+    private final Workers workers;
+    private List<Linker.Diagnostic> diagnostics = Collections.emptyList();
+
+    public ComponentConversion() {
+        this(new RunReport());
+    }
+
+    /**
+     * @param report - for phases (tracks, resolve) and counters, c.f. Conversion
+     */
+    public ComponentConversion(RunReport report) {
+        this(report, Workers.COMMON);
+    }
+
+    /**
+     * @param report - for phases (tracks, resolve) and counters, c.f. Conversion
+     * @param workers - threads for converting components
+     */
+    public ComponentConversion(RunReport report, Workers workers) {
+        this.report = report;
+        this.workers = workers;
+    }
+
+    private class Component {
+
+        final int[] wayIndices;
+        final List<Way> ways;
+        final long cost;
+        Conversion conversion;
+        List<ETrack> tracks;
+        List<Linker.Diagnostic> diagnostics = Collections.emptyList();
+
+        Component(OsmExtract osm, Junctions junctions, int[] wayIndices) {
+            this.wayIndices = wayIndices;
+            ways = new ArrayList<>(wayIndices.length);
+            long cost = 0;
+            for (int i : wayIndices) {
+                Way way = osm.ways.get(i);
+                ways.add(way);
+                cost += Conversion.cost(junctions, way);
+            }
+            this.cost = cost;
+        }
+
+        void convert(Junctions junctions, Workers workers) {
+            conversion = new Conversion(report, workers);
+            try {
+                tracks = conversion.convertWays(junctions, ways);
+                conversion.linker.resolveAvailable();
+            } catch (RuntimeException e) {
+                fail(e);
+            }
+        }
+
+        void resolve() {
+            if (tracks == null) return;
+            try {
+                diagnostics = conversion.linker.resolve();
+            } catch (RuntimeException e) {
+                fail(e);
+            }
+        }
+
+        private void fail(RuntimeException e) {
+            tracks = null;
+            String id = RailmlId.track(ways.get(0)).toString();
+            diagnostics = Collections.singletonList(new Linker.Diagnostic(id, id, FAILED + ": " + e, null));
+        }
+
+    }
+
+    /**
+     * Create railML infrastructure from OSM data, component by component
+     * @param osm - the OSM data to convert
+     * @return - the railML infrastructure, with all references between its objects set as far as possible
+     */
+    public Infrastructure convert(OsmExtract osm) {
+        Junctions junctions = osm.junctions(workers);
+        Components components = osm.components();
+        List<Component> large = new ArrayList<>(), small = new ArrayList<>();
+        long total = 0;
+        List<Component> all = new ArrayList<>(components.size());
+        for (int c = 0; c < components.size(); ++c) {
+            Component component = new Component(osm, junctions, components.ways(c));
+            total += component.cost;
+            all.add(component);
+        }
+        long share = total / workers.parallelism();
+        for (Component component : all) (component.cost > share ? large : small).add(component);
+        report.add("components", all.size());
+
+        report.phase(RunReport.TRACKS);
+        for (Component component : large) component.convert(junctions, workers);
+        workers.forEach(small, component -> component.cost, component -> component.convert(junctions, Workers.CALLER));
+
+        report.phase(RunReport.RESOLVE);
+        for (Component component : large) component.resolve();
+        workers.forEach(small, component -> component.cost, Component::resolve);
+
+        ETrack[] tracks = new ETrack[osm.ways.size()];
+        List<Linker.Diagnostic> sorted = new ArrayList<>();
+        for (Component component : all) {
+            sorted.addAll(component.diagnostics);
+            if (component.tracks == null) continue;
+            for (int i = 0; i < component.wayIndices.length; ++i)
+                tracks[component.wayIndices[i]] = component.tracks.get(i);
+        }
+        Infrastructure is = new Infrastructure();
+        is.setId("is");
+        ETracks eTracks = new ETracks();
+        is.setTracks(eTracks);
+        for (ETrack track : tracks) if (track != null) eTracks.getTrack().add(track);
+
+        sorted.sort(Linker.Diagnostic.ORDER);
+        diagnostics = sorted;
+        Conversion.countDiagnostics(report, sorted);
+        return is;
+    }
+
+    /**
+     * @return - problems found when resolving references in the last convert() call
+     */
+    public List<Linker.Diagnostic> diagnostics() {
+        return diagnostics;
+    }
+
+}
@@ -0,0 +1,371 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016-2017  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package com.sebalbert.osm2railml;
+
+import com.sebalbert.osm2railml.osm.Junctions;
+import com.sebalbert.osm2railml.osm.OsmExtract;
+import com.sebalbert.osm2railml.osm.TagKeys;
+import com.sebalbert.osm2railml.osm.Way;
+import org.railml.schemas._2016.*;
+
+import javax.xml.bind.JAXBException;
+import javax.xml.stream.XMLStreamException;
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+
+/**
+ * One conversion of OSM data to railML infrastructure.
+ * All state of a conversion is held here, so several conversions can run in the same JVM.
+ */
+public class Conversion
+{
+
+    final Linker<RailmlId> linker;
+    private final RunReport report;
+    private final Workers workers;
+    private List<Linker.Diagnostic> diagnostics = Collections.emptyList();
+    // told of each ID registered and the track registering it (c.f. IncrementalConversion), if set
+    BiConsumer<RailmlId, ETrack> onRegister = null;
+
+    public Conversion() {
+        this(new RunReport());
+    }
+
+    /**
+     * @param report - for phases (tracks, resolve) and counters of the objects created
+     */
+    public Conversion(RunReport report) {
+        this(report, Workers.COMMON);
+    }
+
+    /**
+     * @param report - for phases (tracks, resolve) and counters of the objects created
+     * @param workers - threads for converting ways and resolving references
+     */
+    public Conversion(RunReport report, Workers workers) {
+        this(report, workers, new Linker<>(workers));
+    }
+
+    // sharing the linker with other conversions (c.f. ChunkedConversion)
+    Conversion(RunReport report, Workers workers, Linker<RailmlId> linker) {
+        this.report = report;
+        this.workers = workers;
+        this.linker = linker;
+    }
+
+    /**
+     * Create railML infrastructure from OSM data
+     * @param osm - the OSM data to convert
+     * @return - the railML infrastructure, with all references between its objects set as far as possible
+     */
+    public Infrastructure convert(OsmExtract osm) {
+        Infrastructure is = new Infrastructure();
+        is.setId("is");
+        ETracks tracks = new ETracks();
+        is.setTracks(tracks);
+        Junctions junctions = osm.junctions(workers);
+        report.phase(RunReport.TRACKS);
+        tracks.getTrack().addAll(convertWays(junctions, osm.ways));
+        // create missing references now that all objects are created (c.f. Linker)
+        report.phase(RunReport.RESOLVE);
+        resolve();
+        return is;
+    }
+
+    /**
+     * Receives tracks as soon as they are complete
+     */
+    public interface TrackSink {
+
+        void write(ETrack track) throws JAXBException, XMLStreamException;
+
+    }
+
+    // number of ways converted at a time before finished tracks are handed to a TrackSink
+    static final int CHUNK_SIZE = 4096;
+
+    /**
+     * Create railML tracks from OSM data without holding all of them in memory: ways are converted in chunks,
+     * and each track is written as soon as all its references are set. Tracks are written in the order of
+     * their ways, except that tracks referring to ways of later chunks are held back until those are done,
+     * so the output only depends on the input (not on the number of threads).
+     * @param osm - the OSM data to convert
+     * @param sink - receives the tracks
+     */
+    public void convert(OsmExtract osm, TrackSink sink) throws JAXBException, XMLStreamException {
+        Junctions junctions = osm.junctions(workers);
+        report.phase(RunReport.TRACKS);
+        List<ETrack> held = new ArrayList<>();
+        for (int from = 0; from < osm.ways.size(); from += CHUNK_SIZE) {
+            List<Way> chunk = osm.ways.subList(from, Math.min(from + CHUNK_SIZE, osm.ways.size()));
+            held.addAll(convertWays(junctions, chunk));
+            linker.resolveAvailable();
+            List<ETrack> pending = new ArrayList<>();
+            for (ETrack t : held) {
+                if (linker.isPending(t)) pending.add(t);
+                else sink.write(t);
+            }
+            held = pending;
+        }
+        resolve();
+        for (ETrack t : held) sink.write(t);
+    }
+
+    // estimated effort of converting a way: its nodes, where junctions take considerably more than others
+    static long cost(Junctions junctions, Way way) {
+        long cost = 0;
+        for (int i = 0; i < way.nodeCount(); ++i) cost += junctions.kind(way, i) == Junctions.Kind.NONE ? 1 : 16;
+        return cost;
+    }
+
+    /**
+     * Create railML tracks for the given ways (in parallel, by the workers of this conversion), leaving their
+     * references to be resolved by the caller (c.f. ComponentConversion)
+     * @param junctions - of the extract the ways belong to
+     * @return - the tracks, in the order of the ways
+     */
+    List<ETrack> convertWays(Junctions junctions, List<Way> ways) {
+        Profiler profiler = report.profiler();
+        if (profiler == null) return workers.map(ways, w -> cost(junctions, w), w -> wayToTrack(junctions, w));
+        return workers.map(ways, w -> cost(junctions, w), w -> profiler.way(junctions, w, () -> wayToTrack(junctions, w)));
+    }
+
+    // resolve all remaining references and count the problems
+    private void resolve() {
+        diagnostics = linker.resolve();
+        countDiagnostics(report, diagnostics);
+    }
+
+    static void countDiagnostics(RunReport report, List<Linker.Diagnostic> diagnostics) {
+        report.add("diagnostics", diagnostics.size());
+        report.add("unresolvedReferences",
+                diagnostics.stream().filter(d -> d.message.equals(Linker.NO_OBJECT)).count());
+    }
+
+    /**
+     * @return - problems found when resolving references in the last convert() call
+     */
+    public List<Linker.Diagnostic> diagnostics() {
+        return diagnostics;
+    }
+
+    // the tags read during conversion; all others are dropped while reading
+    private static final int RAILWAY = TagKeys.id("railway"), MAXSPEED_STRAIGHT = TagKeys.id("railway:maxspeed:straight"),
+            MAXSPEED_DIVERGING = TagKeys.id("railway:maxspeed:diverging"), REF = TagKeys.id("ref");
+    static final Set<String> TAG_KEYS = new HashSet<>(Arrays.asList("railway", "railway:switch",
+            "railway:maxspeed:straight", "railway:maxspeed:diverging", "ref"));
+
+    // OSM Ways are a good fit for railML Tracks (1:1)
+    ETrack wayToTrack(Junctions junctions, Way way) {
+        ETrack t = new ETrack();
+        RailmlId trackId = RailmlId.track(way);
+        t.setId(trackId.toString());
+        report.count("tracks");
+        ETrackTopology topo = new ETrackTopology();
+        t.setTrackTopology(topo);
+
+        String code = way.getTag(REF);
+        if (code != null) t.setCode(code);
+
+        ETrackBegin tB = new ETrackBegin();
+        topo.setTrackBegin(tB);
+        tB.setId(RailmlId.trackBegin(way).toString());
+        setTrackBeginOrEnd(tB, way.first());
+        ETrackEnd tE = new ETrackEnd();
+        topo.setTrackEnd(tE);
+        tE.setId(RailmlId.trackEnd(way).toString());
+        setTrackBeginOrEnd(tE, way.last());
+
+        EConnections connections = new EConnections();
+        topo.setConnections(connections);
+        // only nodes with more than one way need a NodeRef, the others are skipped by their index
+        Profiler profiler = report.profiler();
+        for (int i = 0; i < way.nodeCount(); ++i) {
+            final Junctions.Kind kind = junctions.kind(way, i);
+            if (kind == Junctions.Kind.NONE) continue;
+            if (profiler == null) {
+                junctionToConnections(junctions, way, i, kind, t, tB, tE, connections);
+            } else {
+                final int index = i;
+                profiler.junction(way, way.nodeId(i), kind,
+                        () -> junctionToConnections(junctions, way, index, kind, t, tB, tE, connections));
+            }
+        }
+        return t;
+    };
+
+    // model switches and crossings (c.f. Junctions) at the i-th node of a way
+    private void junctionToConnections(Junctions junctions, Way way, int i, Junctions.Kind kind, ETrack t,
+                                       ETrackBegin tB, ETrackEnd tE, EConnections connections) {
+        final Way.NodeRef nd = way.nodeRef(i);
+        final int topologicalPosition = nd.topologicalPosition();
+        final ETrackNode beginOrEnd = topologicalPosition == Way.NodeRef.FIRST ? tB
+                : topologicalPosition == Way.NodeRef.LAST ? tE : null;
+        final long nodeId = nd.node().id();
+        Way.NodeRef partner = junctions.partner(nd);
+        if (beginOrEnd != null && partner != null) makeConnection(beginOrEnd, nd, partner, true, t);
+        if (kind == Junctions.Kind.CROSSING) {
+            // avoid setting a crossing at both respective ends of two sequentially joined tracks
+            if (!junctions.isCanonical(nd)) return;
+            ECrossing crossing = new ECrossing();
+            report.count("crossings");
+            crossing.setId(RailmlId.crossing(way, nodeId).toString());
+            crossing.setPos(Decimals.fixed(nd.position(), 6));
+            for (Way.NodeRef otherWayRef : nd.node().wayRefs()) {
+                if (otherWayRef.equals(nd)) continue;
+                // avoid setting a crossing at both respective ends of two sequentially joined tracks
+                if (!junctions.isCanonical(otherWayRef)) continue;
+                TSwitchConnectionData conn = new TSwitchConnectionData();
+                makeConnection(conn, nd, otherWayRef, true, RailmlId.Kind.CROSSING_CONNECTION, t);
+            }
+        } else {
+            // unless explicitly set as "railway_crossing", we assume a switch
+            if (junctions.carriesSwitch(nd)) {
+                // only one way can carry the switch, which is the first one at the node (not the first
+                // one converted), so the result does not depend on the order of conversion
+                if (!nd.equals(junctions.switchOwner(nd))) {
+                    linker.report(RailmlId.track(way), RailmlId.switchAt(nodeId), t,
+                            "more than 1 straight way on simple switch node " + nodeId);
+                    return;
+                }
+                String maxSpeedStraight = nd.node().getTag(MAXSPEED_STRAIGHT);
+                String maxSpeedDiverging = nd.node().getTag(MAXSPEED_DIVERGING);
+                BigDecimal maxSpeedDiv = maxSpeedDiverging == null ? null :
+                        Decimals.truncate(maxSpeedDiverging, 1);
+                BigDecimal maxSpeedStr = maxSpeedStraight == null ? null :
+                        Decimals.truncate(maxSpeedStraight, 1);
+                RailmlId switchId = RailmlId.switchAt(nodeId);
+                ESwitch sw = new ESwitch();
+                sw.setId(switchId.toString());
+                sw.setPos(Decimals.fixed(nd.position(), 6));
+                register(switchId, sw, t);
+                if (kind == Junctions.Kind.DOUBLE_SLIP) {
+                    Way.NodeRef other = nd.node().wayRefs().stream().filter(r -> !r.equals(nd) && !r.equals(partner))
+                            .min((r1, r2) -> Way.compare(r1.way, r2.way)).orElse(null);
+                    report.count("doubleSlipsSkipped");
+                    if (other == null) {
+                        linker.report(switchId, switchId, t, "double_slip without other track");
+                        return;
+                    }
+                    TSwitchConnectionData conn = new TSwitchConnectionData();
+                    // @TODO build own connections, connect to other switch in callback closure
+                    return;
+                }
+                if (kind == Junctions.Kind.SINGLE_SLIP) {
+                    report.count("singleSlipsSkipped");
+                    linker.report(switchId, switchId, t, "single_slip not supported yet");
+                    // @TODO
+                    return;
+                }
+                for (Way.NodeRef other : nd.node().wayRefs()) {
+                    if (other.equals(nd) || other.equals(partner)) continue;
+                    TSwitchConnectionData conn = new TSwitchConnectionData();
+                    int orientation = junctions.orientation(other);
+                    conn.setOrientation((orientation & Junctions.INCOMING) > 0 ? "incoming" : "outgoing");
+                    conn.setCourse((orientation & Junctions.LEFT) > 0 ? "left" : "right");
+                    RailmlId connId = makeConnection(conn, nd, other, false, RailmlId.Kind.CONNECTION, t);
+                    // an end without partner hooks up to this connection (see below)
+                    if (other.topologicalPosition() != Way.NodeRef.INTERIOR &&
+                            junctions.partner(other) == null)
+                        linker.referenceLater(connId, connId.continuation(), t, ref -> {
+                            conn.setRef(ref);
+                            return null;
+                        });
+                    sw.getConnection().add(conn);
+                    if (maxSpeedDiv != null) conn.setMaxSpeed(maxSpeedDiv);
+                }
+                connections.getSwitchOrCrossing().add(sw);
+                report.count("switches");
+            } else if (partner == null) {
+                if (kind == Junctions.Kind.DOUBLE_SLIP) {
+                    // @TODO
+                    return;
+                }
+                if (kind == Junctions.Kind.SINGLE_SLIP) {
+                    // @TODO
+                    return;
+                }
+                Way.NodeRef owner = junctions.switchOwner(nd);
+                if (owner == null) {
+                    linker.report(beginOrEnd == tB ? RailmlId.trackBegin(way) : RailmlId.trackEnd(way),
+                            RailmlId.switchAt(nodeId), t,
+                            "could not hook up way " + way.id + " to switch " + nodeId);
+                    return;
+                }
+                // the switch's connection towards this way is known by ID, so neither side is
+                // modified by the other and each track is complete once its own references are set
+                TConnectionData conn = new TConnectionData();
+                RailmlId swconnId = RailmlId.connection(RailmlId.Kind.CONNECTION, owner, nd);
+                setConnectionIdAndRef(conn, swconnId.continuation(), swconnId, true, t);
+                beginOrEnd.setConnection(conn);
+            }
+        }
+    }
+
+    // connect a way at a node to another way, i.e. to the connection of the other way in the opposite direction
+    private RailmlId makeConnection(TConnectionData conn, Way.NodeRef nd, Way.NodeRef other, boolean relink,
+                                    RailmlId.Kind kind, ETrack owner) {
+        RailmlId thisConnId = RailmlId.connection(kind, nd, other);
+        setConnectionIdAndRef(conn, thisConnId, thisConnId.reverse(), relink, owner);
+        return thisConnId;
+    }
+
+    private void makeConnection(ETrackNode trackNode, Way.NodeRef nd, Way.NodeRef other, boolean relink,
+                                ETrack owner) {
+        TConnectionData conn = new TConnectionData();
+        makeConnection(conn, nd, other, relink, RailmlId.Kind.CONNECTION, owner);
+        trackNode.setConnection(conn);
+    }
+
+    private void setTrackBeginOrEnd(ETrackNode trackNode, Way.NodeRef nd) {
+        trackNode.setPos(Decimals.fixed(nd.position(), 6));
+        if (nd.node().wayRefs().size() == 1) {
+            // start/end node is only contained in this way -> no connection, "border" of infrastructure
+            String nodeType = nd.node().getTag(RAILWAY);
+            if (nodeType != null && nodeType.equals("buffer_stop")) {
+                TBufferStop bufferStop = new TBufferStop();
+                bufferStop.setId("bufferStop_" + nd.node().id());
+                trackNode.setBufferStop(bufferStop);
+                report.count("bufferStops");
+            } else {
+                TOpenEnd openEnd = new TOpenEnd();
+                openEnd.setId("openEnd_" + nd.node().id());
+                trackNode.setOpenEnd(openEnd);
+                report.count("openEnds");
+            }
+        }
+    }
+
+    private void setConnectionIdAndRef(TConnectionData conn, RailmlId thisConnId, RailmlId thatConnId,
+                                       boolean relink, ETrack owner) {
+        conn.setId(thisConnId.toString());
+        register(thisConnId, conn, owner);
+        if (relink) linker.referenceLater(thisConnId, thatConnId, owner, ref -> {
+            conn.setRef(ref);
+            return null;
+        });
+    }
+
+    private void register(RailmlId id, Object o, ETrack owner) {
+        linker.register(id, o);
+        if (onRegister != null) onRegister.accept(id, owner);
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016-2017  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package com.sebalbert.osm2railml;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Decimal values of railML attributes (positions, speeds) made from doubles and tag values.
+ *
+ * The railML types hold decimals as BigDecimal, so one has to be created per value, but it is created
+ * from its unscaled long value directly, which keeps it compact (no BigInteger, no intermediate strings)
+ * and makes printing it cheap, too.
+ */
+final class Decimals {
+
+    private static final double[] POWERS = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9 };
+
+    private Decimals() { }
+
+    /**
+     * @return - the value rounded to the given number of decimal places (half up, like Math.round())
+     */
+    static BigDecimal fixed(double value, int scale) {
+        return BigDecimal.valueOf(Math.round(value * POWERS[scale]), scale);
+    }
+
+    /**
+     * Parse a decimal number (like a speed tag), cutting off further decimal places (i.e. rounding towards zero)
+     * @throws NumberFormatException - if the value is not a decimal number
+     */
+    static BigDecimal truncate(String value, int scale) {
+        int n = value.length(), i = 0;
+        boolean negative = n > 0 && value.charAt(0) == '-';
+        if (negative || (n > 0 && value.charAt(0) == '+')) ++i;
+        long unscaled = 0;
+        int digits = 0, places = -1;
+        for (; i < n; ++i) {
+            char c = value.charAt(i);
+            if (c == '.' && places < 0) {
+                places = 0;
+                continue;
+            }
+            if (c < '0' || c > '9' || digits == 18 - scale) break;
+            if (places >= 0 && places++ >= scale) continue;
+            unscaled = unscaled * 10 + (c - '0');
+            ++digits;
+        }
+        // anything else (exponents, many digits) is left to BigDecimal
+        if (i < n || digits == 0)
+            return new BigDecimal(value).setScale(scale, RoundingMode.DOWN);
+        for (int p = Math.max(places, 0); p < scale; ++p) unscaled *= 10;
+        return BigDecimal.valueOf(negative ? -unscaled : unscaled, scale);
+    }
+
+}
@@ -0,0 +1,311 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016-2017  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package com.sebalbert.osm2railml;
+
+import com.sebalbert.osm2railml.osm.GeodesicMethod;
+import com.sebalbert.osm2railml.osm.Junctions;
+import com.sebalbert.osm2railml.osm.OsmChange;
+import com.sebalbert.osm2railml.osm.OsmExtract;
+import com.sebalbert.osm2railml.osm.Way;
+import org.railml.schemas._2016.ETrack;
+
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Conversion that keeps its state in a snapshot file, so that later OSM changes (.osc) can be applied
+ * without reading and converting everything again.
+ *
+ * The snapshot holds the extract (nodes and ways kept, c.f. OsmExtract.write()) and, per way, its track
+ * marshalled as a railML fragment along with the diagnostics concerning it. When changes are applied,
+ * only the tracks that can differ are converted again: a track depends on its own nodes and tags and on
+ * the ends and azimuths of the ways at its nodes, so these are the changed ways (including those with a
+ * changed node) and their neighbours at shared nodes, before and after the change. These are converted
+ * together with their own neighbours, so that all their references can be set; the tracks of all
+ * other ways are taken from the snapshot as they are. Likewise, only the geometry of the ways converted and
+ * their neighbours is computed, and only the junctions at the nodes of the ways converted are analysed.
+ *
+ * A duplicate ID belongs to no track, so its diagnostic is kept with each way whose track registered the ID.
+ * As all of these pass the node of the ID, they are converted along whenever one of them is converted again,
+ * so such a diagnostic is replaced by what is found then. Nodes that a changed way lost (c.f.
+ * OsmChange.missingNodes()) are reported with that way until it is changed again.
+ */
+public class IncrementalConversion
+{
+
+    private static final int MAGIC = 0x4f32524d, VERSION = 4;
+
+    /**
+     * Message of the diagnostics about nodes dropped from a way, as neither the snapshot nor the change has them
+     */
+    public static final String MISSING_NODE = "node neither in the snapshot nor in the change";
+
+    private OsmExtract osm;
+    // per way ID: the marshalled track and diagnostics concerning it
+    private Map<Long, byte[]> fragments = new HashMap<>();
+    private Map<Long, List<Linker.Diagnostic>> diagnosticsByWay = new HashMap<>();
+
+    private IncrementalConversion() { }
+
+    /**
+     * Convert an extract completely
+     * @param osm - with the geometry of its ways computed
+     * @param report - for phases (tracks, resolve) and counters of the objects created
+     * @param workers - threads for converting ways and resolving references
+     */
+    public static IncrementalConversion convert(OsmExtract osm, RunReport report, Workers workers)
+            throws JAXBException {
+        IncrementalConversion c = new IncrementalConversion();
+        c.osm = osm;
+        Set<Long> all = new HashSet<>();
+        for (Way w : osm.ways) all.add(w.id);
+        c.convert(osm.ways, all, osm.junctions(workers), report, workers);
+        return c;
+    }
+
+    // convert the given ways and keep the tracks and diagnostics of those to be updated
+    private void convert(List<Way> ways, Set<Long> update, Junctions junctions, RunReport report, Workers workers)
+            throws JAXBException {
+        Conversion conversion = new Conversion(report, workers);
+        // the tracks that registered each ID registered more than once
+        Map<RailmlId, ETrack> first = new ConcurrentHashMap<>();
+        Map<String, Set<ETrack>> registrants = new ConcurrentHashMap<>();
+        conversion.onRegister = (id, t) -> {
+            ETrack f = first.putIfAbsent(id, t);
+            if (f == null) return;
+            Set<ETrack> tracks = registrants.computeIfAbsent(id.toString(),
+                    k -> Collections.newSetFromMap(new ConcurrentHashMap<>()));
+            tracks.add(f);
+            tracks.add(t);
+        };
+        report.phase(RunReport.TRACKS);
+        List<ETrack> tracks = conversion.convertWays(junctions, ways);
+        report.phase(RunReport.RESOLVE);
+        List<Linker.Diagnostic> diagnostics = conversion.linker.resolve();
+        Map<ETrack, Long> wayOfTrack = new IdentityHashMap<>();
+        Marshaller marshaller = RailmlWriter.fragmentMarshaller();
+        QName trackName = RailmlWriter.trackName();
+        for (int i = 0; i < ways.size(); ++i) {
+            long id = ways.get(i).id;
+            wayOfTrack.put(tracks.get(i), id);
+            if (update.contains(id)) fragments.put(id, RailmlWriter.fragment(marshaller, trackName, tracks.get(i)));
+        }
+        // duplicates found before with a way to be updated are found again now, if they persist
+        Set<Linker.Diagnostic> stale = new HashSet<>();
+        for (long id : update)
+            for (Linker.Diagnostic d : diagnosticsByWay.getOrDefault(id, Collections.emptyList()))
+                if (d.message.equals(Linker.DUPLICATE_ID)) stale.add(d);
+        Map<Long, List<Linker.Diagnostic>> found = new HashMap<>();
+        List<Linker.Diagnostic> kept = new ArrayList<>();
+        for (Linker.Diagnostic d : diagnostics) {
+            if (d.owner != null) {
+                Long way = wayOfTrack.get(d.owner);
+                if (way == null || !update.contains(way)) continue;
+                found.computeIfAbsent(way, k -> new ArrayList<>()).add(d);
+                kept.add(d);
+                continue;
+            }
+            Set<Long> parties = new TreeSet<>();
+            for (ETrack t : registrants.getOrDefault(d.from, Collections.emptySet())) parties.add(wayOfTrack.get(t));
+            // only found completely if a way to be updated is among them (c.f. above)
+            if (Collections.disjoint(parties, update)) continue;
+            stale.add(d);
+            for (long way : parties) found.computeIfAbsent(way, k -> new ArrayList<>()).add(d);
+            kept.add(d);
+        }
+        for (Way w : ways) {
+            List<Linker.Diagnostic> list = diagnosticsByWay.get(w.id);
+            if (list == null) continue;
+            // nodes lost are not found by converting
+            if (update.contains(w.id)) list.removeIf(d -> !d.message.equals(MISSING_NODE));
+            else list.removeIf(stale::contains);
+            if (list.isEmpty()) diagnosticsByWay.remove(w.id);
+        }
+        found.forEach((way, list) -> diagnosticsByWay.computeIfAbsent(way, k -> new ArrayList<>()).addAll(list));
+        Conversion.countDiagnostics(report, kept);
+    }
+
+    /**
+     * Apply changes to the extract and convert the tracks that may have changed again. The counters of the
+     * report include the neighbours converted along with these tracks, the ways whose geometry is computed
+     * ("geometries") and the nodes that changed ways lost ("missingNodes").
+     * @param options - as used when reading the extract
+     * @param method - how to compute the geometry of the ways (the same as for the snapshot)
+     * @param report - for phases (geodesic, junctions, tracks, resolve) and counters of the objects created
+     * @param workers - threads for computing the geometry, converting ways and resolving references
+     * @return - the number of tracks converted
+     */
+    public int apply(OsmChange change, OsmExtract.Options options, GeodesicMethod method, RunReport report,
+            Workers workers) throws IOException, JAXBException {
+        OsmExtract old = osm;
+        osm = change.apply(old, options);
+        Set<Long> changed = change.changedWays(old, osm);
+        Set<Long> update = OsmChange.withNeighbours(old, changed);
+        update.addAll(OsmChange.withNeighbours(osm, changed));
+        Set<Long> current = new HashSet<>();
+        for (Way w : osm.ways) current.add(w.id);
+        fragments.keySet().retainAll(current);
+        diagnosticsByWay.keySet().retainAll(current);
+        update.retainAll(current);
+        for (long id : change.wayIds()) {
+            List<Linker.Diagnostic> list = diagnosticsByWay.get(id);
+            if (list != null) list.removeIf(d -> d.message.equals(MISSING_NODE));
+        }
+        Set<Long> context = OsmChange.withNeighbours(osm, update);
+        // the junctions at the nodes of these depend on the azimuths of all ways there
+        Set<Long> measured = OsmChange.withNeighbours(osm, context);
+        List<Way> ways = new ArrayList<>(), measure = new ArrayList<>();
+        for (Way w : osm.ways) {
+            if (context.contains(w.id)) ways.add(w);
+            if (measured.contains(w.id)) measure.add(w);
+        }
+        report.phase(RunReport.GEODESIC);
+        osm.computeGeometry(method, measure, workers);
+        report.add("geometries", measure.size());
+        report.phase(RunReport.JUNCTIONS);
+        Junctions junctions = osm.junctionsAt(ways, workers);
+        convert(ways, update, junctions, report, workers);
+        List<Linker.Diagnostic> missing = new ArrayList<>();
+        for (Way w : ways) {
+            for (long node : change.missingNodes().getOrDefault(w.id, new long[0])) {
+                Linker.Diagnostic d = new Linker.Diagnostic(RailmlId.track(w).toString(), "node_" + node,
+                        MISSING_NODE, null);
+                List<Linker.Diagnostic> list = diagnosticsByWay.computeIfAbsent(w.id, k -> new ArrayList<>());
+                if (list.contains(d)) continue;
+                list.add(d);
+                missing.add(d);
+            }
+        }
+        report.add("missingNodes", missing.size());
+        Conversion.countDiagnostics(report, missing);
+        return update.size();
+    }
+
+    /**
+     * Write all tracks, in the order of their ways
+     */
+    public void write(RailmlWriter writer) throws XMLStreamException {
+        for (Way w : osm.ways) writer.write(fragments.get(w.id));
+    }
+
+    /**
+     * @return - problems found when resolving references and nodes lost, in a stable order
+     */
+    public List<Linker.Diagnostic> diagnostics() {
+        List<Linker.Diagnostic> all = new ArrayList<>();
+        // each duplicate is kept with all ways concerned, each of which has all its occurrences
+        Map<Linker.Diagnostic, Integer> duplicates = new HashMap<>();
+        for (List<Linker.Diagnostic> list : diagnosticsByWay.values()) {
+            Map<Linker.Diagnostic, Integer> found = new HashMap<>();
+            for (Linker.Diagnostic d : list) {
+                if (d.message.equals(Linker.DUPLICATE_ID)) found.merge(d, 1, Integer::sum);
+                else all.add(d);
+            }
+            found.forEach((d, n) -> duplicates.merge(d, n, Math::max));
+        }
+        duplicates.forEach((d, n) -> all.addAll(Collections.nCopies(n, d)));
+        all.sort(Linker.Diagnostic.ORDER);
+        return all;
+    }
+
+    public OsmExtract extract() {
+        return osm;
+    }
+
+    /**
+     * Save the state to a (gzip-compressed) snapshot file
+     */
+    public void save(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(new FileOutputStream(file), 1 << 16), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            osm.write(out);
+            for (Way w : osm.ways) {
+                byte[] fragment = fragments.get(w.id);
+                out.writeInt(fragment.length);
+                out.write(fragment);
+                writeDiagnostics(out, diagnosticsByWay.getOrDefault(w.id, Collections.emptyList()));
+            }
+        }
+    }
+
+    /**
+     * Load the state from a snapshot file written by save()
+     * @param offHeap - whether to hold the nodes in a memory-mapped file
+     */
+    public static IncrementalConversion load(File file, boolean offHeap) throws IOException {
+        IncrementalConversion c = new IncrementalConversion();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(new FileInputStream(file), 1 << 16), 1 << 16))) {
+            if (in.readInt() != MAGIC) throw new IOException("not a snapshot file: " + file);
+            int version = in.readInt();
+            if (version != VERSION) throw new IOException("unsupported snapshot version " + version + ": " + file);
+            c.osm = OsmExtract.read(in, offHeap);
+            for (Way w : c.osm.ways) {
+                byte[] fragment = new byte[in.readInt()];
+                in.readFully(fragment);
+                c.fragments.put(w.id, fragment);
+                List<Linker.Diagnostic> diagnostics = readDiagnostics(in);
+                if (!diagnostics.isEmpty()) c.diagnosticsByWay.put(w.id, diagnostics);
+            }
+        }
+        return c;
+    }
+
+    private static void writeDiagnostics(DataOutputStream out, List<Linker.Diagnostic> diagnostics)
+            throws IOException {
+        out.writeInt(diagnostics.size());
+        for (Linker.Diagnostic d : diagnostics) {
+            out.writeUTF(d.from);
+            out.writeUTF(d.to);
+            out.writeUTF(d.message);
+        }
+    }
+
+    private static List<Linker.Diagnostic> readDiagnostics(DataInputStream in) throws IOException {
+        List<Linker.Diagnostic> diagnostics = new ArrayList<>();
+        for (int i = in.readInt(); i > 0; --i)
+            diagnostics.add(new Linker.Diagnostic(in.readUTF(), in.readUTF(), in.readUTF(), null));
+        return diagnostics;
+    }
+
+}
@@ -0,0 +1,243 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016-2017  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package com.sebalbert.osm2railml;
+
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.util.BitSet;
+
+/**
+ * Indents the elements written to another XMLStreamWriter, like Marshaller.JAXB_FORMATTED_OUTPUT does for
+ * whole documents (which has no effect when marshalling fragments to an XMLStreamWriter).
+ * Elements containing text are kept on one line.
+ */
+class IndentingXMLStreamWriter implements XMLStreamWriter {
+
+    private static final String INDENT = "    ";
+
+    private final XMLStreamWriter out;
+    private int depth = 0;
+    // per depth: whether the open element has child elements; whether the innermost one contains text
+    private final BitSet hasChildElements = new BitSet();
+    private boolean hasText = false;
+
+    IndentingXMLStreamWriter(XMLStreamWriter out) {
+        this.out = out;
+    }
+
+    private void newLine(int depth) throws XMLStreamException {
+        out.writeCharacters("\n");
+        for (int i = 0; i < depth; ++i) out.writeCharacters(INDENT);
+    }
+
+    private void beforeStartElement() throws XMLStreamException {
+        if (depth > 0) hasChildElements.set(depth - 1);
+        newLine(depth);
+    }
+
+    private void afterStartElement() {
+        hasChildElements.clear(depth++);
+        hasText = false;
+    }
+
+    private void beforeEndElement() throws XMLStreamException {
+        if (hasChildElements.get(--depth) && !hasText) newLine(depth);
+        hasText = false;
+    }
+
+    @Override
+    public void writeStartElement(String localName) throws XMLStreamException {
+        beforeStartElement();
+        out.writeStartElement(localName);
+        afterStartElement();
+    }
+
+    @Override
+    public void writeStartElement(String namespaceURI, String localName) throws XMLStreamException {
+        beforeStartElement();
+        out.writeStartElement(namespaceURI, localName);
+        afterStartElement();
+    }
+
+    @Override
+    public void writeStartElement(String prefix, String localName, String namespaceURI)
+            throws XMLStreamException {
+        beforeStartElement();
+        out.writeStartElement(prefix, localName, namespaceURI);
+        afterStartElement();
+    }
+
+    @Override
+    public void writeEmptyElement(String namespaceURI, String localName) throws XMLStreamException {
+        beforeStartElement();
+        out.writeEmptyElement(namespaceURI, localName);
+    }
+
+    @Override
+    public void writeEmptyElement(String prefix, String localName, String namespaceURI)
+            throws XMLStreamException {
+        beforeStartElement();
+        out.writeEmptyElement(prefix, localName, namespaceURI);
+    }
+
+    @Override
+    public void writeEmptyElement(String localName) throws XMLStreamException {
+        beforeStartElement();
+        out.writeEmptyElement(localName);
+    }
+
+    @Override
+    public void writeEndElement() throws XMLStreamException {
+        beforeEndElement();
+        out.writeEndElement();
+    }
+
+    @Override
+    public void writeEndDocument() throws XMLStreamException {
+        while (depth > 0) writeEndElement();
+        out.writeEndDocument();
+    }
+
+    @Override
+    public void close() throws XMLStreamException {
+        out.close();
+    }
+
+    @Override
+    public void flush() throws XMLStreamException {
+        out.flush();
+    }
+
+    @Override
+    public void writeAttribute(String localName, String value) throws XMLStreamException {
+        out.writeAttribute(localName, value);
+    }
+
+    @Override
+    public void writeAttribute(String prefix, String namespaceURI, String localName, String value)
+            throws XMLStreamException {
+        out.writeAttribute(prefix, namespaceURI, localName, value);
+    }
+
+    @Override
+    public void writeAttribute(String namespaceURI, String localName, String value) throws XMLStreamException {
+        out.writeAttribute(namespaceURI, localName, value);
+    }
+
+    @Override
+    public void writeNamespace(String prefix, String namespaceURI) throws XMLStreamException {
+        out.writeNamespace(prefix, namespaceURI);
+    }
+
+    @Override
+    public void writeDefaultNamespace(String namespaceURI) throws XMLStreamException {
+        out.writeDefaultNamespace(namespaceURI);
+    }
+
+    @Override
+    public void writeComment(String data) throws XMLStreamException {
+        out.writeComment(data);
+    }
+
+    @Override
+    public void writeProcessingInstruction(String target) throws XMLStreamException {
+        out.writeProcessingInstruction(target);
+    }
+
+    @Override
+    public void writeProcessingInstruction(String target, String data) throws XMLStreamException {
+        out.writeProcessingInstruction(target, data);
+    }
+
+    @Override
+    public void writeCData(String data) throws XMLStreamException {
+        hasText = true;
+        out.writeCData(data);
+    }
+
+    @Override
+    public void writeDTD(String dtd) throws XMLStreamException {
+        out.writeDTD(dtd);
+    }
+
+    @Override
+    public void writeEntityRef(String name) throws XMLStreamException {
+        hasText = true;
+        out.writeEntityRef(name);
+    }
+
+    @Override
+    public void writeStartDocument() throws XMLStreamException {
+        out.writeStartDocument();
+    }
+
+    @Override
+    public void writeStartDocument(String version) throws XMLStreamException {
+        out.writeStartDocument(version);
+    }
+
+    @Override
+    public void writeStartDocument(String encoding, String version) throws XMLStreamException {
+        out.writeStartDocument(encoding, version);
+    }
+
+    @Override
+    public void writeCharacters(String text) throws XMLStreamException {
+        hasText = true;
+        out.writeCharacters(text);
+    }
+
+    @Override
+    public void writeCharacters(char[] text, int start, int len) throws XMLStreamException {
+        hasText = true;
+        out.writeCharacters(text, start, len);
+    }
+
+    @Override
+    public String getPrefix(String uri) throws XMLStreamException {
+        return out.getPrefix(uri);
+    }
+
+    @Override
+    public void setPrefix(String prefix, String uri) throws XMLStreamException {
+        out.setPrefix(prefix, uri);
+    }
+
+    @Override
+    public void setDefaultNamespace(String uri) throws XMLStreamException {
+        out.setDefaultNamespace(uri);
+    }
+
+    @Override
+    public void setNamespaceContext(NamespaceContext context) throws XMLStreamException {
+        out.setNamespaceContext(context);
+    }
+
+    @Override
+    public NamespaceContext getNamespaceContext() {
+        return out.getNamespaceContext();
+    }
+
+    @Override
+    public Object getProperty(String name) throws IllegalArgumentException {
+        return out.getProperty(name);
+    }
+
+}
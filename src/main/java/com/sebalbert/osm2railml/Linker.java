@@ -0,0 +1,259 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016-2017  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package com.sebalbert.osm2railml;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.Collectors;
+
+/**
+ * Links references between railML objects of one conversion.
+ *
+ * Some railML objects that need to be referenced may not have been created before, so we need to
+ * add those references after they have been created (e.g. after everything is created),
+ * so we maintain a registry of objects by ID and a "to do" list of references to be set.
+ * These are realised as "callback" closures so we do not need to remember and reflect on which field
+ * of the referencing object the reference must be set.
+ *
+ * Objects and references can be registered concurrently without locking; references are resolved
+ * afterwards in a deterministic order, and those that cannot be resolved are reported as Diagnostics.
+ * When output is streamed, references can also be resolved in between (resolveAvailable()), and each
+ * reference may name an owner (e.g. the track it belongs to) that is not complete while it is pending.
+ *
+ * IDs can be of any comparable type, e.g. RailmlId, so they need not be built as strings for linking;
+ * they are only turned into strings (by toString()) for diagnostics.
+ * @param <K> - type of the IDs
+ */
+public class Linker<K extends Comparable<? super K>> {
+
+    /**
+     * Sets a reference once the referenced object is known
+     */
+    public interface Resolver {
+
+        /**
+         * @param target - the referenced object
+         * @return - null if the reference was set, otherwise a message why it could not be set
+         */
+        String resolve(Object target);
+
+    }
+
+    /**
+     * A reference that could not be resolved, or an ID that was registered more than once
+     */
+    public static class Diagnostic {
+
+        static final Comparator<Diagnostic> ORDER = Comparator.<Diagnostic, String>comparing(d -> d.to)
+                .thenComparing(d -> d.from).thenComparing(d -> d.message);
+
+        public final String from, to, message;
+        // the owner of the reference (c.f. referenceLater()), if any
+        final Object owner;
+
+        Diagnostic(String from, String to, String message, Object owner) {
+            this.from = from;
+            this.to = to;
+            this.message = message;
+            this.owner = owner;
+        }
+
+        @Override
+        public String toString() {
+            return message + " (reference from " + from + " to " + to + ")";
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Diagnostic)) return false;
+            Diagnostic d = (Diagnostic) o;
+            return from.equals(d.from) && to.equals(d.to) && message.equals(d.message);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(from, to, message);
+        }
+
+    }
+
+    private static class Reference<K> {
+
+        final K from, to;
+        final Object owner;
+        final Resolver resolver;
+
+        Reference(K from, K to, Object owner, Resolver resolver) {
+            this.from = from;
+            this.to = to;
+            this.owner = owner;
+            this.resolver = resolver;
+        }
+
+    }
+
+    /**
+     * Message of the diagnostics about references to IDs that no object has been registered with
+     */
+    public static final String NO_OBJECT = "no object with this ID";
+
+    /**
+     * Message of the diagnostics about IDs registered more than once (which belong to no owner)
+     */
+    public static final String DUPLICATE_ID = "duplicate ID";
+
+    private final Comparator<Reference<K>> order = (r1, r2) -> {
+        int c = r1.to.compareTo(r2.to);
+        return c != 0 ? c : r1.from.compareTo(r2.from);
+    };
+
+    private final Workers workers;
+    private final Map<K, Object> objectById = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Reference<K>> references = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Diagnostic> diagnostics = new ConcurrentLinkedQueue<>();
+    // references whose target has not been registered yet, and their owners (only touched by resolving)
+    private List<Reference<K>> unresolved = new ArrayList<>();
+    private Set<Object> pendingOwners = Collections.emptySet();
+
+    public Linker() {
+        this(Workers.COMMON);
+    }
+
+    /**
+     * @param workers - for resolving references in parallel
+     */
+    public Linker(Workers workers) {
+        this.workers = workers;
+    }
+
+    /**
+     * Register an object that may be referenced by its ID
+     * @return - false if another object has been registered with this ID before (which is kept)
+     */
+    public boolean register(K id, Object o) {
+        if (objectById.putIfAbsent(id, o) == null) return true;
+        diagnostics.add(new Diagnostic(id.toString(), id.toString(), DUPLICATE_ID, null));
+        return false;
+    }
+
+    /**
+     * Set a reference as soon as all objects are created (i.e. in resolve())
+     * @param from - ID of the referencing object (for ordering and diagnostics)
+     * @param to - ID of the referenced object
+     * @param resolver - sets the reference
+     */
+    public void referenceLater(K from, K to, Resolver resolver) {
+        referenceLater(from, to, null, resolver);
+    }
+
+    /**
+     * Set a reference as soon as the referenced object is created
+     * @param owner - object that is incomplete until this reference is set (c.f. isPending()), or null
+     */
+    public void referenceLater(K from, K to, Object owner, Resolver resolver) {
+        references.add(new Reference<>(from, to, owner, resolver));
+    }
+
+    /**
+     * Report a problem found while creating objects, along with those found when resolving references
+     */
+    public void report(K from, K to, Object owner, String message) {
+        diagnostics.add(new Diagnostic(from.toString(), to.toString(), message, owner));
+    }
+
+    /**
+     * Resolve the references registered so far whose target has been registered, too; the others are kept
+     * for later. Must not be called concurrently with registering references.
+     */
+    public void resolveAvailable() {
+        List<Reference<K>> pending = unresolved;
+        for (Reference<K> r; (r = references.poll()) != null; ) pending.add(r);
+        Map<Boolean, List<Reference<K>>> available =
+                pending.stream().collect(Collectors.partitioningBy(r -> objectById.containsKey(r.to)));
+        resolve(available.get(true));
+        unresolved = new ArrayList<>(available.get(false));
+        Set<Object> owners = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Reference<K> r : unresolved) if (r.owner != null) owners.add(r.owner);
+        pendingOwners = owners;
+    }
+
+    /**
+     * @return - whether a reference owned by the given object has not been resolved by resolveAvailable()
+     */
+    public boolean isPending(Object owner) {
+        return pendingOwners.contains(owner);
+    }
+
+    /**
+     * @return - IDs of the objects referenced by pending references (c.f. resolveAvailable()), in a stable order
+     */
+    public SortedSet<K> unresolvedTargets() {
+        SortedSet<K> targets = new TreeSet<>();
+        for (Reference<K> r : unresolved) targets.add(r.to);
+        return targets;
+    }
+
+    /**
+     * @return - the object registered with this ID, or null
+     */
+    public Object lookup(K id) {
+        return objectById.get(id);
+    }
+
+    /**
+     * Resolve all references registered so far. References to the same object are resolved sequentially,
+     * in order of the ID of the referencing object, so the result does not depend on the order of registration.
+     * @return - diagnostics about references that could not be resolved and duplicate IDs, in a stable order
+     */
+    public List<Diagnostic> resolve() {
+        resolveAvailable();
+        for (Reference<K> r : unresolved)
+            diagnostics.add(new Diagnostic(r.from.toString(), r.to.toString(), NO_OBJECT, r.owner));
+        unresolved = new ArrayList<>();
+        pendingOwners = Collections.emptySet();
+        List<Diagnostic> sorted = new ArrayList<>();
+        for (Diagnostic d; (d = diagnostics.poll()) != null; ) sorted.add(d);
+        sorted.sort(Diagnostic.ORDER);
+        return sorted;
+    }
+
+    private void resolve(List<Reference<K>> available) {
+        List<List<Reference<K>>> byTarget =
+                new ArrayList<>(available.stream().collect(Collectors.groupingBy(r -> r.to)).values());
+        workers.forEach(byTarget, List::size, refs -> {
+            refs.sort(order);
+            for (Reference<K> r : refs) {
+                String message = r.resolver.resolve(objectById.get(r.to));
+                if (message != null)
+                    diagnostics.add(new Diagnostic(r.from.toString(), r.to.toString(), message, r.owner));
+            }
+        });
+    }
+
+}
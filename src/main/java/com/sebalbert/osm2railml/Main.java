@@ -18,26 +18,43 @@
  */
 package com.sebalbert.osm2railml;
 
+import com.sebalbert.osm2railml.osm.ExtractChunks;
+import com.sebalbert.osm2railml.osm.GeodesicMethod;
 import com.sebalbert.osm2railml.osm.Node;
+import com.sebalbert.osm2railml.osm.OsmChange;
 import com.sebalbert.osm2railml.osm.OsmExtract;
+import com.sebalbert.osm2railml.osm.Region;
+import com.sebalbert.osm2railml.osm.TrackGraph;
 import com.sebalbert.osm2railml.osm.Way;
+import com.sebalbert.osm2railml.osm.WayFilter;
 import org.railml.schemas._2016.*;
 import org.xml.sax.SAXException;
 
+import javax.management.JMException;
 import javax.xml.XMLConstants;
-import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Marshaller;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.validation.Schema;
 import javax.xml.validation.SchemaFactory;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
 import java.io.File;
-import java.math.BigDecimal;
-import java.math.BigInteger;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.*;
-import java.util.function.Consumer;
-import java.util.stream.Collectors;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Main executable.
@@ -48,256 +65,313 @@ public class Main
 
     /**
      * Reads XML from OpenStreetMap in order to generate railML infrastructure from it
-     * @param args - first argument is expected to be a local (relative) filename
+     * @param args - a local (relative) filename, optionally preceded by options:
+     *             --threads n (for decoding input and converting, c.f. Workers), --off-heap (hold nodes in a memory-mapped file),
+     *             --join-memory mb (read and convert the input in chunks of ways, sorting and joining ways and nodes in
+     *             temporary files beyond this memory, c.f. ExtractChunks; the output is streamed; not with --snapshot,
+     *             --normalize, --cache or --verbose),
+     *             --tiles degrees (with --join-memory: read and convert the input in tiles of this size, as many at
+     *             a time as there are threads, c.f. TiledConversion),
+     *             --all-tags (keep all tags instead of only those used for conversion),
+     *             --geodesic method (GEODESIC, ELLIPSOIDAL_PLANE or SPHERICAL, c.f. GeodesicMethod),
+     *             --stream (write tracks as they are converted, c.f. RailmlWriter), --compact (no indentation),
+     *             --gzip (compress the output), --output file (instead of standard output),
+     *             --normalize (split ways at switches and crossings and merge plain chains of ways into
+     *             tracks, c.f. TrackGraph; not with --snapshot),
+     *             --railway value,... (only ways with these railway values), --exclude key=value (repeatable),
+     *             --bbox minLat,minLon,maxLat,maxLon or --polygon file.poly (only ways touching this region),
+     *             --snapshot file (save the state for applying changes later, c.f. IncrementalConversion),
+     *             --apply file.osc (instead of an input file: apply changes to the snapshot and update it),
+     *             --cache dir (keep the parsed input in this directory for later runs, c.f. ExtractCache),
+     *             --verbose (print the nodes and ways read), --report file.json (write timings and counters,
+     *             c.f. RunReport), --jmx (register the RunReport as an MXBean), --profile (record the run with
+     *             the Flight Recorder and print the slowest ways and junctions and the biggest allocation sites,
+     *             c.f. Profiler);
+     *             or, instead of a filename, run many conversions in this JVM (c.f. BatchService) given by
+     *             --batch file (a manifest with the arguments of a conversion per line, or a directory of
+     *             *.osm and *.osm.pbf files), --serve (lines read from standard input) or --port n --token file
+     *             (lines sent to this local port after the token written to the file), with --jobs n (conversions at a time) and --memory mb (estimated memory
+     *             of the conversions at a time); the other options are then applied to all conversions
      * @throws JAXBException
+     * @throws IOException
+     * @throws XMLStreamException
      */
-    public static void main( String[] args ) throws JAXBException, MalformedURLException, SAXException {
-        OsmExtract osm = OsmExtract.fromFile(new File(args[0]));
-        for (Node n : osm.nodes)
-            System.out.println(n.id + ": " + n.lat + "/" + n.lon + " [" + n.wayRefs.size() + " - " +
-                    n.wayRefs.get(0).way.id);
-        for (Way w : osm.ways)
-            System.out.println(w.id + ":" + w.nd.size() + " - " + w.nd.get(0).node.id + " [" + w.tags.size() +
-                    " - railway:" + w.getTag("railway"));
-
-        // creation of railML structure to be marshalled in the end
-        Infrastructure is = new Infrastructure();
-        is.setId("is");
-        ETracks tracks = new ETracks();
-        is.setTracks(tracks);
-        tracks.getTrack().addAll(osm.ways.parallelStream().map(w -> wayToTrack(w)).collect(Collectors.toList()));
-        // create missing references now that all objects are created (c.f. the comments on objectById declaration)
-        referencesToBeSet.entrySet().parallelStream().forEach(e -> e.getValue()
-                .forEach(c -> c.accept(objectById.get(e.getKey()))));
-        JAXBContext jc = JAXBContext.newInstance(Infrastructure.class);
-        Marshaller marshaller = jc.createMarshaller();
-        // SchemaFactory schemaFactory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
-        // Schema schema = schemaFactory.newSchema(
-        //          new URL("http://www.railml.org/files/download/schemas/2016/railML-2.3/schema/infrastructure.xsd"));
-        // marshaller.setSchema(schema);
-        marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
-        marshaller.marshal(is, System.out);
-    }
-
-    private static BigDecimal doubleToBigDecimal(double value, int scale) {
-        return new BigDecimal(new BigInteger(Long.toString(Math.round(value * Math.pow(10, scale)))), scale);
+    public static void main( String[] args ) throws JAXBException, MalformedURLException, SAXException, JMException,
+            IOException, XMLStreamException {
+        List<String> jobArgs = new ArrayList<>();
+        String batch = null, token = null;
+        boolean serve = false;
+        int port = -1, threads = Runtime.getRuntime().availableProcessors(), jobs = threads;
+        long memory = Runtime.getRuntime().maxMemory() / 4 * 3;
+        for (int i = 0; i < args.length; ++i) {
+            switch (args[i]) {
+                case "--batch": batch = args[++i]; break;
+                case "--serve": serve = true; break;
+                case "--port": port = Integer.parseInt(args[++i]); break;
+                case "--token": token = args[++i]; break;
+                case "--jobs": jobs = Integer.parseInt(args[++i]); break;
+                case "--memory": memory = Long.parseLong(args[++i]) << 20; break;
+                case "--threads":
+                    threads = Integer.parseInt(args[i + 1]);
+                    jobArgs.add(args[i]);
+                    break;
+                default: jobArgs.add(args[i]);
+            }
+        }
+        if (batch == null && !serve && port < 0) {
+            new Job(jobArgs.toArray(new String[0])).run(null, System.out);
+            return;
+        }
+        if (port >= 0 && token == null) throw new IllegalArgumentException("--port requires --token file");
+        try (Workers workers = new Workers(threads);
+             BatchService service = new BatchService(workers, jobs, memory, jobArgs)) {
+            if (batch != null) service.batch(new File(batch), System.out);
+            if (serve) service.serve(new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)),
+                    System.out);
+            if (port >= 0) service.listen(port, new File(token));
+        }
     }
 
-    // OSM Ways are a good fit for railML Tracks (1:1)
-    private static ETrack wayToTrack(Way way) {
-        ETrack t = new ETrack();
-        t.setId("w_" + way.id);
-        ETrackTopology topo = new ETrackTopology();
-        t.setTrackTopology(topo);
-
-        String code = way.getTag("ref");
-        if (code != null) t.setCode(code);
+    /**
+     * One conversion, as given by command line arguments (c.f. main())
+     */
+    static class Job {
 
-        ETrackBegin tB = new ETrackBegin();
-        topo.setTrackBegin(tB);
-        tB.setId("tB_" + way.id);
-        setTrackBeginOrEnd(tB, way.nd.getFirst());
-        ETrackEnd tE = new ETrackEnd();
-        topo.setTrackEnd(tE);
-        tE.setId("tE_" + way.id);
-        setTrackBeginOrEnd(tE, way.nd.getLast());
+        final OsmExtract.Options options = new OsmExtract.Options();
+        GeodesicMethod geodesicMethod = GeodesicMethod.GEODESIC;
+        String input = null, output = null, snapshot = null, apply = null;
+        String reportFile = null;
+        boolean stream = false, pretty = true, gzip = false, verbose = false, jmx = false, normalize = false,
+                profile = false;
+        // edge length of the tiles, or 0 to convert in chunks of ways in the order read (with --join-memory)
+        double tileSize = 0.0;
+        // tells the RunReports of jobs run in the same JVM apart (c.f. BatchService)
+        int id = 1;
 
-        EConnections connections = new EConnections();
-        topo.setConnections(connections);
-        for (Way.NodeRef nd : way.nd) {
-            final int waysAtNode = nd.node.wayRefs.size();
-            final int topologicalPosition = nd.topologicalPosition();
-            final ETrackNode beginOrEnd = topologicalPosition == Way.NodeRef.FIRST ? tB
-                    : topologicalPosition == Way.NodeRef.LAST ? tE : null;
-            // detect and model switches and crossings
-            if (waysAtNode > 1) {
-                Way.NodeRef partner = mutuallyOppositeEnd(nd);
-                if (beginOrEnd != null && partner != null) makeConnection(beginOrEnd, nd, partner, true);
-                String nodeType = nd.node.getTag("railway");
-                if (nodeType != null && nodeType.equals("railway_crossing")) {
-                    // avoid setting a crossing at both respective ends of two sequentially joined tracks
-                    if (!isCanonicalNodeRef(nd)) continue;
-                    ECrossing crossing = new ECrossing();
-                    crossing.setId("crossing_" + way.id + "_" + nd.node.id);
-                    crossing.setPos(doubleToBigDecimal(nd.position(), 6));
-                    for (Way.NodeRef otherWayRef : nd.node.wayRefs) {
-                        if (otherWayRef == nd) continue;
-                        // avoid setting a crossing at both respective ends of two sequentially joined tracks
-                        if (!isCanonicalNodeRef(otherWayRef)) continue;
-                        TSwitchConnectionData conn = new TSwitchConnectionData();
-                        String thisConnId = "crossing_conn_" + way.id + "_" + nd.node.id + "_" + otherWayRef.way.id;
-                        String thatConnId = "crossing_conn_" + otherWayRef.way.id + "_" + nd.node.id + "_" + way.id;
-                        setConnectionIdAndRef(conn, thisConnId, thatConnId, true);
-                    }
-                } else {
-                    // unless explicitly set as "railway_crossing", we assume a switch
-                    String switchType = nd.node.getTag("railway:switch");
-                    if (isCanonicalNodeRef(nd) &&
-                            (topologicalPosition == Way.NodeRef.INTERIOR || (waysAtNode > 2 && partner != null))) {
-                        String maxSpeedStraight = nd.node.getTag("railway:maxspeed:straight");
-                        String maxSpeedDiverging = nd.node.getTag("railway:maxspeed:diverging");
-                        BigDecimal maxSpeedDiv = maxSpeedDiverging == null ? null :
-                                new BigDecimal(maxSpeedDiverging).setScale(1, BigDecimal.ROUND_DOWN);
-                        BigDecimal maxSpeedStr = maxSpeedStraight == null ? null :
-                                new BigDecimal(maxSpeedStraight).setScale(1, BigDecimal.ROUND_DOWN);
-                        String switchId = "switch_" + nd.node.id;
-                        if (objectById.containsKey(switchId))
-                            throw new RuntimeException("more than 1 straight way on simple switch node " + nd.node.id);
-                        ESwitch sw = new ESwitch();
-                        sw.setId(switchId);
-                        sw.setPos(doubleToBigDecimal(nd.position(), 6));
-                        objectById.put(switchId, sw);
-                        if (switchType != null && switchType.equals("double_slip")) {
-                            Way.NodeRef other = nd.node.wayRefs.stream().filter(r -> r != nd && r != partner)
-                                    .min(Comparator.comparing(r -> r.way.id)).orElse(null);
-                            if (other == null) {
-                                System.out.println("Error: double_slip without other track at " + nd.node.id);
-                                continue;
-                            }
-                            TSwitchConnectionData conn = new TSwitchConnectionData();
-                            // @TODO build own connections, connect to other switch in callback closure
-                            continue;
-                        }
-                        if (switchType != null && switchType.equals("single_slip")) {
-                            System.out.println("Warning: single_slip at " + nd.node.id +
-                                    ", choosing arbitrary direction!");
-                            // @TODO
-                            continue;
-                        }
-                        for (Way.NodeRef other : nd.node.wayRefs) {
-                            if (other == nd || other == partner) continue;
-                            TSwitchConnectionData conn = new TSwitchConnectionData();
-                            int orientation = inferSwitchOrientation(nd, other);
-                            conn.setOrientation((orientation & INCOMING) > 0 ? "incoming" : "outgoing");
-                            conn.setCourse((orientation & LEFT) > 0 ? "left" : "right");
-                            makeConnection(conn, nd, other, false);
-                            sw.getConnection().add(conn);
-                            if (maxSpeedDiv != null) conn.setMaxSpeed(maxSpeedDiv);
-                        }
-                        connections.getSwitchOrCrossing().add(sw);
-                    } else if (partner == null) {
-                        if (switchType != null && switchType.equals("double_slip")) {
-                            // @TODO
-                            continue;
-                        }
-                        if (switchType != null && switchType.equals("single_slip")) {
-                            // @TODO
-                            continue;
-                        }
-                        setReferenceLater("switch_" + nd.node.id, sw -> {
-                            for (TSwitchConnectionData swconn : ((ESwitch) sw).getConnection()) {
-                                if (swconn.getRef() != null) continue;
-                                if (swconn.getId().endsWith("_" + nd.node.id + "_" + way.id)) {
-                                    TConnectionData conn = new TConnectionData();
-                                    /*String[] tokens = swconn.getId().split("_");
-                                    if (tokens.length != 4 || !tokens[0].equals("conn")
-                                            || !tokens[2].equals(nd.node.id) || !tokens[3].equals(way.id))
-                                        throw new RuntimeException("wrong id on switch connection: " + swconn.getId());
-                                    conn.setId("conn_" + way.id + "_" + nd.node.id + "_" + tokens[1]);*/
-                                    conn.setId(swconn.getId() + "_cont");
-                                    conn.setRef(swconn);
-                                    beginOrEnd.setConnection(conn);
-                                    swconn.setRef(conn);
-                                    return;
-                                }
-                            }
-                            System.out.println("Error: could not hook up way " + way.id + " to switch " + nd.node.id);
-                        });
-                    }
+        Job(String[] args) throws IOException {
+            options.tagKeys = Conversion.TAG_KEYS;
+            Set<String> railway = null;
+            List<String[]> excluded = new ArrayList<>();
+            for (int i = 0; i < args.length; ++i) {
+                switch (args[i]) {
+                    case "--threads": options.threads = Integer.parseInt(args[++i]); break;
+                    case "--off-heap": options.offHeapNodes = true; break;
+                    case "--join-memory": options.joinMemory = Long.parseLong(args[++i]) << 20; break;
+                    case "--all-tags": options.tagKeys = null; break;
+                    case "--geodesic": geodesicMethod = GeodesicMethod.valueOf(args[++i]); break;
+                    case "--stream": stream = true; break;
+                    case "--compact": pretty = false; break;
+                    case "--gzip": gzip = true; break;
+                    case "--output": output = args[++i]; break;
+                    case "--tiles":
+                        tileSize = Double.parseDouble(args[++i]);
+                        if (!(tileSize > 0.0)) throw new IllegalArgumentException("--tiles must be positive");
+                        break;
+                    case "--normalize": normalize = true; break;
+                    case "--railway": railway = new HashSet<>(Arrays.asList(args[++i].split(","))); break;
+                    case "--exclude": excluded.add(args[++i].split("=", 2)); break;
+                    case "--bbox":
+                        String[] box = args[++i].split(",");
+                        options.region = new Region.BoundingBox(Double.parseDouble(box[0]), Double.parseDouble(box[1]),
+                                Double.parseDouble(box[2]), Double.parseDouble(box[3]));
+                        break;
+                    case "--polygon": options.region = Region.Polygon.read(new File(args[++i])); break;
+                    case "--snapshot": snapshot = args[++i]; break;
+                    case "--apply": apply = args[++i]; break;
+                    case "--cache": options.cache = new File(args[++i]); break;
+                    case "--verbose": verbose = true; break;
+                    case "--report": reportFile = args[++i]; break;
+                    case "--jmx": jmx = true; break;
+                    case "--profile": profile = true; break;
+                    default: input = args[i];
                 }
             }
+            if (apply != null && snapshot == null) throw new IllegalArgumentException("--apply requires --snapshot");
+            if (normalize && snapshot != null)
+                throw new IllegalArgumentException("--normalize cannot be combined with --snapshot");
+            if (apply == null && input == null) throw new IllegalArgumentException("no input file given");
+            if (tileSize > 0.0 && options.joinMemory <= 0)
+                throw new IllegalArgumentException("--tiles requires --join-memory");
+            if (options.joinMemory > 0 && (snapshot != null || normalize || options.cache != null || verbose))
+                throw new IllegalArgumentException(
+                        "--join-memory cannot be combined with --snapshot, --normalize, --cache or --verbose");
+            // built after all options, so --exclude applies whether given before or after --railway
+            WayFilter wayFilter = railway == null && excluded.isEmpty() ? OsmExtract.RAILWAY_WAYS
+                    : new WayFilter(railway);
+            for (String[] tag : excluded) wayFilter.exclude(tag[0], tag[1]);
+            options.wayFilter = wayFilter;
         }
-        return t;
-    };
-
-    // find most probable "partner" at a joining node by computing angles (via geodesic azimuth)
-    private static Way.NodeRef oppositeEnd(Way.NodeRef nd) {
-        return nd.node.wayRefs.stream()
-                .filter(r -> r != nd && r.topologicalPosition() != Way.NodeRef.INTERIOR)
-                .min(Comparator.comparingDouble(nd2 -> Math.cos(nd2.azimuthTowardsWay() - nd.azimuthTowardsWay())))
-                .orElse(null);
-    }
 
-    private static Way.NodeRef mutuallyOppositeEnd(Way.NodeRef nd) {
-        Way.NodeRef other = oppositeEnd(nd);
-        if (other == null || oppositeEnd(other) != nd) return null;
-        return other;
-    }
-
-    // a NodeRef is a canonical place to add elements if it's either an interior node
-    // or the way ID is lexicographically smaller than its partner's (if any)
-    private static boolean isCanonicalNodeRef(Way.NodeRef nd) {
-        if (nd.topologicalPosition() == Way.NodeRef.INTERIOR) return true;
-        Way.NodeRef partner = mutuallyOppositeEnd(nd);
-        return partner == null || partner.way.id.compareTo(nd.way.id) > 0;
-    }
-
-    private final static int INCOMING = 1, OUTGOING = 2, LEFT = 4, RIGHT = 8;
+        /**
+         * @param workers - threads to share with other jobs, or null to start threads for this job only
+         * @param log - where to print the diagnostics (and with --verbose, the nodes and ways read) to
+         */
+        void run(Workers workers, PrintStream log) throws JAXBException, JMException, IOException,
+                XMLStreamException {
+            if (workers != null) {
+                run(workers, true, log);
+            } else try (Workers own = new Workers(options.threads)) {
+                run(own, false, log);
+            }
+        }
 
-    private static int inferSwitchOrientation(Way.NodeRef nd, Way.NodeRef nd2) {
-        double sin = Math.sin((nd.azimuth() - nd2.azimuthTowardsWay()) * 0.5);
-        boolean outgoing = Math.abs(sin) < 0.5;
-        return (outgoing ? OUTGOING : INCOMING) | (sin < 0.0 ^ outgoing ? LEFT: RIGHT);
-    }
+        // shared - whether the workers are shared with other jobs (and are used for decoding input, too)
+        private void run(Workers workers, boolean shared, PrintStream log) throws JAXBException, JMException,
+                IOException, XMLStreamException {
+            if (shared) options.decoders = workers.executor();
+            RunReport report = new RunReport();
+            if (jmx) report.register(id);
+            Profiler profiler = null;
+            try {
+                profiler = profile ? Profiler.start(null) : null;
+                report.setProfiler(profiler);
+                run(workers, report, log);
+                report.end();
+                if (reportFile != null) report.write(new File(reportFile));
+                if (profiler != null) profiler.summarize(log);
+            } finally {
+                // a service keeps running, so the reports and recordings of its jobs must not pile up,
+                // whether they have succeeded or not
+                if (profiler != null) profiler.close();
+                if (jmx && shared) report.unregister();
+            }
+        }
 
-    private static void makeConnection(TConnectionData conn, Way.NodeRef nd, Way.NodeRef other, boolean relink) {
-        makeConnection(conn, nd, other, relink, "conn");
-    }
+        private void run(Workers workers, RunReport report, PrintStream log) throws JAXBException, IOException,
+                XMLStreamException {
+            options.onPhase = report::phase;
+            IncrementalConversion incremental = null;
+            if (apply != null) {
+                report.phase(RunReport.PARSE);
+                incremental = IncrementalConversion.load(new File(snapshot), options.offHeapNodes);
+                report.add("tracksUpdated",
+                        incremental.apply(OsmChange.read(new File(apply)), options, geodesicMethod, report,
+                                workers));
+            } else if (options.joinMemory > 0) {
+                report.phase(RunReport.PARSE);
+                try (ExtractChunks chunks = ExtractChunks.read(new File(input), options, tileSize,
+                        workers.parallelism())) {
+                    report.add("nodes", chunks.nodes());
+                    report.add("ways", chunks.ways());
+                    convert(chunks, report, workers, log);
+                }
+            } else {
+                report.phase(RunReport.PARSE);
+                OsmExtract osm = OsmExtract.fromFile(new File(input), options);
+                report.add("nodes", osm.nodes.size());
+                report.add("ways", osm.ways.size());
+                report.phase(RunReport.GEODESIC);
+                osm.computeGeometry(geodesicMethod, workers);
+                if (verbose) {
+                    for (Node n : osm.nodes)
+                        log.println(n.id() + ": " + n.lat() + "/" + n.lon() + " [" + n.wayRefs().size() + " - " +
+                                (n.wayRefs().isEmpty() ? "" : n.wayRefs().get(0).way.id));
+                    for (Way w : osm.ways)
+                        log.println(w.id + ":" + w.nodeCount() + " - " + w.nodeId(0) + " [" +
+                                w.tags.size() + " - railway:" + w.getTag("railway"));
+                }
+                report.phase(RunReport.JUNCTIONS);
+                osm.junctions(workers);
+                if (normalize) {
+                    report.phase(RunReport.NORMALIZE);
+                    osm = TrackGraph.normalize(osm, workers);
+                    osm.computeGeometry(geodesicMethod, workers);
+                    osm.junctions(workers);
+                    report.add("normalizedWays", osm.ways.size());
+                }
+                if (snapshot != null) {
+                    incremental = IncrementalConversion.convert(osm, report, workers);
+                } else {
+                    convert(osm, report, workers, log);
+                }
+            }
+            if (incremental != null) {
+                report.phase(RunReport.MARSHAL);
+                convert(incremental, log);
+                incremental.save(new File(snapshot));
+            }
+        }
 
-    private static void makeConnection(TConnectionData conn, Way.NodeRef nd, Way.NodeRef other, boolean relink,
-                                       String prefix) {
-        String thisConnId = prefix + "_" + nd.way.id + "_" + nd.node.id + "_" + other.way.id;
-        String thatConnId = prefix + "_" + other.way.id + "_" + nd.node.id + "_" + nd.way.id;
-        setConnectionIdAndRef(conn, thisConnId, thatConnId, relink);
-    }
+        private OutputStream open() throws IOException {
+            OutputStream out = new BufferedOutputStream(
+                    output == null ? new FileOutputStream(FileDescriptor.out) : new FileOutputStream(output), 1 << 16);
+            return gzip ? new GZIPOutputStream(out, 1 << 16) : out;
+        }
 
-    private static void makeConnection(ETrackNode trackNode, Way.NodeRef nd, Way.NodeRef other, boolean relink) {
-        TConnectionData conn = new TConnectionData();
-        makeConnection(conn, nd, other, relink);
-        trackNode.setConnection(conn);
-    }
+        private void close(OutputStream out) throws IOException {
+            if (out instanceof GZIPOutputStream) ((GZIPOutputStream) out).finish();
+            // standard output stays open for the diagnostics
+            if (output == null) out.flush();
+            else out.close();
+        }
 
-    private static void setTrackBeginOrEnd(ETrackNode trackNode, Way.NodeRef nd) {
-        trackNode.setPos(doubleToBigDecimal(nd.position(), 6));
-        if (nd.node.wayRefs.size() == 1) {
-            // start/end node is only contained in this way -> no connection, "border" of infrastructure
-            String nodeType = nd.node.getTag("railway");
-            if (nodeType != null && nodeType.equals("buffer_stop")) {
-                TBufferStop bufferStop = new TBufferStop();
-                bufferStop.setId("bufferStop_" + nd.node.id);
-                trackNode.setBufferStop(bufferStop);
+        private void convert(OsmExtract osm, RunReport report, Workers workers, PrintStream log)
+                throws IOException, JAXBException, XMLStreamException {
+            Conversion conversion = new Conversion(report, workers);
+            OutputStream out = open();
+            if (stream) {
+                log.flush();
+                report.phase(RunReport.MARSHAL);
+                RailmlWriter writer = new RailmlWriter(out, "is", pretty);
+                // tracks are marshalled while converting, so this is accounted to the conversion phases
+                conversion.convert(osm, writer);
+                report.phase(RunReport.MARSHAL);
+                writer.close();
             } else {
-                TOpenEnd openEnd = new TOpenEnd();
-                openEnd.setId("openEnd_" + nd.node.id);
-                trackNode.setOpenEnd(openEnd);
+                ComponentConversion components = new ComponentConversion(report, workers);
+                Infrastructure is = components.convert(osm);
+                for (Linker.Diagnostic d : components.diagnostics())
+                    log.println("Error: " + d);
+                report.phase(RunReport.MARSHAL);
+                Marshaller marshaller = RailmlWriter.context().createMarshaller();
+                // SchemaFactory schemaFactory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+                // Schema schema = schemaFactory.newSchema(
+                //          new URL("http://www.railml.org/files/download/schemas/2016/railML-2.3/schema/infrastructure.xsd"));
+                // marshaller.setSchema(schema);
+                marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, pretty);
+                log.flush();
+                marshaller.marshal(is, out);
             }
+            close(out);
+            if (stream) for (Linker.Diagnostic d : conversion.diagnostics())
+                log.println("Error: " + d);
         }
-    }
 
-    // some railML objects that need to be referenced may not have been created before, so we need to
-    // add those references after they have been created (e.g. after everything is created),
-    // so we maintain a "registry" HashMap (objectById) and a "to do" list per ID (referencesToBeSet).
-    // these are realised as "callback" closures so we do not need to remember and reflect on which field
-    // of the referencing object the reference must be set
-    private static Map<String, Object> objectById = Collections.synchronizedMap(new HashMap<>());
-    private static Map<String, List<Consumer<Object>>> referencesToBeSet = Collections.synchronizedMap(new HashMap<>());
-    private static void setReferenceLater(String id, Consumer<Object> c) {
-        Object o = objectById.get(id);
-        // bad idea for parallel execution
-        /*if (o != null) {
-            c.accept(o);
-            return;
-        }*/
-        referencesToBeSet.computeIfAbsent(id, k -> Collections.synchronizedList(new LinkedList<Consumer<Object>>()))
-                .add(c);
+        private void convert(ExtractChunks chunks, RunReport report, Workers workers, PrintStream log)
+                throws IOException, JAXBException, XMLStreamException {
+            OutputStream out = open();
+            log.flush();
+            report.phase(RunReport.MARSHAL);
+            RailmlWriter writer = new RailmlWriter(out, "is", pretty);
+            List<Linker.Diagnostic> diagnostics;
+            if (tileSize > 0.0) {
+                TiledConversion conversion = new TiledConversion(report, workers);
+                conversion.convert(chunks, geodesicMethod, writer);
+                diagnostics = conversion.diagnostics();
+            } else {
+                ChunkedConversion conversion = new ChunkedConversion(report, workers);
+                conversion.convert(chunks, geodesicMethod, writer);
+                diagnostics = conversion.diagnostics();
+            }
+            report.phase(RunReport.MARSHAL);
+            writer.close();
+            close(out);
+            for (Linker.Diagnostic d : diagnostics)
+                log.println("Error: " + d);
+        }
 
-    }
+        private void convert(IncrementalConversion incremental, PrintStream log)
+                throws IOException, JAXBException, XMLStreamException {
+            OutputStream out = open();
+            log.flush();
+            RailmlWriter writer = new RailmlWriter(out, "is", pretty);
+            incremental.write(writer);
+            writer.close();
+            close(out);
+            for (Linker.Diagnostic d : incremental.diagnostics())
+                log.println("Error: " + d);
+        }
 
-    private static void setConnectionIdAndRef(TConnectionData conn, String thisConnId, String thatConnId,
-                                              boolean relink) {
-        conn.setId(thisConnId);
-        objectById.put(thisConnId, conn);
-        if (relink) setReferenceLater(thatConnId, ref -> conn.setRef(ref));
     }
 
 }
@@ -0,0 +1,318 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016-2017  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package com.sebalbert.osm2railml;
+
+import com.sebalbert.osm2railml.osm.Junctions;
+import com.sebalbert.osm2railml.osm.Way;
+import jdk.jfr.Category;
+import jdk.jfr.Configuration;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.StackTrace;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.ParseException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Profiling of a run with JDK Flight Recorder (c.f. --profile): a recording with the "profile" settings
+ * (execution samples and allocations with stack traces, recorded per TLAB up to JDK 15 and as weighted samples
+ * from JDK 16 on) is started, along with events of this converter for each phase of the RunReport, the conversion
+ * of each way (with its number of nodes and switches) and each junction.
+ * When it is stopped, the recording is kept in a file (for Java Mission Control) and summarised: the phases,
+ * the slowest ways and junctions, the biggest allocation sites and the hottest methods.
+ *
+ * Only this class refers to the Flight Recorder API (in JDK 8 since update 262), so runs without profiling
+ * do not need it.
+ */
+public class Profiler implements AutoCloseable {
+
+    // entries per table of the summary
+    static final int TOP = 10;
+    private static final String PACKAGE = "com.sebalbert.osm2railml.";
+
+    @Name("com.sebalbert.osm2railml.Phase")
+    @Label("Phase")
+    @Category("osm2railML")
+    @StackTrace(false)
+    static class PhaseEvent extends Event {
+
+        @Label("Phase")
+        String phase;
+
+    }
+
+    @Name("com.sebalbert.osm2railml.Way")
+    @Label("Way to Track")
+    @Category("osm2railML")
+    @StackTrace(false)
+    static class WayEvent extends Event {
+
+        @Label("Way")
+        long way;
+
+        @Label("Nodes")
+        int nodes;
+
+        @Label("Switches")
+        int switches;
+
+    }
+
+    @Name("com.sebalbert.osm2railml.Junction")
+    @Label("Junction")
+    @Category("osm2railML")
+    @StackTrace(false)
+    static class JunctionEvent extends Event {
+
+        @Label("Node")
+        long node;
+
+        @Label("Kind")
+        String kind;
+
+        @Label("Way")
+        long way;
+
+    }
+
+    private final Recording recording;
+    private final File file;
+    // the event of the current phase (only touched by RunReport, which synchronizes)
+    private PhaseEvent phase = null;
+
+    private Profiler(Recording recording, File file) {
+        this.recording = recording;
+        this.file = file;
+    }
+
+    /**
+     * Start a recording
+     * @param file - where to keep the recording, or null for a temporary file
+     * @throws IllegalStateException - if the Flight Recorder is not available in this JVM
+     */
+    public static Profiler start(File file) throws IOException {
+        if (!FlightRecorder.isAvailable()) throw new IllegalStateException("Flight Recorder not available");
+        Recording recording;
+        try {
+            recording = new Recording(Configuration.getConfiguration("profile"));
+        } catch (ParseException e) {
+            throw new IOException(e);
+        }
+        recording.enable(PhaseEvent.class);
+        recording.enable(WayEvent.class);
+        recording.enable(JunctionEvent.class);
+        recording.setName("osm2railml");
+        if (file == null) file = File.createTempFile("osm2railml", ".jfr");
+        recording.setDestination(file.toPath());
+        recording.start();
+        return new Profiler(recording, file);
+    }
+
+    /**
+     * End the event of the current phase (if any) and begin one for the given phase (if not null), c.f. RunReport
+     */
+    void phase(String name) {
+        if (phase != null) phase.commit();
+        phase = null;
+        if (name == null) return;
+        phase = new PhaseEvent();
+        phase.phase = name;
+        phase.begin();
+    }
+
+    /**
+     * Convert a way, recording it with its number of nodes and switches
+     */
+    <T> T way(Junctions junctions, Way way, Supplier<T> conversion) {
+        WayEvent event = new WayEvent();
+        event.begin();
+        T result = conversion.get();
+        event.end();
+        if (event.shouldCommit()) {
+            event.way = way.id;
+            event.nodes = way.nodeCount();
+            for (int i = 0; i < way.nodeCount(); ++i) {
+                Junctions.Kind kind = junctions.kind(way, i);
+                if (kind == Junctions.Kind.SWITCH || kind == Junctions.Kind.SINGLE_SLIP ||
+                        kind == Junctions.Kind.DOUBLE_SLIP)
+                    ++event.switches;
+            }
+            event.commit();
+        }
+        return result;
+    }
+
+    /**
+     * Handle a junction of a way, recording it
+     */
+    void junction(Way way, long node, Junctions.Kind kind, Runnable handling) {
+        JunctionEvent event = new JunctionEvent();
+        event.begin();
+        handling.run();
+        event.end();
+        if (event.shouldCommit()) {
+            event.node = node;
+            event.kind = kind.name();
+            event.way = way.id;
+            event.commit();
+        }
+    }
+
+    /**
+     * Stop the recording, which is then written to its file
+     */
+    @Override
+    public void close() {
+        phase(null);
+        recording.close();
+    }
+
+    /**
+     * @return - the file the recording is kept in
+     */
+    public File file() {
+        return file;
+    }
+
+    private static class Total {
+
+        long count, amount;
+
+    }
+
+    /**
+     * Stop the recording (if not done yet) and print a summary of it
+     */
+    public void summarize(PrintStream out) throws IOException {
+        close();
+        Map<String, Total> phases = new LinkedHashMap<>(), allocations = new HashMap<>(), samples = new HashMap<>();
+        List<RecordedEvent> ways = new ArrayList<>(), junctions = new ArrayList<>();
+        try (RecordingFile events = new RecordingFile(file.toPath())) {
+            while (events.hasMoreEvents()) {
+                RecordedEvent e = events.readEvent();
+                switch (e.getEventType().getName()) {
+                    case "com.sebalbert.osm2railml.Phase":
+                        add(phases, e.getString("phase"), e.getDuration().toNanos());
+                        break;
+                    case "com.sebalbert.osm2railml.Way":
+                        keepSlowest(ways, e);
+                        break;
+                    case "com.sebalbert.osm2railml.Junction":
+                        keepSlowest(junctions, e);
+                        break;
+                    case "jdk.ObjectAllocationInNewTLAB":
+                        add(allocations, site(e.getStackTrace()), e.getLong("tlabSize"));
+                        break;
+                    case "jdk.ObjectAllocationOutsideTLAB":
+                        add(allocations, site(e.getStackTrace()), e.getLong("allocationSize"));
+                        break;
+                    // instead of the two above from JDK 16 on, where the "profile" settings turn those off
+                    case "jdk.ObjectAllocationSample":
+                        add(allocations, site(e.getStackTrace()), e.getLong("weight"));
+                        break;
+                    case "jdk.ExecutionSample":
+                        add(samples, site(e.getStackTrace()), 1);
+                        break;
+                    default:
+                }
+            }
+        }
+        out.println("Profile (recording in " + file + "):");
+        out.println("  phases:");
+        phases.forEach((name, t) -> out.println(String.format(Locale.ROOT, "    %-12s %10.3f ms", name, t.amount / 1e6)));
+        out.println("  slowest ways:");
+        for (RecordedEvent e : ways)
+            out.println(String.format(Locale.ROOT, "    way %-12d %10.3f ms  %6d nodes  %4d switches",
+                    e.getLong("way"), millis(e.getDuration()), e.getInt("nodes"), e.getInt("switches")));
+        out.println("  slowest junctions:");
+        for (RecordedEvent e : junctions)
+            out.println(String.format(Locale.ROOT, "    node %-12d %10.3f ms  %-11s on way %d",
+                    e.getLong("node"), millis(e.getDuration()), e.getString("kind"), e.getLong("way")));
+        out.println("  biggest allocation sites (sampled, by bytes allocated as estimated by the samples):");
+        top(allocations).forEach(e -> out.println(String.format(Locale.ROOT, "    %10.1f MiB  %s",
+                e.getValue().amount / (double) (1 << 20), e.getKey())));
+        out.println("  hottest methods (execution samples):");
+        top(samples).forEach(e -> out.println(String.format(Locale.ROOT, "    %10d  %s",
+                e.getValue().amount, e.getKey())));
+    }
+
+    private static double millis(Duration d) {
+        return d.toNanos() / 1e6;
+    }
+
+    private static void add(Map<String, Total> totals, String key, long amount) {
+        Total t = totals.computeIfAbsent(key, k -> new Total());
+        ++t.count;
+        t.amount += amount;
+    }
+
+    // keep the TOP events with the longest durations, longest first
+    private static void keepSlowest(List<RecordedEvent> slowest, RecordedEvent e) {
+        if (slowest.size() == TOP && e.getDuration().compareTo(slowest.get(TOP - 1).getDuration()) <= 0) return;
+        int i = slowest.size();
+        while (i > 0 && e.getDuration().compareTo(slowest.get(i - 1).getDuration()) > 0) --i;
+        slowest.add(i, e);
+        if (slowest.size() > TOP) slowest.remove(TOP);
+    }
+
+    private static List<Map.Entry<String, Total>> top(Map<String, Total> totals) {
+        List<Map.Entry<String, Total>> entries = new ArrayList<>(totals.entrySet());
+        entries.sort(Comparator.<Map.Entry<String, Total>>comparingLong(e -> e.getValue().amount).reversed()
+                .thenComparing(Map.Entry::getKey));
+        return entries.subList(0, Math.min(TOP, entries.size()));
+    }
+
+    // the top frame of a stack trace, and the innermost frame of this converter below it (if it is not the top one)
+    private static String site(RecordedStackTrace stackTrace) {
+        if (stackTrace == null || stackTrace.getFrames().isEmpty()) return "(unknown)";
+        List<RecordedFrame> frames = stackTrace.getFrames();
+        String top = frame(frames.get(0));
+        if (top.startsWith(PACKAGE)) return top;
+        for (RecordedFrame f : frames) {
+            String own = frame(f);
+            if (own.startsWith(PACKAGE)) return top + " <- " + own;
+        }
+        return top;
+    }
+
+    private static String frame(RecordedFrame f) {
+        // frames of the JVM itself may lack a method or type
+        if (f.getMethod() == null || f.getMethod().getType() == null) return "(unknown)";
+        return f.getMethod().getType().getName() + "." + f.getMethod().getName() + ":" + f.getLineNumber();
+    }
+
+}
@@ -0,0 +1,172 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016-2017  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package com.sebalbert.osm2railml;
+
+import com.sebalbert.osm2railml.osm.Way;
+
+/**
+ * ID of a railML object created by a Conversion, held as the kind of object and the OSM IDs it is derived from,
+ * so that references can be linked by numbers; the railML ID string is made by toString().
+ *
+ * Not packed into a long, as a connection needs two ways (with their parts) and a node, each a full 64-bit OSM ID.
+ */
+final class RailmlId implements Comparable<RailmlId> {
+
+    enum Kind {
+
+        // w_<way>, tB_<way>, tE_<way>, where <way> is the OSM ID followed by .<part> for parts after the first
+        TRACK("w_", "", 1), TRACK_BEGIN("tB_", "", 1), TRACK_END("tE_", "", 1),
+        // switch_<node>, crossing_<way>_<node>
+        SWITCH("switch_", "", 1), CROSSING("crossing_", "", 2),
+        // <prefix>_<way>_<node>_<other way>, where a way that passes the node for the n-th time (n > 1, c.f.
+        // Way.NodeRef.visit()) is followed by -<n>
+        CONNECTION("conn_", "", 3), CONTINUATION("conn_", "_cont", 3), CROSSING_CONNECTION("crossing_conn_", "", 3);
+
+        final String prefix, suffix;
+        final int parts;
+
+        Kind(String prefix, String suffix, int parts) {
+            this.prefix = prefix;
+            this.suffix = suffix;
+            this.parts = parts;
+        }
+
+    }
+
+    final Kind kind;
+    // OSM IDs, and the parts (c.f. Way.part) of the ways among them and their visits to the node of a connection
+    private final long a, b, c;
+    private final int aPart, cPart, aVisit, cVisit;
+
+    private RailmlId(Kind kind, long a, int aPart, long b, long c, int cPart) {
+        this(kind, a, aPart, 0, b, c, cPart, 0);
+    }
+
+    private RailmlId(Kind kind, long a, int aPart, int aVisit, long b, long c, int cPart, int cVisit) {
+        this.kind = kind;
+        this.a = a;
+        this.aPart = aPart;
+        this.aVisit = aVisit;
+        this.b = b;
+        this.c = c;
+        this.cPart = cPart;
+        this.cVisit = cVisit;
+    }
+
+    static RailmlId track(Way way) {
+        return new RailmlId(Kind.TRACK, way.id, way.part, 0, 0, 0);
+    }
+
+    static RailmlId trackBegin(Way way) {
+        return new RailmlId(Kind.TRACK_BEGIN, way.id, way.part, 0, 0, 0);
+    }
+
+    static RailmlId trackEnd(Way way) {
+        return new RailmlId(Kind.TRACK_END, way.id, way.part, 0, 0, 0);
+    }
+
+    static RailmlId switchAt(long node) {
+        return new RailmlId(Kind.SWITCH, node, 0, 0, 0, 0);
+    }
+
+    static RailmlId crossing(Way way, long node) {
+        return new RailmlId(Kind.CROSSING, way.id, way.part, node, 0, 0);
+    }
+
+    /**
+     * @return - ID of the connection of a way at a node towards another way (with the given kind of connection)
+     */
+    static RailmlId connection(Kind kind, Way way, long node, Way otherWay) {
+        return new RailmlId(kind, way.id, way.part, node, otherWay.id, otherWay.part);
+    }
+
+    /**
+     * @return - ID of the connection of a way at one of its nodes towards another way at the same node, telling
+     * the passes of ways through the node apart (where a way runs through it more than once)
+     */
+    static RailmlId connection(Kind kind, Way.NodeRef nd, Way.NodeRef other) {
+        return new RailmlId(kind, nd.way.id, nd.way.part, nd.visit(), nd.node().id(), other.way.id, other.way.part,
+                other.visit());
+    }
+
+    /**
+     * @return - ID of the connection in the opposite direction, i.e. from the other way to the way
+     */
+    RailmlId reverse() {
+        return new RailmlId(kind, c, cPart, cVisit, b, a, aPart, aVisit);
+    }
+
+    /**
+     * @return - ID of the connection by which the way of a switch connection continues from the switch
+     */
+    RailmlId continuation() {
+        return new RailmlId(Kind.CONTINUATION, a, aPart, aVisit, b, c, cPart, cVisit);
+    }
+
+    @Override
+    public int compareTo(RailmlId o) {
+        int cmp = kind.compareTo(o.kind);
+        if (cmp == 0) cmp = Long.compare(a, o.a);
+        if (cmp == 0) cmp = Integer.compare(aPart, o.aPart);
+        if (cmp == 0) cmp = Integer.compare(aVisit, o.aVisit);
+        if (cmp == 0) cmp = Long.compare(b, o.b);
+        if (cmp == 0) cmp = Long.compare(c, o.c);
+        if (cmp == 0) cmp = Integer.compare(cPart, o.cPart);
+        if (cmp == 0) cmp = Integer.compare(cVisit, o.cVisit);
+        return cmp;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof RailmlId)) return false;
+        RailmlId id = (RailmlId) o;
+        return kind == id.kind && a == id.a && aPart == id.aPart && aVisit == id.aVisit && b == id.b && c == id.c &&
+                cPart == id.cPart && cVisit == id.cVisit;
+    }
+
+    @Override
+    public int hashCode() {
+        long h = kind.ordinal();
+        h = h * 0x9e3779b97f4a7c15L + a;
+        h = h * 0x9e3779b97f4a7c15L + aPart;
+        h = h * 0x9e3779b97f4a7c15L + aVisit;
+        h = h * 0x9e3779b97f4a7c15L + b;
+        h = h * 0x9e3779b97f4a7c15L + c;
+        h = h * 0x9e3779b97f4a7c15L + cPart;
+        h = h * 0x9e3779b97f4a7c15L + cVisit;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    // parts other than the first are appended with a dot and passes other than the first with a dash,
+    // which OSM IDs never contain, so IDs stay unique
+    private static StringBuilder append(StringBuilder s, long id, int part, int visit) {
+        s.append(id);
+        if (part != 0) s.append('.').append(part);
+        return visit == 0 ? s : s.append('-').append(visit + 1);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = append(new StringBuilder(kind.prefix), a, aPart, aVisit);
+        if (kind.parts > 1) s.append('_').append(b);
+        if (kind.parts > 2) append(s.append('_'), c, cPart, cVisit);
+        return s.append(kind.suffix).toString();
+    }
+
+}
@@ -0,0 +1,156 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016-2017  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package com.sebalbert.osm2railml;
+
+import org.railml.schemas._2016.ETrack;
+import org.railml.schemas._2016.Infrastructure;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+
+/**
+ * Writes railML infrastructure track by track, so the tracks need not be held in memory all at once.
+ *
+ * The envelope (infrastructure and tracks elements) is written with StAX, each track is marshalled as a
+ * fragment into the same XMLStreamWriter. Pretty printing is optional; without it, nothing but the
+ * markup itself is written.
+ */
+public class RailmlWriter implements Conversion.TrackSink {
+
+    // creating the JAXB context is expensive, and it is thread-safe, so it is shared by all writers
+    private static JAXBContext context;
+    private static final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+
+    static synchronized JAXBContext context() throws JAXBException {
+        if (context == null) context = JAXBContext.newInstance(Infrastructure.class);
+        return context;
+    }
+
+    private static final XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+
+    private final XMLStreamWriter out;
+    private final Marshaller marshaller;
+    private final QName trackName;
+
+    /**
+     * Start writing a railML document; the stream should be buffered, and is not closed by close()
+     * @param stream - where to write the document to
+     * @param id - ID of the infrastructure element
+     * @param pretty - whether to indent the output
+     */
+    public RailmlWriter(OutputStream stream, String id, boolean pretty) throws JAXBException, XMLStreamException {
+        trackName = trackName();
+        String ns = trackName.getNamespaceURI();
+        marshaller = fragmentMarshaller();
+        XMLStreamWriter writer = outputFactory.createXMLStreamWriter(stream, "UTF-8");
+        out = pretty ? new IndentingXMLStreamWriter(writer) : writer;
+        out.writeStartDocument("UTF-8", "1.0");
+        out.setDefaultNamespace(ns);
+        out.writeStartElement(ns, "infrastructure");
+        out.writeDefaultNamespace(ns);
+        out.writeAttribute("id", id);
+        out.writeStartElement(ns, "tracks");
+    }
+
+    static QName trackName() throws JAXBException {
+        String ns = context().createJAXBIntrospector().getElementName(new Infrastructure()).getNamespaceURI();
+        return new QName(ns, "track");
+    }
+
+    /**
+     * @return - a marshaller for single tracks (c.f. fragment())
+     */
+    static Marshaller fragmentMarshaller() throws JAXBException {
+        Marshaller marshaller = context().createMarshaller();
+        marshaller.setProperty(Marshaller.JAXB_FRAGMENT, true);
+        return marshaller;
+    }
+
+    /**
+     * @return - the track marshalled on its own, for writing it later with write(byte[])
+     */
+    static byte[] fragment(Marshaller marshaller, QName trackName, ETrack track) throws JAXBException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        marshaller.marshal(new JAXBElement<>(trackName, ETrack.class, track), out);
+        return out.toByteArray();
+    }
+
+    @Override
+    public void write(ETrack track) throws JAXBException {
+        marshaller.marshal(new JAXBElement<>(trackName, ETrack.class, track), out);
+    }
+
+    /**
+     * Write a track marshalled before (c.f. fragment()), copying its markup event by event
+     */
+    public void write(byte[] fragment) throws XMLStreamException {
+        XMLStreamReader r = inputFactory.createXMLStreamReader(new ByteArrayInputStream(fragment), "UTF-8");
+        while (r.hasNext()) {
+            switch (r.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    String prefix = r.getPrefix() == null ? "" : r.getPrefix();
+                    out.writeStartElement(prefix, r.getLocalName(), r.getNamespaceURI());
+                    for (int i = 0; i < r.getNamespaceCount(); ++i) {
+                        // the namespaces of the envelope are declared already
+                        String p = r.getNamespacePrefix(i) == null ? "" : r.getNamespacePrefix(i);
+                        if (r.getNamespaceURI(i).equals(out.getNamespaceContext().getNamespaceURI(p))) continue;
+                        out.writeNamespace(p, r.getNamespaceURI(i));
+                    }
+                    for (int i = 0; i < r.getAttributeCount(); ++i) {
+                        String ns = r.getAttributeNamespace(i);
+                        if (ns == null || ns.isEmpty()) out.writeAttribute(r.getAttributeLocalName(i),
+                                r.getAttributeValue(i));
+                        else out.writeAttribute(r.getAttributePrefix(i), ns, r.getAttributeLocalName(i),
+                                r.getAttributeValue(i));
+                    }
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    out.writeEndElement();
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                    out.writeCharacters(r.getText());
+                    break;
+            }
+        }
+        r.close();
+    }
+
+    /**
+     * Finish the document and flush it to the stream
+     */
+    public void close() throws XMLStreamException {
+        out.writeEndDocument();
+        out.writeCharacters("\n");
+        out.flush();
+    }
+
+}
@@ -0,0 +1,197 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016-2017  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package com.sebalbert.osm2railml;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of a run: wall time and allocated bytes per phase, and counters (e.g. of switches created).
+ *
+ * Phases are consecutive: starting a phase ends the previous one, and a phase started more than once
+ * accumulates. Allocation is summed over all live threads (as far as the JVM supports measuring it),
+ * so it includes parallel work, but not the work of threads that ended during the phase.
+ * Counters can be incremented concurrently.
+ * With a Profiler, phases (and the conversion of ways) are recorded as Flight Recorder events, too.
+ */
+public class RunReport implements RunReportMXBean {
+
+    public static final String PARSE = "parse", INDEX = "index", GEODESIC = "geodesic",
+            JUNCTIONS = "junctions", NORMALIZE = "normalize", TRACKS = "tracks",
+            RESOLVE = "resolve", MARSHAL = "marshal";
+
+    private static class Phase {
+
+        long wallNanos, allocatedBytes;
+
+    }
+
+    private final Map<String, Phase> phases = new LinkedHashMap<>();
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private String current = null;
+    // as registered with the MBean server
+    private ObjectName name = null;
+    private long start, startAllocated;
+    private volatile Profiler profiler = null;
+
+    /**
+     * End the current phase (if any) and start the given one
+     */
+    public synchronized void phase(String name) {
+        end();
+        current = name;
+        if (profiler != null) profiler.phase(name);
+        startAllocated = allocatedBytes();
+        start = System.nanoTime();
+    }
+
+    /**
+     * End the current phase (if any)
+     */
+    public synchronized void end() {
+        if (current == null) return;
+        long wall = System.nanoTime() - start;
+        Phase p = phases.computeIfAbsent(current, k -> new Phase());
+        p.wallNanos += wall;
+        long allocated = allocatedBytes();
+        if (allocated >= 0 && startAllocated >= 0) p.allocatedBytes += allocated - startAllocated;
+        current = null;
+        if (profiler != null) profiler.phase(null);
+    }
+
+    /**
+     * Record the phases from now on, and the conversion of ways and junctions, with a profiler (or none, if null)
+     */
+    public void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+    }
+
+    public Profiler profiler() {
+        return profiler;
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) return -1;
+        com.sun.management.ThreadMXBean t = (com.sun.management.ThreadMXBean) threads;
+        if (!t.isThreadAllocatedMemorySupported() || !t.isThreadAllocatedMemoryEnabled()) return -1;
+        long sum = 0;
+        for (long bytes : t.getThreadAllocatedBytes(t.getAllThreadIds())) if (bytes > 0) sum += bytes;
+        return sum;
+    }
+
+    public void count(String counter) {
+        add(counter, 1);
+    }
+
+    public void add(String counter, long n) {
+        counters.computeIfAbsent(counter, k -> new LongAdder()).add(n);
+    }
+
+    public long get(String counter) {
+        LongAdder adder = counters.get(counter);
+        return adder == null ? 0 : adder.sum();
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> result = new TreeMap<>();
+        counters.forEach((k, v) -> result.put(k, v.sum()));
+        return result;
+    }
+
+    @Override
+    public synchronized Map<String, Double> getPhaseMillis() {
+        Map<String, Double> result = new LinkedHashMap<>();
+        phases.forEach((k, v) -> result.put(k, v.wallNanos / 1e6));
+        return result;
+    }
+
+    @Override
+    public synchronized Map<String, Long> getPhaseAllocatedBytes() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        phases.forEach((k, v) -> result.put(k, v.allocatedBytes));
+        return result;
+    }
+
+    /**
+     * @return - the phases (in the order first started) and counters (sorted by name) as a JSON object
+     */
+    public synchronized String toJson() {
+        StringBuilder json = new StringBuilder("{\n  \"phases\": {");
+        String separator = "\n";
+        for (Map.Entry<String, Phase> e : phases.entrySet()) {
+            json.append(separator).append("    ").append(quote(e.getKey()))
+                    .append(String.format(Locale.ROOT, ": {\"wallMillis\": %.3f, \"allocatedBytes\": %d}",
+                            e.getValue().wallNanos / 1e6, e.getValue().allocatedBytes));
+            separator = ",\n";
+        }
+        json.append(phases.isEmpty() ? "},\n" : "\n  },\n").append("  \"counters\": {");
+        separator = "\n";
+        for (Map.Entry<String, Long> e : getCounters().entrySet()) {
+            json.append(separator).append("    ").append(quote(e.getKey())).append(": ").append(e.getValue());
+            separator = ",\n";
+        }
+        return json.append(counters.isEmpty() ? "}\n}\n" : "\n  }\n}\n").toString();
+    }
+
+    private static String quote(String s) {
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    public void write(File file) throws IOException {
+        Files.write(file.toPath(), toJson().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Expose this report as an MXBean (com.sebalbert.osm2railml:type=RunReport,job=...) in the platform
+     * MBean server, so the reports of jobs run in the same JVM can be told apart
+     * @param job - number of the job (c.f. BatchService)
+     */
+    public void register(int job) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        name = new ObjectName("com.sebalbert.osm2railml:type=RunReport,job=" + job);
+        if (server.isRegistered(name)) server.unregisterMBean(name);
+        server.registerMBean(this, name);
+    }
+
+    /**
+     * Remove this report from the platform MBean server again (if it has been registered)
+     */
+    public void unregister() throws JMException {
+        if (name == null) return;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(name)) server.unregisterMBean(name);
+        name = null;
+    }
+
+}
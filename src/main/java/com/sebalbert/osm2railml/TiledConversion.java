@@ -0,0 +1,190 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016-2017  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package com.sebalbert.osm2railml;
+
+import com.sebalbert.osm2railml.osm.ExtractChunks;
+import com.sebalbert.osm2railml.osm.GeodesicMethod;
+import com.sebalbert.osm2railml.osm.Junctions;
+import org.railml.schemas._2016.ETrack;
+
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamException;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Conversion of OSM data in spatial tiles, read in chunks of one tile each (c.f. ExtractChunks), so neither the ways
+ * nor the tracks are held in memory as a whole.
+ *
+ * As many tiles as there are threads are converted at a time, each in one task with its own Linker, so there is no
+ * registry shared by the threads. A tile needs nothing from the others: the stubs of the ways of other tiles at its
+ * nodes are converted along with its ways (counted in a report of their own), and as all IDs are derived from OSM
+ * IDs only (c.f. RailmlId), the objects they register are those that the tracks of the tile refer to across its
+ * border. So stitching takes no more than the stubs at the border. Diagnostics are kept as in ChunkedConversion.
+ *
+ * The tracks are marshalled in the tasks and written to a temporary file, with the position of each in a
+ * memory-mapped index by way, and then copied to the output in the order of their ways. Thus tracks, diagnostics
+ * and counters are the same as with a single Conversion.
+ */
+public class TiledConversion
+{
+
+    private final RunReport report;
+    private final Workers workers;
+    private List<Linker.Diagnostic> diagnostics = Collections.emptyList();
+
+    /**
+     * @param report - for phases (tracks, marshal) and counters, c.f. Conversion
+     * @param workers - threads for converting tiles, each within one task
+     */
+    public TiledConversion(RunReport report, Workers workers) {
+        this.report = report;
+        this.workers = workers;
+    }
+
+    // a tile converted: its tracks marshalled, and the diagnostics found
+    private static class Tile {
+
+        final ExtractChunks.Chunk chunk;
+        byte[][] fragments;
+        List<Linker.Diagnostic> owned = new ArrayList<>();
+        Map<Linker.Diagnostic, Integer> duplicates = new HashMap<>();
+
+        Tile(ExtractChunks.Chunk chunk) {
+            this.chunk = chunk;
+        }
+
+    }
+
+    /**
+     * Create railML tracks from OSM data, tile by tile
+     * @param chunks - the OSM data to convert, read in tiles (c.f. ExtractChunks.read()) by as many chunks at a time
+     *               as the workers have threads, whose chunks are read (once) by this
+     * @param method - how to compute the geometry of the ways
+     * @param writer - receives the tracks, in the order of their ways
+     */
+    public void convert(ExtractChunks chunks, GeodesicMethod method, RailmlWriter writer)
+            throws IOException, JAXBException, XMLStreamException {
+        QName trackName = RailmlWriter.trackName();
+        List<Linker.Diagnostic> owned = new ArrayList<>();
+        Map<Linker.Diagnostic, Integer> duplicates = new HashMap<>();
+        File spill = temporary("tracks"), index = temporary("index");
+        try (RandomAccessFile indexAccess = new RandomAccessFile(index, "rw")) {
+            // per way: the position of its track in the spill file
+            LongBuffer positions = indexAccess.getChannel()
+                    .map(FileChannel.MapMode.READ_WRITE, 0, 8L * chunks.ways()).asLongBuffer();
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(spill), 1 << 16))) {
+                List<Tile> batch = new ArrayList<>();
+                long position = 0;
+                for (ExtractChunks.Chunk chunk; ; ) {
+                    batch.clear();
+                    while (batch.size() < workers.parallelism() && (chunk = chunks.next()) != null)
+                        batch.add(new Tile(chunk));
+                    if (batch.isEmpty()) break;
+                    report.phase(RunReport.TRACKS);
+                    workers.forEach(batch, tile -> tile.chunk.ways.size(), tile -> convert(tile, method, trackName));
+                    report.phase(RunReport.MARSHAL);
+                    for (Tile tile : batch) {
+                        for (int i = 0; i < tile.fragments.length; ++i) {
+                            positions.put(tile.chunk.positions[i], position);
+                            out.writeInt(tile.fragments[i].length);
+                            out.write(tile.fragments[i]);
+                            position += 4 + tile.fragments[i].length;
+                        }
+                        owned.addAll(tile.owned);
+                        tile.duplicates.forEach((d, n) -> duplicates.merge(d, n, Math::max));
+                    }
+                }
+            }
+            report.phase(RunReport.MARSHAL);
+            try (RandomAccessFile tracks = new RandomAccessFile(spill, "r")) {
+                for (int i = 0; i < chunks.ways(); ++i) {
+                    tracks.seek(positions.get(i));
+                    byte[] fragment = new byte[tracks.readInt()];
+                    tracks.readFully(fragment);
+                    writer.write(fragment);
+                }
+            }
+        } finally {
+            spill.delete();
+            index.delete();
+        }
+        List<Linker.Diagnostic> sorted = new ArrayList<>(owned);
+        duplicates.forEach((d, n) -> sorted.addAll(Collections.nCopies(n, d)));
+        sorted.sort(Linker.Diagnostic.ORDER);
+        diagnostics = sorted;
+        report.add("tiles", chunks.tiles());
+        report.add("chunks", chunks.chunks());
+        Conversion.countDiagnostics(report, sorted);
+    }
+
+    private static File temporary(String name) throws IOException {
+        File file = File.createTempFile("osm2railml-" + name, ".bin");
+        file.deleteOnExit();
+        return file;
+    }
+
+    // convert a tile in the calling thread, with a Linker of its own, and marshal its tracks
+    private void convert(Tile tile, GeodesicMethod method, QName trackName) {
+        ExtractChunks.Chunk chunk = tile.chunk;
+        chunk.osm.computeGeometry(method, Workers.CALLER);
+        Junctions junctions = chunk.osm.junctions(Workers.CALLER);
+        Linker<RailmlId> linker = new Linker<>(Workers.CALLER);
+        new Conversion(new RunReport(), Workers.CALLER, linker).convertWays(junctions, chunk.context);
+        List<ETrack> tracks = new Conversion(report, Workers.CALLER, linker).convertWays(junctions, chunk.ways);
+        Set<Object> own = Collections.newSetFromMap(new IdentityHashMap<>());
+        own.addAll(tracks);
+        for (Linker.Diagnostic d : linker.resolve()) {
+            if (d.owner == null) tile.duplicates.merge(d, 1, Integer::sum);
+            else if (own.contains(d.owner)) tile.owned.add(d);
+        }
+        try {
+            Marshaller marshaller = RailmlWriter.fragmentMarshaller();
+            tile.fragments = new byte[tracks.size()][];
+            for (int i = 0; i < tracks.size(); ++i)
+                tile.fragments[i] = RailmlWriter.fragment(marshaller, trackName, tracks.get(i));
+        } catch (JAXBException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return - problems found when resolving references in the last convert() call
+     */
+    public List<Linker.Diagnostic> diagnostics() {
+        return diagnostics;
+    }
+
+}
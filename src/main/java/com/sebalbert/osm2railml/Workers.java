@@ -0,0 +1,165 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016-2017  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package com.sebalbert.osm2railml;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * Threads for converting, with a configurable parallelism (instead of the common pool of parallel streams).
+ *
+ * Work items often differ a lot in cost (a short siding vs. a long main line with dozens of switches),
+ * so they are split into contiguous chunks of about equal estimated cost, several per thread, and idle threads
+ * steal chunks from busy ones. Results are kept in the order of the items, so the outcome does not depend on
+ * the number of threads or on which thread processed which chunk.
+ */
+public class Workers implements AutoCloseable {
+
+    /**
+     * Workers on the common ForkJoinPool, which is never shut down
+     */
+    public static final Workers COMMON = new Workers(ForkJoinPool.commonPool());
+
+    /**
+     * Workers that process everything in the calling thread, e.g. for work within a task of other workers;
+     * they have no threads of their own
+     */
+    public static final Workers CALLER = new Workers((ForkJoinPool) null);
+
+    // chunks per thread, so threads that finish early can take over some work of the others
+    private static final int CHUNKS_PER_THREAD = 8;
+
+    // null for CALLER
+    private final ForkJoinPool pool;
+
+    /**
+     * @param parallelism - number of threads
+     */
+    public Workers(int parallelism) {
+        this(new ForkJoinPool(parallelism));
+    }
+
+    private Workers(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    public int parallelism() {
+        return pool == null ? 1 : pool.getParallelism();
+    }
+
+    /**
+     * @return - the threads, for other work that is to share them (e.g. decoding input, c.f. OsmExtract.Options),
+     *           or null for the CALLER workers
+     */
+    public ExecutorService executor() {
+        return pool;
+    }
+
+    /**
+     * Apply a function to all items in parallel
+     * @param cost - estimated cost of processing an item (in any unit, but the same for all items)
+     * @return - the results, in the order of the items
+     */
+    public <T, R> List<R> map(List<T> items, ToLongFunction<? super T> cost, Function<? super T, ? extends R> f) {
+        Object[] results = new Object[items.size()];
+        run(chunks(items, cost), i -> results[i] = f.apply(items.get(i)));
+        @SuppressWarnings("unchecked")
+        List<R> list = (List<R>) Arrays.asList(results);
+        return Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Process all items in parallel
+     * @param cost - estimated cost of processing an item, c.f. map()
+     */
+    public <T> void forEach(List<T> items, ToLongFunction<? super T> cost, Consumer<? super T> action) {
+        map(items, cost, item -> {
+            action.accept(item);
+            return null;
+        });
+    }
+
+    /**
+     * Process the indices from 0 to size (exclusive) in parallel, e.g. of the nodes of a NodeStore,
+     * all of about the same cost
+     */
+    public void forEach(int size, IntConsumer action) {
+        int chunks = parallelism() == 1 ? 1 : Math.min(size, parallelism() * CHUNKS_PER_THREAD);
+        int[] bounds = new int[Math.max(chunks, 1) + 1];
+        for (int c = 1; c < bounds.length; ++c) bounds[c] = (int) ((long) size * c / (bounds.length - 1));
+        run(bounds, action);
+    }
+
+    // boundaries of contiguous chunks of about equal cost: chunk c is [bounds[c], bounds[c + 1])
+    private <T> int[] chunks(List<T> items, ToLongFunction<? super T> cost) {
+        int n = items.size();
+        if (n == 0 || parallelism() == 1) return new int[] { 0, n };
+        long[] costs = new long[n];
+        long total = 0;
+        for (int i = 0; i < n; ++i) total += costs[i] = Math.max(1, cost.applyAsLong(items.get(i)));
+        long target = Math.max(1, total / ((long) parallelism() * CHUNKS_PER_THREAD));
+        int[] bounds = new int[n + 1];
+        int chunks = 0;
+        long sum = 0;
+        for (int i = 0; i < n; ++i) {
+            sum += costs[i];
+            if (sum >= target) {
+                bounds[++chunks] = i + 1;
+                sum = 0;
+            }
+        }
+        if (bounds[chunks] < n) bounds[++chunks] = n;
+        return Arrays.copyOf(bounds, chunks + 1);
+    }
+
+    // process the indices of all chunks, in parallel if there is more than one
+    private void run(int[] bounds, IntConsumer action) {
+        if (bounds.length <= 2) {
+            for (int i = bounds[0]; i < bounds[bounds.length - 1]; ++i) action.accept(i);
+            return;
+        }
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(bounds.length - 1);
+        for (int c = 0; c + 1 < bounds.length; ++c) {
+            int from = bounds[c], to = bounds[c + 1];
+            tasks.add(pool.submit(() -> {
+                for (int i = from; i < to; ++i) action.accept(i);
+            }));
+        }
+        // rethrows the exception of a chunk that failed, if any
+        for (ForkJoinTask<?> task : tasks) task.join();
+    }
+
+    /**
+     * Stop the threads (unless these are the COMMON workers)
+     */
+    @Override
+    public void close() {
+        if (pool != null && pool != ForkJoinPool.commonPool()) pool.shutdown();
+    }
+
+}
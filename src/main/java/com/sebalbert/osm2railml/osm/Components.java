@@ -0,0 +1,112 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016-2017  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package com.sebalbert.osm2railml.osm;
+
+import java.util.Arrays;
+
+/**
+ * The connected components of the rail network: ways that share a node, directly or through other ways,
+ * are in the same component. Found by union-find over the node -> way incidence of a NodeStore.
+ *
+ * Components are numbered in the order of their first way, and the ways of each component are held
+ * in their order (as positions in the ways the store has been indexed with, i.e. OsmExtract.ways).
+ */
+public final class Components {
+
+    // per way: its component; per component: its ways, CSR-style
+    private final int[] component;
+    private final int[] offsets, ways;
+
+    private Components(NodeStore nodes) {
+        int n = nodes.ways().size();
+        int[] parent = new int[n], size = new int[n];
+        for (int w = 0; w < n; ++w) {
+            parent[w] = w;
+            size[w] = 1;
+        }
+        for (int node = 0; node < nodes.size(); ++node) {
+            int from = nodes.wayRefOffset(node), to = nodes.wayRefOffset(node + 1);
+            for (int i = from + 1; i < to; ++i) union(parent, size, nodes.wayRefWay(from), nodes.wayRefWay(i));
+        }
+        component = new int[n];
+        int[] number = new int[n];
+        Arrays.fill(number, -1);
+        int count = 0;
+        for (int w = 0; w < n; ++w) {
+            int root = find(parent, w);
+            if (number[root] < 0) number[root] = count++;
+            component[w] = number[root];
+        }
+        offsets = new int[count + 1];
+        for (int c : component) ++offsets[c + 1];
+        for (int c = 0; c < count; ++c) offsets[c + 1] += offsets[c];
+        ways = new int[n];
+        int[] next = Arrays.copyOf(offsets, count);
+        for (int w = 0; w < n; ++w) ways[next[component[w]]++] = w;
+    }
+
+    /**
+     * @return - the components of the ways a store has been indexed with
+     */
+    public static Components of(NodeStore nodes) {
+        return new Components(nodes);
+    }
+
+    // root of the set of a way, halving the path to it on the way
+    private static int find(int[] parent, int w) {
+        while (parent[w] != w) w = parent[w] = parent[parent[w]];
+        return w;
+    }
+
+    private static void union(int[] parent, int[] size, int a, int b) {
+        a = find(parent, a);
+        b = find(parent, b);
+        if (a == b) return;
+        if (size[a] < size[b]) {
+            int t = a;
+            a = b;
+            b = t;
+        }
+        parent[b] = a;
+        size[a] += size[b];
+    }
+
+    /**
+     * @return - the number of components
+     */
+    public int size() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * @return - the component of the way at this position
+     */
+    public int of(int way) {
+        return component[way];
+    }
+
+    /**
+     * @return - positions of the ways of a component, in ascending order
+     */
+    public int[] ways(int component) {
+        return Arrays.copyOfRange(ways, offsets[component], offsets[component + 1]);
+    }
+
+}
@@ -0,0 +1,431 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016-2017  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package com.sebalbert.osm2railml.osm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorting of records of a fixed number of longs by their first long (the key) in bounded memory, for joining
+ * node references with nodes on input that is too large to do so in memory (c.f. OsmReader, ExtractChunks).
+ *
+ * Records are collected in a buffer of limited size; whenever it is full, it is sorted and written to a temporary
+ * file (a run), and the runs are merged k-way when the records are read back in order (c.f. sorted()).
+ * Of records with the same key, only one is kept, unless the sort keeps all records (in no particular order among
+ * those with the same key). Whenever there are MERGE_WAYS runs, they are merged into one, so only a limited number
+ * of files is open at a time.
+ */
+final class ExternalSort implements Closeable {
+
+    // runs merged at a time
+    static final int MERGE_WAYS = 64;
+    private static final int IO_BUFFER = 1 << 16;
+    // longs per mapped segment of the keys (a single mapping is limited to 2 GiB)
+    private static final int SEGMENT_BITS = 27, SEGMENT_SIZE = 1 << SEGMENT_BITS, SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    /**
+     * Records in the order of their keys
+     */
+    interface Cursor extends Closeable {
+
+        /**
+         * Move to the next record
+         * @return - false if there is none
+         */
+        boolean next() throws IOException;
+
+        /**
+         * @return - the i-th long of the current record (0: the key)
+         */
+        long get(int i);
+
+        @Override
+        void close() throws IOException;
+
+    }
+
+    private final int width, capacity;
+    private final boolean distinct;
+    // records collected since the last run was written, and their number of longs
+    private long[] buffer;
+    private int size = 0;
+    private boolean sorted = false;
+    private final List<File> runs = new ArrayList<>();
+
+    /**
+     * @param width - number of longs per record
+     * @param budget - bytes that the buffer may take
+     */
+    ExternalSort(int width, long budget) {
+        this(width, budget, true);
+    }
+
+    /**
+     * @param width - number of longs per record
+     * @param budget - bytes that the buffer may take
+     * @param distinct - whether to keep only one record of each key
+     */
+    ExternalSort(int width, long budget, boolean distinct) {
+        this.width = width;
+        this.distinct = distinct;
+        capacity = width * (int) Math.max(1, Math.min(Integer.MAX_VALUE / width, budget / (8L * width)));
+        buffer = new long[Math.min(capacity, width * 1024)];
+    }
+
+    /**
+     * Add a record of one long (c.f. width)
+     */
+    void add(long key) throws IOException {
+        reserve()[size++] = key;
+    }
+
+    /**
+     * Add a record of two longs (c.f. width)
+     */
+    void add(long key, long value) throws IOException {
+        long[] b = reserve();
+        b[size++] = key;
+        b[size++] = value;
+    }
+
+    /**
+     * Add a record of any width (c.f. width)
+     */
+    void add(long[] record) throws IOException {
+        long[] b = reserve();
+        System.arraycopy(record, 0, b, size, width);
+        size += width;
+    }
+
+    // the buffer, with room for another record
+    private long[] reserve() throws IOException {
+        if (sorted) throw new IllegalStateException("records added after reading them");
+        if (size == buffer.length) {
+            if (buffer.length < capacity) buffer = Arrays.copyOf(buffer, (int) Math.min(capacity, 2L * buffer.length));
+            else spill();
+        }
+        return buffer;
+    }
+
+    /**
+     * @return - the number of runs written so far
+     */
+    int runs() {
+        return runs.size();
+    }
+
+    private void spill() throws IOException {
+        sortBuffer();
+        runs.add(write(new BufferCursor(), width, distinct));
+        size = 0;
+        sorted = false;
+        if (runs.size() < MERGE_WAYS) return;
+        File merged;
+        try (Cursor c = merge(false)) {
+            merged = write(c, width, distinct);
+        }
+        for (File run : runs) run.delete();
+        runs.clear();
+        runs.add(merged);
+    }
+
+    private void sortBuffer() {
+        if (sorted) return;
+        if (width == 1) Arrays.sort(buffer, 0, size);
+        else sort(0, size / width - 1);
+        sorted = true;
+    }
+
+    // quicksort of the records in the buffer by key
+    private void sort(int low, int high) {
+        while (low < high) {
+            long pivot = buffer[((low + high) >>> 1) * width];
+            int i = low, j = high;
+            while (i <= j) {
+                while (buffer[i * width] < pivot) ++i;
+                while (buffer[j * width] > pivot) --j;
+                if (i <= j) swap(i++, j--);
+            }
+            // recurse into the smaller part only, to bound the stack depth
+            if (j - low < high - i) {
+                sort(low, j);
+                low = i;
+            } else {
+                sort(i, high);
+                high = j;
+            }
+        }
+    }
+
+    private void swap(int i, int j) {
+        for (int k = 0; k < width; ++k) {
+            long t = buffer[i * width + k];
+            buffer[i * width + k] = buffer[j * width + k];
+            buffer[j * width + k] = t;
+        }
+    }
+
+    // write the first longs of the records of a cursor (of each key only the first one, if distinct) to a new file
+    private static File write(Cursor records, int width, boolean distinct) throws IOException {
+        File file = File.createTempFile("osm2railml-run", ".bin");
+        file.deleteOnExit();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), IO_BUFFER))) {
+            boolean first = true;
+            long last = 0;
+            while (records.next()) {
+                if (distinct && !first && records.get(0) == last) continue;
+                first = false;
+                last = records.get(0);
+                for (int k = 0; k < width; ++k) out.writeLong(records.get(k));
+            }
+        }
+        return file;
+    }
+
+    /**
+     * @return - all records added, in the order of their keys (and only one of each key, if distinct); no records
+     *         can be added any more, but the records can be read again
+     */
+    Cursor sorted() throws IOException {
+        sortBuffer();
+        return merge(true);
+    }
+
+    private Cursor merge(boolean withBuffer) throws IOException {
+        List<Cursor> cursors = new ArrayList<>(runs.size() + 1);
+        try {
+            for (File run : runs) cursors.add(new RunCursor(run));
+        } catch (IOException | RuntimeException e) {
+            closeAll(cursors, e);
+            throw e;
+        }
+        if (withBuffer) cursors.add(new BufferCursor());
+        return new Merge(cursors);
+    }
+
+    // close cursors opened before a failure, keeping the failure as the exception to be thrown
+    private static void closeAll(List<Cursor> cursors, Exception failure) {
+        for (Cursor c : cursors) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                failure.addSuppressed(e);
+            }
+        }
+    }
+
+    /**
+     * Records of a fixed number of longs, sorted by their first long (the key), memory-mapped from a temporary
+     * file (as written by DataOutputStream); the file is deleted once mapped
+     */
+    static final class Table {
+
+        private final int width;
+        private final long size;
+        private final LongBuffer[] segments;
+
+        /**
+         * @param width - number of longs per record
+         */
+        Table(File file, int width) throws IOException {
+            this.width = width;
+            long longs = file.length() / 8;
+            size = longs / width;
+            segments = new LongBuffer[(int) ((longs + SEGMENT_SIZE - 1) >>> SEGMENT_BITS)];
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+                for (int s = 0; s < segments.length; ++s) {
+                    long position = (long) s << SEGMENT_BITS;
+                    segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, 8 * position,
+                            8 * Math.min(SEGMENT_SIZE, longs - position)).asLongBuffer();
+                }
+            }
+            // mappings stay valid after closing the channel
+            file.delete();
+        }
+
+        /**
+         * @return - the number of records
+         */
+        long size() {
+            return size;
+        }
+
+        /**
+         * @return - the k-th long of the i-th record (0: the key)
+         */
+        long get(long i, int k) {
+            long l = i * width + k;
+            return segments[(int) (l >>> SEGMENT_BITS)].get((int) (l & SEGMENT_MASK));
+        }
+
+        /**
+         * @return - the position of the first record with this key, or -1; safe to be called concurrently
+         */
+        long find(long key) {
+            long low = 0, high = size - 1;
+            while (low <= high) {
+                long mid = (low + high) >>> 1;
+                if (get(mid, 0) < key) low = mid + 1;
+                else high = mid - 1;
+            }
+            return low < size && get(low, 0) == key ? low : -1;
+        }
+
+        /**
+         * @return - whether the key is among these; safe to be called concurrently
+         */
+        boolean contains(long key) {
+            return find(key) >= 0;
+        }
+
+    }
+
+    /**
+     * @return - the distinct keys of all records added, in a memory-mapped file; no records can be added any more
+     */
+    Table keys() throws IOException {
+        try (Cursor c = sorted()) {
+            return new Table(write(c, 1, true), 1);
+        }
+    }
+
+    /**
+     * Delete the runs
+     */
+    @Override
+    public void close() {
+        for (File run : runs) run.delete();
+        runs.clear();
+        buffer = null;
+    }
+
+    private class BufferCursor implements Cursor {
+
+        private int position = -width;
+
+        @Override
+        public boolean next() {
+            position += width;
+            return position < size;
+        }
+
+        @Override
+        public long get(int i) {
+            return buffer[position + i];
+        }
+
+        @Override
+        public void close() { }
+
+    }
+
+    private class RunCursor implements Cursor {
+
+        private final DataInputStream in;
+        private final long[] record = new long[width];
+        private long remaining;
+
+        RunCursor(File run) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), IO_BUFFER));
+            remaining = run.length() / (8L * width);
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            if (remaining == 0) return false;
+            --remaining;
+            for (int k = 0; k < width; ++k) record[k] = in.readLong();
+            return true;
+        }
+
+        @Override
+        public long get(int i) {
+            return record[i];
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+    }
+
+    // k-way merge, keeping the first record of each key (if distinct)
+    private class Merge implements Cursor {
+
+        private final List<Cursor> cursors;
+        private final PriorityQueue<Cursor> queue;
+        private final long[] record = new long[width];
+        private boolean started = false;
+
+        // takes over the cursors, closing them if reading their first records fails
+        Merge(List<Cursor> cursors) throws IOException {
+            this.cursors = cursors;
+            queue = new PriorityQueue<>(Math.max(1, cursors.size()), Comparator.comparingLong(c -> c.get(0)));
+            try {
+                for (Cursor c : cursors) if (c.next()) queue.add(c);
+            } catch (IOException | RuntimeException e) {
+                closeAll(cursors, e);
+                throw e;
+            }
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            while (!queue.isEmpty()) {
+                Cursor c = queue.poll();
+                boolean fresh = !distinct || !started || c.get(0) != record[0];
+                if (fresh) {
+                    for (int k = 0; k < width; ++k) record[k] = c.get(k);
+                    started = true;
+                }
+                if (c.next()) queue.add(c);
+                if (fresh) return true;
+            }
+            return false;
+        }
+
+        @Override
+        public long get(int i) {
+            return record[i];
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (Cursor c : cursors) c.close();
+        }
+
+    }
+
+}
@@ -0,0 +1,282 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016-2017  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package com.sebalbert.osm2railml.osm;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary cache of a parsed extract, so the same input file need not be parsed again for each run.
+ *
+ * The cache holds all railway ways and rail relations (c.f. OsmExtract.RAIL_RELATIONS) of the input with all their
+ * tags, so runs with different way or relation filters, regions or tag keys can share it; these are applied when
+ * loading. The nodes are memory-mapped from the cache file (in the layout of NodeStore.Mapped), so loading them
+ * takes no time and concurrent runs share their pages.
+ * Node references of the ways are stored as indices into the nodes, along with the node -> way incidence,
+ * so nothing needs to be looked up when the ways are rebuilt unless they are filtered.
+ *
+ * Options.cache is a directory with one cache file per input, named after the input file and a hash of its
+ * canonical path, which is also recorded in the cache file; so inputs sharing the directory (or the hash) never
+ * get each other's extract. The cache is rebuilt if its format version differs or if the size or modification
+ * time of the input file differ from those recorded when it was written. It is written to a temporary file first
+ * and then renamed, so other runs never see an incomplete cache.
+ */
+final class ExtractCache {
+
+    private static final int MAGIC = 0x4f325243, VERSION = 4, HEADER_SIZE = 64;
+    // number of ints mapped at a time (a single mapping is limited to 2 GiB)
+    private static final int CHUNK = 1 << 27;
+
+    private ExtractCache() { }
+
+    /**
+     * Read an extract from the cache (c.f. Options.cache), parsing the input file and writing the cache first
+     * if the cache is missing or out of date
+     */
+    static OsmExtract read(File source, OsmExtract.Options options) throws IOException, XMLStreamException {
+        File cache = file(options.cache, source);
+        String path = source.getCanonicalPath();
+        OsmExtract osm = load(cache, source, path, options);
+        if (osm != null) return osm;
+        write(cache, source, path, options);
+        osm = load(cache, source, path, options);
+        if (osm == null) throw new IOException("could not read the cache just written to " + cache);
+        return osm;
+    }
+
+    /**
+     * The cache file for the given input in the given cache directory
+     */
+    static File file(File directory, File source) throws IOException {
+        // FNV-1a over the characters of the canonical path
+        long hash = 0xcbf29ce484222325L;
+        for (char c : source.getCanonicalPath().toCharArray()) hash = (hash ^ c) * 0x100000001b3L;
+        return new File(directory, String.format("%s-%016x.cache", source.getName(), hash));
+    }
+
+    private static void write(File cache, File source, String path, OsmExtract.Options options)
+            throws IOException, XMLStreamException {
+        long length = source.length(), lastModified = source.lastModified();
+        OsmExtract.Options all = new OsmExtract.Options();
+        all.threads = options.threads;
+        all.decoders = options.decoders;
+        all.onPhase = options.onPhase;
+        OsmExtract osm = OsmExtract.parse(source, all);
+        NodeStore nodes = osm.nodes;
+        int n = nodes.size(), w = osm.ways.size();
+        int[] incidence = new int[n + 1];
+        for (int i = 0; i <= n; ++i) incidence[i] = nodes.wayRefOffset(i);
+        int[] wayOffsets = new int[w + 1];
+        for (int i = 0; i < w; ++i) wayOffsets[i + 1] = wayOffsets[i] + osm.ways.get(i).nodeCount();
+        int[] refs = new int[wayOffsets[w]];
+        int r = 0;
+        for (Way way : osm.ways)
+            for (int j = 0; j < way.nodeCount(); ++j) refs[r++] = way.nodeIndex(j);
+
+        cache = cache.getAbsoluteFile();
+        Files.createDirectories(cache.getParentFile().toPath());
+        File tmp = File.createTempFile(cache.getName(), ".tmp", cache.getParentFile());
+        try {
+            try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw"); FileChannel channel = raf.getChannel()) {
+                long position = HEADER_SIZE;
+                NodeStore.Mapped mapped = new NodeStore.Mapped(channel, position, n, FileChannel.MapMode.READ_WRITE);
+                for (int i = 0; i < n; ++i) mapped.set(i, nodes.id(i), nodes.latFixed(i), nodes.lonFixed(i));
+                position += NodeStore.Mapped.bytes(n);
+                position = writeInts(channel, position, incidence);
+                position = writeInts(channel, position, wayOffsets);
+                position = writeInts(channel, position, refs);
+                long strings = position;
+                channel.position(strings);
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+                out.writeUTF(path);
+                Map<String, Integer> table = new HashMap<>();
+                int[] tagged = nodes.taggedIndices();
+                out.writeInt(tagged.length);
+                for (int i : tagged) {
+                    out.writeInt(i);
+                    writeTags(out, table, nodes.tags(i));
+                }
+                for (Way way : osm.ways) {
+                    out.writeLong(way.id);
+                    writeTags(out, table, way.tags);
+                }
+                OsmExtract.writeRelations(out, osm.relations, (o, s) -> writeString(o, table, s));
+                out.flush();
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.nativeOrder());
+                header.putInt(MAGIC).putInt(VERSION).putLong(length).putLong(lastModified)
+                        .putInt(n).putInt(w).putLong(strings);
+                header.clear();
+                channel.write(header, 0);
+            }
+            try {
+                Files.move(tmp.toPath(), cache.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), cache.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    // the extract from the cache, or null if there is no cache for this version of the source file
+    private static OsmExtract load(File cache, File source, String path, OsmExtract.Options options)
+            throws IOException {
+        if (!cache.isFile() || cache.length() < HEADER_SIZE) return null;
+        try (RandomAccessFile raf = new RandomAccessFile(cache, "r"); FileChannel channel = raf.getChannel()) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.nativeOrder());
+            channel.read(header, 0);
+            header.flip();
+            // the magic number also tells whether the cache was written with the same byte order
+            if (header.getInt() != MAGIC || header.getInt() != VERSION || header.getLong() != source.length() ||
+                    header.getLong() != source.lastModified()) return null;
+            int n = header.getInt(), w = header.getInt();
+            long strings = header.getLong();
+
+            long position = HEADER_SIZE;
+            NodeStore nodes = new NodeStore.Mapped(channel, position, n, FileChannel.MapMode.READ_ONLY);
+            position += NodeStore.Mapped.bytes(n);
+            int[] incidence = new int[n + 1], wayOffsets = new int[w + 1];
+            position = readInts(channel, position, incidence);
+            position = readInts(channel, position, wayOffsets);
+            int[] refs = new int[wayOffsets[w]];
+            readInts(channel, position, refs);
+
+            channel.position(strings);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+            // written for another input whose path has the same hash
+            if (!in.readUTF().equals(path)) return null;
+            List<String> table = new ArrayList<>();
+            Map<String, String> values = new HashMap<>();
+            Tags.Builder nodeTags = new Tags.Builder(options.tagKeys, values);
+            // the way filter may use any tags (c.f. Options.tagKeys), so these are dropped afterwards
+            Tags.Builder wayTags = new Tags.Builder(null, values);
+            int[] tagged = new int[in.readInt()];
+            Tags[] tags = new Tags[tagged.length];
+            for (int i = 0; i < tagged.length; ++i) {
+                tagged[i] = in.readInt();
+                tags[i] = readTags(in, table, nodeTags);
+            }
+            nodes.setTags(tagged, tags);
+
+            OsmExtract osm = new OsmExtract();
+            boolean allWays = true;
+            for (int i = 0; i < w; ++i) {
+                Way way = new Way();
+                way.id = in.readLong();
+                way.tags = readTags(in, table, wayTags);
+                way.setNodes(nodes, refs, wayOffsets[i], wayOffsets[i + 1] - wayOffsets[i]);
+                if (!options.wayFilter.test(way)) {
+                    allWays = false;
+                    continue;
+                }
+                way.tags = way.tags.retain(options.tagKeys);
+                osm.ways.add(way);
+            }
+            osm.relations = OsmExtract.readRelations(in, wayTags, i -> readString(i, table));
+            if (options.relationFilter == null) osm.relations = RelationStore.EMPTY;
+            else if (options.relationFilter != OsmExtract.RAIL_RELATIONS || options.tagKeys != null)
+                osm.relations = osm.relations.retain(options.relationFilter, options.tagKeys);
+            options.onPhase.accept("index");
+            if (allWays && options.region == null) {
+                // exactly what has been cached: use the mapped nodes and the incidence as they are
+                nodes.index(osm.ways, incidence);
+                osm.nodes = nodes;
+            } else {
+                osm.retain(nodes, options.offHeapNodes, options.region);
+            }
+            return osm;
+        }
+    }
+
+    private static long writeInts(FileChannel channel, long position, int[] values) throws IOException {
+        for (int from = 0; from < values.length; from += CHUNK) {
+            int n = Math.min(CHUNK, values.length - from);
+            channel.map(FileChannel.MapMode.READ_WRITE, position, 4L * n).order(ByteOrder.nativeOrder())
+                    .asIntBuffer().put(values, from, n);
+            position += 4L * n;
+        }
+        return position;
+    }
+
+    private static long readInts(FileChannel channel, long position, int[] values) throws IOException {
+        for (int from = 0; from < values.length; from += CHUNK) {
+            int n = Math.min(CHUNK, values.length - from);
+            channel.map(FileChannel.MapMode.READ_ONLY, position, 4L * n).order(ByteOrder.nativeOrder())
+                    .asIntBuffer().get(values, from, n);
+            position += 4L * n;
+        }
+        return position;
+    }
+
+    // each distinct string is written once, and referred to by its number afterwards
+    private static void writeString(DataOutput out, Map<String, Integer> table, String s) throws IOException {
+        Integer i = table.get(s);
+        if (i != null) {
+            out.writeInt(i);
+            return;
+        }
+        table.put(s, table.size());
+        out.writeInt(-1);
+        out.writeUTF(s);
+    }
+
+    private static String readString(DataInput in, List<String> table) throws IOException {
+        int i = in.readInt();
+        if (i >= 0) return table.get(i);
+        String s = in.readUTF();
+        table.add(s);
+        return s;
+    }
+
+    private static void writeTags(DataOutput out, Map<String, Integer> table, Tags tags) throws IOException {
+        out.writeShort(tags.size());
+        for (int i = 0; i < tags.size(); ++i) {
+            writeString(out, table, tags.key(i));
+            writeString(out, table, tags.value(i));
+        }
+    }
+
+    private static Tags readTags(DataInput in, List<String> table, Tags.Builder tags) throws IOException {
+        for (int i = in.readUnsignedShort(); i > 0; --i) tags.add(readString(in, table), readString(in, table));
+        return tags.build();
+    }
+
+}
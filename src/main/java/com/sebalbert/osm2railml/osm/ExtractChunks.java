@@ -0,0 +1,591 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016-2017  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package com.sebalbert.osm2railml.osm;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An OSM file read in chunks of ways, for networks too large to be held in memory as a whole (c.f. OsmExtract).
+ *
+ * The first pass writes the ways accepted to a temporary file and sorts their node references as
+ * (node, way and position in the way) externally; the second pass sorts the nodes referenced externally, too.
+ * The two are merge-joined, the references found are sorted back by way and position, and the ways are written
+ * again along with their nodes, dropping ways outside the region and ways with less than two nodes left
+ * (as OsmExtract does). Finally, the references of these ways are sorted by node once more, and those at nodes with
+ * more than one way are kept in a memory-mapped table. All sorting is bounded by the memory budget for joining
+ * (c.f. Options.joinMemory, ExternalSort).
+ *
+ * Each chunk holds the next ways in the order read (as many as the budget allows, at least one) along with the
+ * context that their junctions depend on: for each other way at one of their nodes, a stub with just its references
+ * to these nodes and to the neighbouring nodes there, where neighbours that are not nodes of the chunk are copies
+ * under IDs of their own. So the junctions at the nodes of the chunk are the same as in the whole extract (including
+ * the order of the ways at each node), and the ways of a chunk can be converted on their own
+ * (c.f. ChunkedConversion). Only relations are not read.
+ *
+ * Read in tiles, the ways are ordered by the cell of a lat/lon grid their first node lies in (sorted externally as
+ * well), and each chunk holds the next ways of one tile only, so a chunk is spatially close and its context is
+ * small (c.f. TiledConversion).
+ */
+public final class ExtractChunks implements Closeable {
+
+    // heap taken per node reference of a chunk while it is converted (node store, incidence, geometry, junctions
+    // and the tracks created), roughly
+    private static final int BYTES_PER_NODE = 256;
+    private static final int IO_BUFFER = 1 << 16;
+
+    private final OsmExtract.Options options;
+    private final long budget;
+    // edge length of the tiles in degrees (0 for chunks in the order read), and the tiles converted at a time
+    private final double tileSize;
+    private final int parallel;
+    // for deduplicating tag values, as in OsmReader
+    private final Tags.Builder tags = new Tags.Builder(null, new HashMap<>());
+
+    // the ways kept with their nodes (c.f. WayRecord), read in order for the chunks, and by position for the stubs
+    private File wayFile;
+    private DataInputStream wayIn;
+    private RandomAccessFile wayAccess;
+    // per way: its position in the way file (and the length of the file at the end);
+    // per reference at a node with more than one way: (node, way << 32 | position in the way), sorted
+    private ExternalSort.Table offsets, context;
+    // per way, if read in tiles: (tile, way), sorted by tile
+    private ExternalSort.Table order;
+    private int ways = 0, nodes = 0, tiles = 0, next = 0, chunks = 0;
+
+    private ExtractChunks(OsmExtract.Options options, double tileSize, int parallel) {
+        this.options = options;
+        budget = options.joinMemory;
+        this.tileSize = tileSize;
+        this.parallel = parallel;
+    }
+
+    /**
+     * Read an OSM XML or PBF file (judging by the file name) to be handed out in chunks
+     * @param options - filter and further options for reading, with a memory budget for joining
+     *                (c.f. Options.joinMemory), which bounds the size of the chunks, too
+     */
+    public static ExtractChunks read(File file, OsmExtract.Options options) throws IOException, XMLStreamException {
+        return read(file, options, 0.0, 1);
+    }
+
+    /**
+     * Read an OSM XML or PBF file (judging by the file name) to be handed out in chunks of spatial tiles
+     * @param options - filter and further options for reading, with a memory budget for joining
+     *                (c.f. Options.joinMemory), which bounds the size of the chunks, too
+     * @param tileSize - edge length of the tiles in degrees of latitude and longitude, or 0 for chunks in the order
+     *                 read
+     * @param parallel - the number of chunks held at a time, which share the budget
+     */
+    public static ExtractChunks read(File file, OsmExtract.Options options, double tileSize, int parallel)
+            throws IOException, XMLStreamException {
+        if (options.joinMemory <= 0) throw new IllegalArgumentException("reading in chunks requires a join memory");
+        if (tileSize < 0.0 || Double.isNaN(tileSize))
+            throw new IllegalArgumentException("tile size must not be negative: " + tileSize);
+        ExtractChunks chunks = new ExtractChunks(options, tileSize, Math.max(1, parallel));
+        try {
+            chunks.spill(OsmExtract.reader(file, options));
+        } catch (IOException | XMLStreamException | RuntimeException e) {
+            chunks.close();
+            throw e;
+        }
+        return chunks;
+    }
+
+    /**
+     * @return - the number of ways kept
+     */
+    public int ways() {
+        return ways;
+    }
+
+    /**
+     * @return - the number of nodes of the ways kept (as in OsmExtract.nodes)
+     */
+    public int nodes() {
+        return nodes;
+    }
+
+    /**
+     * @return - the number of tiles with ways (0 unless read in tiles)
+     */
+    public int tiles() {
+        return tiles;
+    }
+
+    /**
+     * @return - the number of chunks handed out so far
+     */
+    public int chunks() {
+        return chunks;
+    }
+
+    private static File temporary(String name) throws IOException {
+        File file = File.createTempFile("osm2railml-" + name, ".bin");
+        file.deleteOnExit();
+        return file;
+    }
+
+    private static DataOutputStream output(File file) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), IO_BUFFER));
+    }
+
+    private static DataInputStream input(File file) throws IOException {
+        return new DataInputStream(new BufferedInputStream(new FileInputStream(file), IO_BUFFER));
+    }
+
+    // first pass: the ways accepted (ID and tags, in the order read), and their node references as
+    // (node, way << 32 | position in the way)
+    private static final class WaySpill implements OsmReader.WaySpill {
+
+        final DataOutputStream out;
+        final ExternalSort refs;
+        int count = 0;
+
+        WaySpill(DataOutputStream out, ExternalSort refs) {
+            this.out = out;
+            this.refs = refs;
+        }
+
+        @Override
+        public void add(Way way) throws IOException {
+            out.writeLong(way.id);
+            OsmExtract.writeTags(out, way.tags);
+            for (int i = 0; i < way.nodeCount(); ++i) refs.add(way.nodeId(i), (long) count << 32 | i);
+            ++count;
+        }
+
+        @Override
+        public ExternalSort.Table referenced() throws IOException {
+            return refs.keys();
+        }
+
+    }
+
+    // second pass: the nodes referenced as (node, position, offset of its tags in the tag file or -1)
+    private static final class NodeSpill extends NodeStore.Builder implements Closeable {
+
+        final ExternalSort nodes;
+        final DataOutputStream tagOut;
+        final ByteArrayOutputStream tagBuffer = new ByteArrayOutputStream();
+        final DataOutputStream tagData = new DataOutputStream(tagBuffer);
+        final long[] record = new long[3];
+        long tagBytes = 0;
+
+        NodeSpill(ExternalSort nodes, File tagFile) throws IOException {
+            this.nodes = nodes;
+            tagOut = output(tagFile);
+        }
+
+        @Override
+        void add(long id, int lat, int lon, Tags nodeTags) throws IOException {
+            record[0] = id;
+            record[1] = ((long) lat << 32) | (lon & 0xffffffffL);
+            record[2] = -1;
+            if (nodeTags != null && nodeTags.size() > 0) {
+                tagBuffer.reset();
+                OsmExtract.writeTags(tagData, nodeTags);
+                tagOut.writeInt(tagBuffer.size());
+                tagBuffer.writeTo(tagOut);
+                record[2] = tagBytes;
+                tagBytes += 4 + tagBuffer.size();
+            }
+            nodes.add(record);
+        }
+
+        @Override
+        public void close() throws IOException {
+            tagOut.close();
+        }
+
+    }
+
+    private void spill(OsmReader reader) throws IOException, XMLStreamException {
+        File spilled = temporary("ways"), tagFile = temporary("tags");
+        ExternalSort refs = new ExternalSort(2, budget, false), nodes = new ExternalSort(3, budget);
+        ExternalSort found = null;
+        try {
+            int count;
+            try (DataOutputStream out = output(spilled); NodeSpill nodeSpill = new NodeSpill(nodes, tagFile)) {
+                WaySpill spill = new WaySpill(out, refs);
+                reader.spill(spill, nodeSpill);
+                count = spill.count;
+            }
+            options.onPhase.accept("index");
+            found = join(refs, nodes);
+            refs.close();
+            nodes.close();
+            resolve(spilled, count, found, tagFile);
+        } finally {
+            refs.close();
+            nodes.close();
+            if (found != null) found.close();
+            spilled.delete();
+            tagFile.delete();
+        }
+        wayIn = input(wayFile);
+        wayAccess = new RandomAccessFile(wayFile, "r");
+    }
+
+    // the node references found, as (way << 32 | position in the way, node, position, tags), in the order of the ways
+    private ExternalSort join(ExternalSort refs, ExternalSort nodes) throws IOException {
+        ExternalSort found = new ExternalSort(4, budget);
+        long[] record = new long[4];
+        try (ExternalSort.Cursor r = refs.sorted(); ExternalSort.Cursor n = nodes.sorted()) {
+            boolean more = n.next();
+            while (r.next()) {
+                long id = r.get(0);
+                while (more && n.get(0) < id) more = n.next();
+                if (!more || n.get(0) != id) continue;
+                record[0] = r.get(1);
+                record[1] = id;
+                record[2] = n.get(1);
+                record[3] = n.get(2);
+                found.add(record);
+            }
+        } catch (IOException | RuntimeException e) {
+            found.close();
+            throw e;
+        }
+        return found;
+    }
+
+    // write the ways kept along with their nodes, and the table of references at nodes with more than one way
+    private void resolve(File spilled, int count, ExternalSort found, File tagFile) throws IOException {
+        wayFile = temporary("chunks");
+        File offsetFile = temporary("offsets"), contextFile = temporary("context");
+        // references by node, as (node, way << 32 | position in the way), or -1 instead for the nodes of ways
+        // dropped for having less than two nodes (which OsmExtract keeps in its nodes nonetheless)
+        ExternalSort incidence = new ExternalSort(2, budget, false);
+        ExternalSort tileOrder = tileSize > 0.0 ? new ExternalSort(2, budget, false) : null;
+        File orderFile = null;
+        try {
+            try (DataInputStream in = input(spilled); ExternalSort.Cursor c = found.sorted();
+                 RandomAccessFile tagAccess = new RandomAccessFile(tagFile, "r");
+                 DataOutputStream out = output(wayFile); DataOutputStream offsetOut = output(offsetFile)) {
+                WayRecord way = new WayRecord();
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                DataOutputStream record = new DataOutputStream(buffer);
+                long position = 0;
+                boolean more = c.next();
+                for (int w = 0; w < count; ++w) {
+                    way.id = in.readLong();
+                    way.tags = OsmExtract.readTags(in, tags);
+                    way.size = 0;
+                    for (; more && (c.get(0) >>> 32) == w; more = c.next()) {
+                        long tagRef = c.get(3);
+                        way.add(c.get(1), c.get(2), tagRef < 0 ? Tags.EMPTY : readTags(tagAccess.getChannel(), tagRef));
+                    }
+                    if (options.region != null && !way.touches(options.region)) continue;
+                    boolean kept = way.size > 1;
+                    for (int j = 0; j < way.size; ++j) incidence.add(way.nodes[j], kept ? (long) ways << 32 | j : -1);
+                    if (!kept) continue;
+                    if (tileOrder != null) tileOrder.add(tile(way.lats[0], way.lons[0]), ways);
+                    buffer.reset();
+                    way.write(record);
+                    offsetOut.writeLong(position);
+                    buffer.writeTo(out);
+                    position += buffer.size();
+                    ++ways;
+                }
+                offsetOut.writeLong(position);
+            }
+            try (ExternalSort.Cursor c = incidence.sorted(); DataOutputStream out = output(contextFile)) {
+                long[] refs = new long[8];
+                boolean more = c.next();
+                while (more) {
+                    long node = c.get(0);
+                    int n = 0;
+                    for (; more && c.get(0) == node; more = c.next()) {
+                        if (c.get(1) < 0) continue;
+                        if (n == refs.length) refs = Arrays.copyOf(refs, 2 * n);
+                        refs[n++] = c.get(1);
+                    }
+                    ++nodes;
+                    if (n < 2) continue;
+                    // in the order of the ways, as in the incidence of a NodeStore
+                    Arrays.sort(refs, 0, n);
+                    for (int k = 0; k < n; ++k) {
+                        out.writeLong(node);
+                        out.writeLong(refs[k]);
+                    }
+                }
+            }
+            if (tileOrder != null) {
+                orderFile = temporary("tiles");
+                try (ExternalSort.Cursor c = tileOrder.sorted(); DataOutputStream out = output(orderFile)) {
+                    for (long last = -1; c.next(); last = c.get(0)) {
+                        if (c.get(0) != last) ++tiles;
+                        out.writeLong(c.get(0));
+                        out.writeLong(c.get(1));
+                    }
+                }
+                order = new ExternalSort.Table(orderFile, 2);
+            }
+            offsets = new ExternalSort.Table(offsetFile, 1);
+            context = new ExternalSort.Table(contextFile, 2);
+        } finally {
+            incidence.close();
+            if (tileOrder != null) tileOrder.close();
+            if (orderFile != null) orderFile.delete();
+            offsetFile.delete();
+            contextFile.delete();
+        }
+    }
+
+    // the cell of the grid (row << 32 | column) a position given in fixed point lies in
+    private long tile(int lat, int lon) {
+        long row = (long) Math.floor((lat / NodeStore.FIXED_POINT + 90.0) / tileSize);
+        long column = (long) Math.floor((lon / NodeStore.FIXED_POINT + 180.0) / tileSize);
+        return row << 32 | column;
+    }
+
+    private static byte[] read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining())
+            if (channel.read(buffer, position + buffer.position()) < 0) throw new EOFException();
+        return buffer.array();
+    }
+
+    private Tags readTags(FileChannel channel, long position) throws IOException {
+        int length = ByteBuffer.wrap(read(channel, position, 4)).getInt();
+        return OsmExtract.readTags(new DataInputStream(new ByteArrayInputStream(read(channel, position + 4, length))),
+                tags);
+    }
+
+    // a way as written to the way file: ID, tags and its nodes with their positions and tags
+    private static final class WayRecord {
+
+        long id;
+        Tags tags;
+        int size;
+        long[] nodes = new long[16];
+        int[] lats = new int[16], lons = new int[16];
+        Tags[] nodeTags = new Tags[16];
+
+        void add(long node, long position, Tags t) {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, 2 * size);
+                lats = Arrays.copyOf(lats, 2 * size);
+                lons = Arrays.copyOf(lons, 2 * size);
+                nodeTags = Arrays.copyOf(nodeTags, 2 * size);
+            }
+            nodes[size] = node;
+            lats[size] = (int) (position >> 32);
+            lons[size] = (int) position;
+            nodeTags[size] = t;
+            ++size;
+        }
+
+        boolean touches(Region region) {
+            for (int j = 0; j < size; ++j)
+                if (region.contains(lats[j] / NodeStore.FIXED_POINT, lons[j] / NodeStore.FIXED_POINT)) return true;
+            return false;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeLong(id);
+            OsmExtract.writeTags(out, tags);
+            out.writeInt(size);
+            for (int j = 0; j < size; ++j) {
+                out.writeLong(nodes[j]);
+                out.writeInt(lats[j]);
+                out.writeInt(lons[j]);
+                OsmExtract.writeTags(out, nodeTags[j]);
+            }
+        }
+
+        void read(DataInput in, Tags.Builder builder) throws IOException {
+            id = in.readLong();
+            tags = OsmExtract.readTags(in, builder);
+            size = 0;
+            for (int j = in.readInt(); j > 0; --j) {
+                long node = in.readLong();
+                int lat = in.readInt(), lon = in.readInt();
+                add(node, ((long) lat << 32) | (lon & 0xffffffffL), OsmExtract.readTags(in, builder));
+            }
+        }
+
+        Way way(long[] ids) {
+            Way way = new Way();
+            way.id = id;
+            way.tags = tags;
+            way.setNodeIds(ids);
+            return way;
+        }
+
+    }
+
+    /**
+     * The ways of a chunk and their context
+     */
+    public static final class Chunk {
+
+        /**
+         * the ways of the chunk and the stubs of the other ways at their nodes, in the order read
+         * (with the geometry still to be computed)
+         */
+        public final OsmExtract osm;
+
+        /**
+         * the ways of the chunk, in the order read
+         */
+        public final List<Way> ways;
+
+        /**
+         * the stubs of the other ways at the nodes of the chunk, which are only there for the junctions
+         */
+        public final List<Way> context;
+
+        /**
+         * the positions of the ways of the chunk among all ways kept, in the order read
+         */
+        public final int[] positions;
+
+        private Chunk(OsmExtract osm, List<Way> ways, List<Way> context, int[] positions) {
+            this.osm = osm;
+            this.ways = ways;
+            this.context = context;
+            this.positions = positions;
+        }
+
+    }
+
+    /**
+     * @return - the next chunk, or null after the last one
+     */
+    public Chunk next() throws IOException {
+        if (next == ways) return null;
+        long limit = Math.max(1, budget / BYTES_PER_NODE / parallel), refs = 0;
+        NodeStore.Builder nodes = new NodeStore.Builder();
+        // the ways of the chunk and the stubs of the others, by position
+        Map<Integer, Way> all = new TreeMap<>();
+        int[] positions = new int[16];
+        int count = 0;
+        long[] ids = new long[64];
+        int idCount = 0;
+        WayRecord record = new WayRecord();
+        long tile = order == null ? 0 : order.get(next, 0);
+        do {
+            int w = order == null ? next : (int) order.get(next, 1);
+            if (order == null) record.read(wayIn, tags);
+            else readWay(w, record);
+            for (int j = 0; j < record.size; ++j) {
+                nodes.add(record.nodes[j], record.lats[j], record.lons[j], record.nodeTags[j]);
+                if (idCount == ids.length) ids = Arrays.copyOf(ids, 2 * idCount);
+                ids[idCount++] = record.nodes[j];
+            }
+            all.put(w, record.way(Arrays.copyOf(record.nodes, record.size)));
+            if (count == positions.length) positions = Arrays.copyOf(positions, 2 * count);
+            positions[count++] = w;
+            refs += record.size;
+            ++next;
+        } while (next < ways && refs < limit && (order == null || order.get(next, 0) == tile));
+        positions = Arrays.copyOf(positions, count);
+        Arrays.sort(positions);
+        List<Way> chunk = new ArrayList<>(all.values());
+        Arrays.sort(ids, 0, idCount);
+        int distinct = 0;
+        for (int i = 0; i < idCount; ++i) if (distinct == 0 || ids[i] != ids[distinct - 1]) ids[distinct++] = ids[i];
+
+        // the positions of the references of other ways at the nodes of the chunk, by way
+        Map<Integer, BitSet> stubRefs = new TreeMap<>();
+        for (int i = 0; i < distinct; ++i) {
+            for (long k = context.find(ids[i]); k >= 0 && k < context.size() && context.get(k, 0) == ids[i]; ++k) {
+                long ref = context.get(k, 1);
+                int w = (int) (ref >>> 32);
+                if (Arrays.binarySearch(positions, w) < 0)
+                    stubRefs.computeIfAbsent(w, x -> new BitSet()).set((int) ref);
+            }
+        }
+        List<Way> stubs = new ArrayList<>();
+        long copies = Long.MIN_VALUE;
+        for (Map.Entry<Integer, BitSet> e : stubRefs.entrySet()) {
+            int w = e.getKey();
+            readWay(w, record);
+            BitSet kept = new BitSet(), at = e.getValue();
+            for (int j = at.nextSetBit(0); j >= 0; j = at.nextSetBit(j + 1))
+                kept.set(Math.max(0, j - 1), Math.min(record.size, j + 2));
+            long[] stub = new long[kept.cardinality()];
+            int n = 0;
+            for (int j = kept.nextSetBit(0); j >= 0; j = kept.nextSetBit(j + 1)) {
+                long id = record.nodes[j];
+                if (Arrays.binarySearch(ids, 0, distinct, id) < 0) {
+                    // only the position of a neighbour matters (for the azimuths at the junction)
+                    id = copies++;
+                    nodes.add(id, record.lats[j], record.lons[j], null);
+                }
+                stub[n++] = id;
+            }
+            Way way = record.way(stub);
+            stubs.add(way);
+            all.put(w, way);
+        }
+        // in the order read, as in the whole extract
+        OsmExtract osm = new OsmExtract();
+        osm.ways.addAll(all.values());
+        osm.link(nodes, false, null);
+        ++chunks;
+        return new Chunk(osm, chunk, stubs, positions);
+    }
+
+    // read the way at the given position by random access
+    private void readWay(int w, WayRecord record) throws IOException {
+        long position = offsets.get(w, 0);
+        record.read(new DataInputStream(new ByteArrayInputStream(read(wayAccess.getChannel(), position,
+                (int) (offsets.get(w + 1, 0) - position)))), tags);
+    }
+
+    /**
+     * Delete the temporary files
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (wayIn != null) wayIn.close();
+            if (wayAccess != null) wayAccess.close();
+        } finally {
+            if (wayFile != null) wayFile.delete();
+            offsets = context = order = null;
+        }
+    }
+
+}
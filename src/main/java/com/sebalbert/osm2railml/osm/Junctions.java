@@ -0,0 +1,214 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016-2017  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package com.sebalbert.osm2railml.osm;
+
+import com.sebalbert.osm2railml.Workers;
+
+/**
+ * How the ways meeting at each node are connected, analysed once for all nodes of a NodeStore.
+ *
+ * For each reference of a way to a node with more than one way, this holds its partner (the end of another way
+ * that continues it most straightly, if they are each other's best match), whether it is the canonical place
+ * to model the junction, and, for switches, the orientation and course of each branch relative to the way that
+ * carries the switch. Each node is classified as a plain join, switch, crossing or slip.
+ * All of this is kept in arrays parallel to the node -> way incidence of the store, so it only needs to be read
+ * while building tracks.
+ */
+public final class Junctions {
+
+    public enum Kind {
+        /** only one way at this node */
+        NONE,
+        /** ways joined end to end without a switch */
+        JOIN,
+        SWITCH,
+        /** tagged railway=railway_crossing */
+        CROSSING,
+        /** tagged railway:switch=single_slip */
+        SINGLE_SLIP,
+        /** tagged railway:switch=double_slip */
+        DOUBLE_SLIP
+    }
+
+    /**
+     * Orientation and course of a switch branch (c.f. orientation())
+     */
+    public static final int INCOMING = 1, OUTGOING = 2, LEFT = 4, RIGHT = 8;
+
+    private static final int RAILWAY = TagKeys.id("railway"), RAILWAY_SWITCH = TagKeys.id("railway:switch");
+    private static final Kind[] KINDS = Kind.values();
+
+    // flags per reference besides the orientation bits
+    private static final int CANONICAL = 16, CARRIES_SWITCH = 32;
+
+    private final NodeStore nodes;
+    // per reference (by position in the incidence): position of the partner or -1, and flags
+    private final int[] partner;
+    private final byte[] flags;
+    // per node: position of the reference carrying the switch or -1, and the Kind
+    private final int[] owner;
+    private final byte[] kind;
+
+    private Junctions(NodeStore nodes) {
+        this.nodes = nodes;
+        int refs = nodes.wayRefOffset(nodes.size());
+        partner = new int[refs];
+        flags = new byte[refs];
+        owner = new int[nodes.size()];
+        kind = new byte[nodes.size()];
+    }
+
+    /**
+     * Analyse all nodes of a store (in parallel); uses the azimuths of the ways (c.f. Way.computeGeometry())
+     */
+    public static Junctions of(NodeStore nodes, Workers workers) {
+        Junctions junctions = new Junctions(nodes);
+        workers.forEach(nodes.size(), junctions::analyse);
+        return junctions;
+    }
+
+    /**
+     * Analyse only some nodes of a store (in parallel), e.g. those of the ways converted again after a change;
+     * nothing must be asked about the other nodes
+     * @param indices - positions of the nodes in the store
+     */
+    public static Junctions of(NodeStore nodes, int[] indices, Workers workers) {
+        Junctions junctions = new Junctions(nodes);
+        workers.forEach(indices.length, i -> junctions.analyse(indices[i]));
+        return junctions;
+    }
+
+    private void analyse(int node) {
+        int from = nodes.wayRefOffset(node), to = nodes.wayRefOffset(node + 1), n = to - from;
+        owner[node] = -1;
+        if (n < 2) {
+            if (n == 1) {
+                partner[from] = -1;
+                flags[from] = CANONICAL;
+            }
+            return;
+        }
+        // the most probable "partner" of each reference by comparing azimuths, and whether that is mutual
+        int[] opposite = new int[n];
+        for (int i = 0; i < n; ++i) opposite[i] = oppositeEnd(from, to, from + i);
+        for (int i = 0; i < n; ++i) {
+            int o = opposite[i];
+            partner[from + i] = o >= 0 && opposite[o - from] == from + i ? o : -1;
+        }
+        for (int i = from; i < to; ++i) {
+            Way.NodeRef r = nodes.wayRef(i);
+            boolean interior = r.topologicalPosition() == Way.NodeRef.INTERIOR;
+            // a reference is a canonical place to add elements if it's either an interior node
+            // or the way ID (and part) is smaller than its partner's (if any)
+            boolean canonical = interior || partner[i] < 0 || Way.compare(nodes.wayRef(partner[i]).way, r.way) > 0;
+            int f = canonical ? CANONICAL : 0;
+            if (canonical && (interior || (n > 2 && partner[i] >= 0))) {
+                f |= CARRIES_SWITCH;
+                if (owner[node] < 0) owner[node] = i;
+            }
+            flags[i] = (byte) f;
+        }
+        Tags tags = nodes.tags(node);
+        String nodeType = tags.get(RAILWAY), switchType = tags.get(RAILWAY_SWITCH);
+        Kind k = "railway_crossing".equals(nodeType) ? Kind.CROSSING
+                : "double_slip".equals(switchType) ? Kind.DOUBLE_SLIP
+                : "single_slip".equals(switchType) ? Kind.SINGLE_SLIP
+                : owner[node] >= 0 ? Kind.SWITCH : Kind.JOIN;
+        kind[node] = (byte) k.ordinal();
+        if (k != Kind.SWITCH) return;
+        Way.NodeRef sw = nodes.wayRef(owner[node]);
+        for (int i = from; i < to; ++i) {
+            if (i == owner[node] || i == partner[owner[node]]) continue;
+            flags[i] |= inferSwitchOrientation(sw, nodes.wayRef(i));
+        }
+    }
+
+    // the end of another way at the same node whose direction is most opposite to this reference's, or -1
+    private int oppositeEnd(int from, int to, int ref) {
+        double azimuth = nodes.wayRef(ref).azimuthTowardsWay();
+        int best = -1;
+        double bestCos = Double.POSITIVE_INFINITY;
+        for (int i = from; i < to; ++i) {
+            Way.NodeRef r = nodes.wayRef(i);
+            if (i == ref || r.topologicalPosition() == Way.NodeRef.INTERIOR) continue;
+            double cos = Math.cos(r.azimuthTowardsWay() - azimuth);
+            if (cos < bestCos) {
+                best = i;
+                bestCos = cos;
+            }
+        }
+        return best;
+    }
+
+    private static int inferSwitchOrientation(Way.NodeRef nd, Way.NodeRef nd2) {
+        double sin = Math.sin((nd.azimuth() - nd2.azimuthTowardsWay()) * 0.5);
+        boolean outgoing = Math.abs(sin) < 0.5;
+        return (outgoing ? OUTGOING : INCOMING) | (sin < 0.0 ^ outgoing ? LEFT: RIGHT);
+    }
+
+    /**
+     * @return - the end of another way that continues the way of this reference at its node, or null
+     */
+    public Way.NodeRef partner(Way.NodeRef r) {
+        int p = partner[r.incidence()];
+        return p < 0 ? null : nodes.wayRef(p);
+    }
+
+    /**
+     * @return - whether this reference is where elements at its node are modelled, rather than at its partner
+     */
+    public boolean isCanonical(Way.NodeRef r) {
+        return (flags[r.incidence()] & CANONICAL) != 0;
+    }
+
+    /**
+     * @return - whether this reference is where a switch is modelled (if its node is classified as one)
+     */
+    public boolean carriesSwitch(Way.NodeRef r) {
+        return (flags[r.incidence()] & CARRIES_SWITCH) != 0;
+    }
+
+    /**
+     * @return - the reference at the same node whose way carries the switch, or null
+     */
+    public Way.NodeRef switchOwner(Way.NodeRef r) {
+        int o = owner[r.nodeIndex()];
+        return o < 0 ? null : nodes.wayRef(o);
+    }
+
+    public Kind kind(Way.NodeRef r) {
+        return KINDS[kind[r.nodeIndex()]];
+    }
+
+    /**
+     * @return - the Kind of the i-th node of the way (without creating a NodeRef)
+     */
+    public Kind kind(Way way, int i) {
+        return KINDS[kind[way.nodeIndex(i)]];
+    }
+
+    /**
+     * @return - INCOMING or OUTGOING and LEFT or RIGHT for a branch of a switch, 0 for the ways through it
+     */
+    public int orientation(Way.NodeRef branch) {
+        return flags[branch.incidence()] & (INCOMING | OUTGOING | LEFT | RIGHT);
+    }
+
+}
@@ -19,33 +19,56 @@
 
 package com.sebalbert.osm2railml.osm;
 
-import javax.xml.bind.annotation.XmlAttribute;
-import javax.xml.bind.annotation.XmlID;
-import javax.xml.bind.annotation.XmlTransient;
-import java.util.ArrayList;
 import java.util.List;
 
 /**
- * POJO for a Node in the sense of OSM data
+ * A Node in the sense of OSM data, as a view on its entry in a NodeStore
  */
 
-public class Node extends Taggable {
+public final class Node extends Taggable {
 
-    @XmlAttribute @XmlID
-    public final String id = null;
-    /* Note that OSM XML may contain duplicate IDs in the sense of XML
+    /* Note that OSM data contains duplicate IDs across element types
        because nodes, ways and relations have their own numberings which overlap,
-       and the "id" attributes are not prefixed to make them unique.
-       Thus, using @XmlID is not generally possible for more than one class
-       unless XmlJavaTypeAdapters are used or the XML is otherwise preprocessed
+       so node IDs are only unique among nodes
      */
 
-    @XmlAttribute
-    public final Double lat = Double.NaN, lon = Double.NaN;
+    private final NodeStore store;
+    private final int index;
 
-    @XmlTransient
-    public final List<Way.NodeRef> wayRefs = new ArrayList<>();
+    Node(NodeStore store, int index) {
+        this.store = store;
+        this.index = index;
+    }
 
-    private Node() { }
+    public long id() {
+        return store.id(index);
+    }
+
+    public double lat() {
+        return store.lat(index);
+    }
+
+    public double lon() {
+        return store.lon(index);
+    }
+
+    public List<Way.NodeRef> wayRefs() {
+        return store.wayRefs(index);
+    }
+
+    @Override
+    public Tags tags() {
+        return store.tags(index);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Node && ((Node) o).store == store && ((Node) o).index == index;
+    }
+
+    @Override
+    public int hashCode() {
+        return index;
+    }
 
 }
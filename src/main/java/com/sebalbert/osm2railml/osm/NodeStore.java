@@ -0,0 +1,547 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package com.sebalbert.osm2railml.osm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact storage of nodes in primitive arrays, sorted by their OSM ID.
+ *
+ * Coordinates are held as fixed-point integers in units of 1e-7 degrees, which is the precision of OSM data.
+ * The ways referencing a node are held CSR-style (one array of references, sorted by node, plus offsets), each as
+ * the number of the way and its position within the way; the node sequences of all ways are held in one flat array,
+ * along with the position of each of their references in the incidence (c.f. index()).
+ * Tags are held only for the few nodes that have any.
+ * Node objects are just views ("flyweights") on an index into this store, created on demand.
+ */
+public abstract class NodeStore extends AbstractList<Node> {
+
+    static final double FIXED_POINT = 1e7;
+
+    // node -> way incidence: the references to node i are at wayRefOffsets[i] .. wayRefOffsets[i + 1] of
+    // wayRefWays (the way, in ways) and wayRefIndices (the position within the way)
+    private int[] wayRefOffsets, wayRefWays, wayRefIndices;
+    private Way[] ways;
+    // per position of the node sequences of all ways (which the ways share, c.f. Way): position in the incidence
+    private int[] incidence;
+
+    // tags of tagged nodes, by index (sorted)
+    private int[] taggedIndices = new int[0];
+    private Tags[] taggedTags = new Tags[0];
+
+    @Override
+    public abstract int size();
+
+    /**
+     * @param index - position of the node in this store
+     * @return - the OSM ID of the node
+     */
+    public abstract long id(int index);
+
+    abstract int latFixed(int index);
+
+    abstract int lonFixed(int index);
+
+    // exact division, so coordinates are the same as parsed from the decimals in OSM XML
+    public double lat(int index) {
+        return latFixed(index) / FIXED_POINT;
+    }
+
+    public double lon(int index) {
+        return lonFixed(index) / FIXED_POINT;
+    }
+
+    /**
+     * @param id - OSM ID of a node
+     * @return - the position of the node in this store, or a negative number if it is not contained
+     */
+    public int indexOf(long id) {
+        int low = 0, high = size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midId = id(mid);
+            if (midId < id) low = mid + 1;
+            else if (midId > id) high = mid - 1;
+            else return mid;
+        }
+        return -(low + 1);
+    }
+
+    @Override
+    public Node get(int index) {
+        if (index < 0 || index >= size()) throw new IndexOutOfBoundsException("node index " + index);
+        return new Node(this, index);
+    }
+
+    public List<Way.NodeRef> wayRefs(int index) {
+        int from = wayRefOffsets[index], size = wayRefOffsets[index + 1] - from;
+        return new AbstractList<Way.NodeRef>() {
+            @Override
+            public Way.NodeRef get(int i) {
+                if (i < 0 || i >= size) throw new IndexOutOfBoundsException("way reference " + i);
+                return wayRef(from + i);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    // position of the first reference to node i in the incidence (c.f. index()), or the number of references
+    int wayRefOffset(int index) {
+        return wayRefOffsets[index];
+    }
+
+    Way.NodeRef wayRef(int incidence) {
+        return new Way.NodeRef(ways[wayRefWays[incidence]], wayRefIndices[incidence]);
+    }
+
+    // number of the way (c.f. ways()) and position within it of the reference at the given position of the incidence
+    int wayRefWay(int incidence) {
+        return wayRefWays[incidence];
+    }
+
+    int wayRefIndex(int incidence) {
+        return wayRefIndices[incidence];
+    }
+
+    /**
+     * @return - the ways this store has been indexed with, by number (c.f. index())
+     */
+    List<Way> ways() {
+        return Collections.unmodifiableList(Arrays.asList(ways));
+    }
+
+    // position in the incidence of the reference at the given position of the node sequences (c.f. Way.offset)
+    int incidence(int wayNode) {
+        return incidence[wayNode];
+    }
+
+    // set the tags of the tagged nodes (sorted by index), c.f. Builder.build()
+    void setTags(int[] indices, Tags[] tags) {
+        taggedIndices = indices;
+        taggedTags = tags;
+    }
+
+    int[] taggedIndices() {
+        return taggedIndices;
+    }
+
+    public Tags tags(int index) {
+        int i = Arrays.binarySearch(taggedIndices, index);
+        return i < 0 ? Tags.EMPTY : taggedTags[i];
+    }
+
+    /**
+     * @return - a new store with only those nodes referenced by the given (unresolved) ways
+     */
+    NodeStore retain(List<Way> ways, boolean offHeap) throws IOException {
+        BitSet used = new BitSet(size());
+        for (Way w : ways) {
+            for (int j = 0; j < w.nodeCount(); ++j) {
+                int i = indexOf(w.nodeId(j));
+                if (i >= 0) used.set(i);
+            }
+        }
+        Builder builder = new Builder();
+        for (int i = used.nextSetBit(0); i >= 0; i = used.nextSetBit(i + 1))
+            builder.add(id(i), latFixed(i), lonFixed(i), tags(i));
+        return builder.build(offHeap);
+    }
+
+    /**
+     * Set up the node -> way incidence from the (resolved) node references of the given ways
+     */
+    void index(List<Way> ways) {
+        int[] offsets = new int[size() + 1];
+        for (Way w : ways)
+            for (int j = 0; j < w.nodeCount(); ++j) ++offsets[w.nodeIndex(j) + 1];
+        for (int i = 0; i < size(); ++i) offsets[i + 1] += offsets[i];
+        index(ways, offsets);
+    }
+
+    /**
+     * Set up the node -> way incidence with the number of references to each node known before,
+     * and move the node sequences of the ways into one array
+     * @param offsets - c.f. wayRefOffset()
+     */
+    void index(List<Way> ways, int[] offsets) {
+        Way[] indexed = ways.toArray(new Way[0]);
+        int total = 0;
+        for (Way w : indexed) total += w.nodeCount();
+        int refs = offsets[size()];
+        int[] sequences = new int[total], positions = new int[total], refWays = new int[refs], refIndices = new int[refs];
+        int[] next = Arrays.copyOf(offsets, size());
+        int position = 0;
+        for (int w = 0; w < indexed.length; ++w) {
+            Way way = indexed[w];
+            int start = position;
+            for (int j = 0; j < way.nodeCount(); ++j, ++position) {
+                int node = sequences[position] = way.nodeIndex(j);
+                int ref = positions[position] = next[node]++;
+                refWays[ref] = w;
+                refIndices[ref] = j;
+            }
+            way.setNodes(this, sequences, start, way.nodeCount());
+        }
+        this.ways = indexed;
+        incidence = positions;
+        wayRefOffsets = offsets;
+        wayRefWays = refWays;
+        wayRefIndices = refIndices;
+    }
+
+    /**
+     * @return - a store with the same nodes and tags, sharing their storage, to be indexed with other ways
+     *         (c.f. TrackGraph)
+     */
+    NodeStore view() {
+        NodeStore view = new View(this);
+        view.setTags(taggedIndices, taggedTags);
+        return view;
+    }
+
+    /**
+     * The nodes of another store, with an incidence of its own
+     */
+    private static class View extends NodeStore {
+
+        private final NodeStore nodes;
+
+        View(NodeStore nodes) {
+            this.nodes = nodes;
+        }
+
+        @Override
+        public int size() {
+            return nodes.size();
+        }
+
+        @Override
+        public long id(int index) {
+            return nodes.id(index);
+        }
+
+        @Override
+        int latFixed(int index) {
+            return nodes.latFixed(index);
+        }
+
+        @Override
+        int lonFixed(int index) {
+            return nodes.lonFixed(index);
+        }
+
+    }
+
+    /**
+     * Nodes held in (on-heap) primitive arrays
+     */
+    static class Heap extends NodeStore {
+
+        private final long[] ids;
+        private final int[] lats, lons;
+
+        Heap(long[] ids, int[] lats, int[] lons) {
+            this.ids = ids;
+            this.lats = lats;
+            this.lons = lons;
+        }
+
+        @Override
+        public int size() {
+            return ids.length;
+        }
+
+        @Override
+        public long id(int index) {
+            return ids[index];
+        }
+
+        @Override
+        int latFixed(int index) {
+            return lats[index];
+        }
+
+        @Override
+        int lonFixed(int index) {
+            return lons[index];
+        }
+
+    }
+
+    /**
+     * Nodes held off-heap in a memory-mapped temporary file, so the OS pages them in and out as needed
+     */
+    static class Mapped extends NodeStore {
+
+        // entries per mapped segment (a single mapping is limited to 2 GiB)
+        private static final int SEGMENT_BITS = 27, SEGMENT_SIZE = 1 << SEGMENT_BITS, SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+        private final int size;
+        private LongBuffer[] ids;
+        private IntBuffer[] lats, lons;
+
+        Mapped(int size) throws IOException {
+            File file = File.createTempFile("osm2railml-nodes", ".bin");
+            file.deleteOnExit();
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+                map(channel, 0, size, FileChannel.MapMode.READ_WRITE);
+            }
+            // mappings stay valid after closing the channel; the file itself is not needed by name any more
+            file.delete();
+            this.size = size;
+        }
+
+        /**
+         * Map nodes stored in a file (c.f. ExtractCache), in the layout set() writes
+         * @param position - where the nodes start in the file (c.f. bytes())
+         */
+        Mapped(FileChannel channel, long position, int size, FileChannel.MapMode mode) throws IOException {
+            map(channel, position, size, mode);
+            this.size = size;
+        }
+
+        // number of bytes taken by the given number of nodes in a file
+        static long bytes(int size) {
+            return 16L * size;
+        }
+
+        private void map(FileChannel channel, long position, int size, FileChannel.MapMode mode) throws IOException {
+            int segments = (size + SEGMENT_SIZE - 1) >>> SEGMENT_BITS;
+            ids = new LongBuffer[segments];
+            lats = new IntBuffer[segments];
+            lons = new IntBuffer[segments];
+            for (int s = 0; s < segments; ++s) {
+                int entries = Math.min(SEGMENT_SIZE, size - (s << SEGMENT_BITS));
+                ids[s] = channel.map(mode, position, 8L * entries).order(ByteOrder.nativeOrder()).asLongBuffer();
+                position += 8L * entries;
+                lats[s] = channel.map(mode, position, 4L * entries).order(ByteOrder.nativeOrder()).asIntBuffer();
+                position += 4L * entries;
+                lons[s] = channel.map(mode, position, 4L * entries).order(ByteOrder.nativeOrder()).asIntBuffer();
+                position += 4L * entries;
+            }
+        }
+
+        void set(int index, long id, int lat, int lon) {
+            int s = index >>> SEGMENT_BITS, i = index & SEGMENT_MASK;
+            ids[s].put(i, id);
+            lats[s].put(i, lat);
+            lons[s].put(i, lon);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public long id(int index) {
+            return ids[index >>> SEGMENT_BITS].get(index & SEGMENT_MASK);
+        }
+
+        @Override
+        int latFixed(int index) {
+            return lats[index >>> SEGMENT_BITS].get(index & SEGMENT_MASK);
+        }
+
+        @Override
+        int lonFixed(int index) {
+            return lons[index >>> SEGMENT_BITS].get(index & SEGMENT_MASK);
+        }
+
+    }
+
+    /**
+     * Collects nodes in any order (growable primitive arrays) and builds a sorted NodeStore from them;
+     * with a memory budget, nodes are sorted externally instead (c.f. ExternalSort)
+     */
+    static class Builder {
+
+        private long[] ids = new long[256];
+        private int[] lats = new int[256], lons = new int[256];
+        private int size = 0;
+        private boolean sorted = true;
+        private final Map<Long, Tags> tags = new HashMap<>();
+        // records of ID and position (c.f. position()) if sorted externally
+        private final ExternalSort external;
+
+        Builder() {
+            external = null;
+        }
+
+        /**
+         * @param budget - bytes for sorting nodes in memory, beyond which they are sorted in temporary files,
+         *               or 0 to sort them in memory in any case
+         */
+        Builder(long budget) {
+            external = budget > 0 ? new ExternalSort(2, budget) : null;
+        }
+
+        int size() {
+            return size;
+        }
+
+        // latitude and longitude in one long
+        private static long position(int lat, int lon) {
+            return ((long) lat << 32) | (lon & 0xffffffffL);
+        }
+
+        void add(long id, double lat, double lon, Tags nodeTags) throws IOException {
+            add(id, (int) Math.round(lat * FIXED_POINT), (int) Math.round(lon * FIXED_POINT), nodeTags);
+        }
+
+        void add(long id, int lat, int lon, Tags nodeTags) throws IOException {
+            if (external != null) {
+                external.add(id, position(lat, lon));
+                ++size;
+                if (nodeTags != null && nodeTags.size() > 0) tags.putIfAbsent(id, nodeTags);
+                return;
+            }
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                lats = Arrays.copyOf(lats, size * 2);
+                lons = Arrays.copyOf(lons, size * 2);
+            }
+            if (size > 0 && ids[size - 1] >= id) sorted = false;
+            ids[size] = id;
+            lats[size] = lat;
+            lons[size] = lon;
+            ++size;
+            if (nodeTags != null && nodeTags.size() > 0) tags.putIfAbsent(id, nodeTags);
+        }
+
+        // the tags are passed on by add(), too, so subclasses see them (c.f. ExtractChunks)
+        void addAll(Builder other) throws IOException {
+            boolean tagged = !other.tags.isEmpty();
+            for (int i = 0; i < other.size; ++i)
+                add(other.ids[i], other.lats[i], other.lons[i], tagged ? other.tags.get(other.ids[i]) : null);
+        }
+
+        /**
+         * @param offHeap - whether to build a memory-mapped store instead of one on the heap
+         * @return - a store of the nodes added so far, sorted by ID (and without duplicate IDs)
+         * @throws IOException
+         */
+        NodeStore build(boolean offHeap) throws IOException {
+            NodeStore store = external != null ? buildExternal() : buildSorted(offHeap);
+            int[] taggedIndices = new int[tags.size()];
+            int t = 0;
+            for (long id : tags.keySet()) taggedIndices[t++] = store.indexOf(id);
+            Arrays.sort(taggedIndices);
+            Tags[] taggedTags = new Tags[taggedIndices.length];
+            for (int i = 0; i < taggedIndices.length; ++i) taggedTags[i] = tags.get(store.id(taggedIndices[i]));
+            store.setTags(taggedIndices, taggedTags);
+            return store;
+        }
+
+        // nodes sorted externally are merged into a memory-mapped store (counting them first), as holding them
+        // on the heap would defeat the budget
+        private NodeStore buildExternal() throws IOException {
+            try {
+                int distinct = 0;
+                try (ExternalSort.Cursor c = external.sorted()) {
+                    while (c.next()) ++distinct;
+                }
+                Mapped mapped = new Mapped(distinct);
+                try (ExternalSort.Cursor c = external.sorted()) {
+                    for (int i = 0; c.next(); ++i) {
+                        long position = c.get(1);
+                        mapped.set(i, c.get(0), (int) (position >> 32), (int) position);
+                    }
+                }
+                return mapped;
+            } finally {
+                external.close();
+                ids = null;
+                lats = lons = null;
+            }
+        }
+
+        private NodeStore buildSorted(boolean offHeap) throws IOException {
+            // OSM files are usually sorted by ID, so sorting is mostly not necessary
+            if (!sorted) sort(0, size - 1);
+            int distinct = 0;
+            for (int i = 0; i < size; ++i) {
+                if (distinct > 0 && ids[i] == ids[distinct - 1]) continue;
+                ids[distinct] = ids[i];
+                lats[distinct] = lats[i];
+                lons[distinct] = lons[i];
+                ++distinct;
+            }
+            NodeStore store;
+            if (offHeap) {
+                Mapped mapped = new Mapped(distinct);
+                for (int i = 0; i < distinct; ++i) mapped.set(i, ids[i], lats[i], lons[i]);
+                store = mapped;
+            } else {
+                store = new Heap(Arrays.copyOf(ids, distinct), Arrays.copyOf(lats, distinct),
+                        Arrays.copyOf(lons, distinct));
+            }
+            ids = null;
+            lats = lons = null;
+            return store;
+        }
+
+        // quicksort of the parallel arrays by ID
+        private void sort(int low, int high) {
+            while (low < high) {
+                long pivot = ids[(low + high) >>> 1];
+                int i = low, j = high;
+                while (i <= j) {
+                    while (ids[i] < pivot) ++i;
+                    while (ids[j] > pivot) --j;
+                    if (i <= j) swap(i++, j--);
+                }
+                // recurse into the smaller part only, to bound the stack depth
+                if (j - low < high - i) {
+                    sort(low, j);
+                    low = i;
+                } else {
+                    sort(i, high);
+                    high = j;
+                }
+            }
+        }
+
+        private void swap(int i, int j) {
+            long id = ids[i]; ids[i] = ids[j]; ids[j] = id;
+            int lat = lats[i]; lats[i] = lats[j]; lats[j] = lat;
+            int lon = lons[i]; lons[i] = lons[j]; lons[j] = lon;
+        }
+
+    }
+
+}
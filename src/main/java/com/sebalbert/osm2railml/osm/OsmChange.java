@@ -0,0 +1,253 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016-2017  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package com.sebalbert.osm2railml.osm;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Changes to nodes and ways from an OSM change file (.osc), to be applied to an extract read before
+ * (relations are ignored).
+ *
+ * Note that an extract only holds the nodes of the ways kept, so a way that is newly accepted by the
+ * filter, or modified to run via other nodes, loses those references to (older) nodes that are neither in the
+ * extract nor in the change file; these are reported by missingNodes().
+ */
+public class OsmChange {
+
+    private static final XMLInputFactory factory = XMLInputFactory.newInstance();
+    static {
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    private static class NodeChange {
+
+        final long id;
+        final double lat, lon;
+        final Tags tags;
+
+        NodeChange(long id, double lat, double lon, Tags tags) {
+            this.id = id;
+            this.lat = lat;
+            this.lon = lon;
+            this.tags = tags;
+        }
+
+    }
+
+    // latest state of each changed element, null if deleted
+    private final Map<Long, NodeChange> nodes = new LinkedHashMap<>();
+    private final Map<Long, Way> ways = new LinkedHashMap<>();
+    // per way of the last extract created: IDs of the nodes it lost
+    private Map<Long, long[]> missingNodes = Collections.emptyMap();
+
+    private OsmChange() { }
+
+    /**
+     * Read an OSM change file; later changes to the same element replace earlier ones
+     */
+    public static OsmChange read(File file) throws IOException, XMLStreamException {
+        OsmChange change = new OsmChange();
+        Map<String, String> values = new ConcurrentHashMap<>();
+        Tags.Builder tags = new Tags.Builder(null, values);
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16)) {
+            XMLStreamReader r = factory.createXMLStreamReader(in);
+            boolean delete = false;
+            Way way = null;
+            long nodeId = 0;
+            double lat = Double.NaN, lon = Double.NaN;
+            boolean inNode = false;
+            while (r.hasNext()) {
+                int event = r.next();
+                if (event == XMLStreamConstants.END_ELEMENT) {
+                    switch (r.getLocalName()) {
+                        case "node":
+                            if (inNode) change.nodes.put(nodeId, delete ? null : new NodeChange(nodeId, lat, lon,
+                                    tags.build()));
+                            tags.build();
+                            inNode = false;
+                            break;
+                        case "way":
+                            if (way == null) break;
+                            way.tags = tags.build();
+                            change.ways.put(way.id, delete ? null : way);
+                            way = null;
+                            break;
+                        case "relation":
+                            tags.build();
+                            break;
+                    }
+                }
+                if (event != XMLStreamConstants.START_ELEMENT) continue;
+                switch (r.getLocalName()) {
+                    case "create": case "modify": delete = false; break;
+                    case "delete": delete = true; break;
+                    case "node":
+                        inNode = true;
+                        nodeId = Long.parseLong(r.getAttributeValue(null, "id"));
+                        if (delete) break;
+                        lat = Double.parseDouble(r.getAttributeValue(null, "lat"));
+                        lon = Double.parseDouble(r.getAttributeValue(null, "lon"));
+                        break;
+                    case "way":
+                        way = new Way();
+                        way.id = Long.parseLong(r.getAttributeValue(null, "id"));
+                        break;
+                    case "nd":
+                        if (way != null) way.addNodeId(Long.parseLong(r.getAttributeValue(null, "ref")));
+                        break;
+                    case "tag":
+                        tags.add(r.getAttributeValue(null, "k"), r.getAttributeValue(null, "v"));
+                        break;
+                }
+            }
+            r.close();
+        }
+        return change;
+    }
+
+    /**
+     * Create a new extract from a previous one with these changes applied; the previous one is left as is.
+     * Ways are ordered by ID, like in OSM files.
+     * @param old - the extract the changes apply to
+     * @param options - the way filter, tag whitelist and storage of nodes (as when reading the previous extract)
+     */
+    public OsmExtract apply(OsmExtract old, OsmExtract.Options options) throws IOException {
+        OsmExtract updated = new OsmExtract();
+        for (Way w : old.ways) {
+            if (!ways.containsKey(w.id)) updated.ways.add(copy(w));
+        }
+        for (Way w : ways.values()) {
+            if (w != null && options.wayFilter.test(w)) {
+                Way copy = copy(w);
+                copy.tags = w.tags.retain(options.tagKeys);
+                updated.ways.add(copy);
+            }
+        }
+        updated.ways.sort(Comparator.comparingLong(w -> w.id));
+
+        long[] refs = updated.ways.stream().flatMapToLong(w -> Arrays.stream(w.nodeIds()))
+                .sorted().distinct().toArray();
+        boolean[] found = new boolean[refs.length];
+        NodeStore.Builder builder = new NodeStore.Builder();
+        for (int i = 0; i < old.nodes.size(); ++i) {
+            long id = old.nodes.id(i);
+            int r = Arrays.binarySearch(refs, id);
+            if (!nodes.containsKey(id) && r >= 0) {
+                builder.add(id, old.nodes.latFixed(i), old.nodes.lonFixed(i), old.nodes.tags(i));
+                found[r] = true;
+            }
+        }
+        for (NodeChange n : nodes.values()) {
+            int r = n == null ? -1 : Arrays.binarySearch(refs, n.id);
+            if (r >= 0) {
+                builder.add(n.id, n.lat, n.lon, n.tags.retain(options.tagKeys));
+                found[r] = true;
+            }
+        }
+        missingNodes = missingNodes(updated, refs, found);
+        updated.link(builder, options.offHeapNodes, null);
+        return updated;
+    }
+
+    // the references of each way to nodes not found (before linking drops them)
+    private static Map<Long, long[]> missingNodes(OsmExtract osm, long[] refs, boolean[] found) {
+        Map<Long, long[]> missing = new TreeMap<>();
+        boolean any = false;
+        for (boolean f : found) any |= !f;
+        if (!any) return missing;
+        for (Way w : osm.ways) {
+            long[] ids = Arrays.stream(w.nodeIds()).filter(id -> !found[Arrays.binarySearch(refs, id)]).toArray();
+            if (ids.length > 0) missing.put(w.id, ids);
+        }
+        return missing;
+    }
+
+    /**
+     * @return - per way of the extract created by the last apply(), the IDs of the nodes it references that are
+     *           neither in the previous extract nor in the change (and were dropped from the way), by way ID
+     */
+    public Map<Long, long[]> missingNodes() {
+        return missingNodes;
+    }
+
+    private static Way copy(Way w) {
+        Way copy = new Way();
+        copy.id = w.id;
+        copy.tags = w.tags;
+        copy.setNodeIds(w.nodeIds());
+        return copy;
+    }
+
+    /**
+     * @return - IDs of the ways in either extract that are changed themselves or have a changed node
+     */
+    public Set<Long> changedWays(OsmExtract old, OsmExtract updated) {
+        Set<Long> changed = new HashSet<>(ways.keySet());
+        for (OsmExtract osm : Arrays.asList(old, updated)) {
+            for (long id : nodes.keySet()) {
+                int i = osm.nodes.indexOf(id);
+                if (i >= 0) for (Way.NodeRef r : osm.nodes.wayRefs(i)) changed.add(r.way.id);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @return - the given ways and all ways sharing a node with one of them in the given extract
+     */
+    public static Set<Long> withNeighbours(OsmExtract osm, Set<Long> wayIds) {
+        Set<Long> result = new HashSet<>(wayIds);
+        for (Way w : osm.ways) {
+            if (!wayIds.contains(w.id)) continue;
+            for (Way.NodeRef r : w.nodeRefs())
+                for (Way.NodeRef other : r.node().wayRefs()) result.add(other.way.id);
+        }
+        return result;
+    }
+
+    /**
+     * @return - IDs of the ways created, modified or deleted by this change
+     */
+    public Set<Long> wayIds() {
+        return Collections.unmodifiableSet(ways.keySet());
+    }
+
+    public int size() {
+        return nodes.size() + ways.size();
+    }
+
+}
@@ -19,39 +19,360 @@
 
 package com.sebalbert.osm2railml.osm;
 
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.JAXBException;
-import javax.xml.bind.Unmarshaller;
-import javax.xml.bind.annotation.XmlElement;
-import javax.xml.bind.annotation.XmlRootElement;
+import com.sebalbert.osm2railml.Workers;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
 
 /**
  * Main object holding data from OpenStreetMap (Nodes, Ways, Relations)
  */
-@XmlRootElement(name = "osm")
 public class OsmExtract {
 
-    @XmlElement(name = "node")
-    public final List<Node> nodes = new ArrayList<Node>();
+    /**
+     * Default filter for ways to be read: everything tagged as railway=*
+     */
+    public static final WayFilter RAILWAY_WAYS = new WayFilter((Set<String>) null);
+
+    /**
+     * Default filter for relations to be read: routes (and route masters) of trains, trams, subways etc.,
+     * railway lines (route=railway), and station areas (multipolygons or stop areas tagged as stations)
+     */
+    public static final Predicate<Tags> RAIL_RELATIONS = OsmExtract::isRailRelation;
+
+    private static final Set<String> RAIL_ROUTES = new HashSet<>(Arrays.asList("railway", "train", "tracks",
+            "light_rail", "tram", "subway", "monorail"));
+    private static final Set<String> STATION_AREAS = new HashSet<>(Arrays.asList("multipolygon", "public_transport"));
+    private static final int TYPE = TagKeys.id("type"), ROUTE = TagKeys.id("route"),
+            ROUTE_MASTER = TagKeys.id("route_master"), RAILWAY = TagKeys.id("railway"),
+            PUBLIC_TRANSPORT = TagKeys.id("public_transport");
+
+    public NodeStore nodes;
 
-    @XmlElement(name = "way")
     public final List<Way> ways = new ArrayList<Way>();
 
-    private OsmExtract() { }
+    /**
+     * the relations accepted by the relation filter (c.f. Options.relationFilter)
+     */
+    public RelationStore relations = RelationStore.EMPTY;
+
+    private Junctions junctions = null;
+    private Components components = null;
+
+    OsmExtract() { }
+
+    /**
+     * Options for reading OSM files
+     */
+    public static class Options {
+
+        /**
+         * decides which ways (with their tags and node references read) are kept;
+         * a WayFilter is already applied when the tags of a way are read
+         */
+        public Predicate<Way> wayFilter = RAILWAY_WAYS;
+
+        /**
+         * decides by their tags which relations (with their members) are kept, or null to read no relations;
+         * like the way filter, it is applied before dropping tags
+         */
+        public Predicate<Tags> relationFilter = RAIL_RELATIONS;
+
+        /**
+         * if set, only ways with at least one node in this region are kept (with all their nodes)
+         */
+        public Region region = null;
+
+        /**
+         * number of threads for decoding (PBF)
+         */
+        public int threads = Runtime.getRuntime().availableProcessors();
+
+        /**
+         * threads for decoding (PBF) shared with other work, or null to start threads for each file
+         */
+        public ExecutorService decoders = null;
+
+        /**
+         * whether to hold the nodes in a memory-mapped file instead of on the heap
+         */
+        public boolean offHeapNodes = false;
+
+        /**
+         * if positive, the memory (in bytes) for sorting the node references of the ways and the nodes while reading,
+         * beyond which they are sorted and joined in temporary files (c.f. OsmReader); the nodes are then held
+         * off-heap, too. Required for reading in chunks (c.f. ExtractChunks), where it bounds the chunks as well
+         */
+        public long joinMemory = 0;
+
+        /**
+         * keys of the tags to be kept (others are dropped while reading), or null to keep all tags;
+         * note that the way filter is applied before dropping tags, so it can use any tags
+         */
+        public Set<String> tagKeys = null;
+
+        /**
+         * called with the name of each phase of reading when it starts ("index" after reading the nodes)
+         */
+        public Consumer<String> onPhase = phase -> { };
+
+        /**
+         * if set, the parsed extract is kept in a file in this directory (one per input file) and memory-mapped
+         * from it as long as the input file does not change (c.f. ExtractCache)
+         */
+        public File cache = null;
+
+    }
+
+    /**
+     * Construct from an OSM XML or PBF file (judging by the file name), keeping railway ways and the nodes they reference
+     * @param file - A File object of an XML or PBF file containing OSM data to be read
+     * @return - an OsmExtract object representing the data from the file
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    public static OsmExtract fromFile(File file) throws IOException, XMLStreamException {
+        return fromFile(file, new Options());
+    }
+
+    /**
+     * Construct from an OSM XML or PBF file (judging by the file name), keeping only ways accepted by a filter
+     * and the nodes they reference
+     * @param file - A File object of an XML or PBF file containing OSM data to be read
+     * @param options - filter and further options for reading
+     * @return - an OsmExtract object representing the data from the file
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    public static OsmExtract fromFile(File file, Options options) throws IOException, XMLStreamException {
+        if (options.cache != null) return ExtractCache.read(file, options);
+        return parse(file, options);
+    }
+
+    private static boolean isRailRelation(Tags tags) {
+        String type = tags.get(TYPE);
+        if ("route".equals(type)) return RAIL_ROUTES.contains(tags.get(ROUTE));
+        if ("route_master".equals(type)) return RAIL_ROUTES.contains(tags.get(ROUTE_MASTER));
+        if (!STATION_AREAS.contains(type)) return false;
+        String railway = tags.get(RAILWAY);
+        return "station".equals(railway) || "halt".equals(railway) || "station".equals(tags.get(PUBLIC_TRANSPORT)) ||
+                ("stop_area".equals(tags.get(PUBLIC_TRANSPORT)) && railway != null);
+    }
+
+    static OsmExtract parse(File file, Options options) throws IOException, XMLStreamException {
+        return reader(file, options).read();
+    }
+
+    // the reader for the format of the file (judging by its name)
+    static OsmReader reader(File file, Options options) {
+        if (file.getName().endsWith(".pbf")) return new OsmPbfReader(file, options);
+        return new OsmXmlReader(file, options);
+    }
+
+    /**
+     * Precompute positions and azimuths along all ways (in the calling thread)
+     * @param method - how to compute the distance and azimuths of each segment
+     */
+    public void computeGeometry(GeodesicMethod method) {
+        computeGeometry(method, Workers.CALLER);
+    }
 
     /**
-     * Construct from XML file via JAXB
-     * @param file - A File object of an XML file containing OSM data to be read
-     * @return - an OsmExtract object representing the data from the XML file
-     * @throws JAXBException
+     * Precompute positions and azimuths along all ways in parallel
+     * @param method - how to compute the distance and azimuths of each segment
      */
-    public static OsmExtract fromFile(File file) throws JAXBException {
-        JAXBContext context = JAXBContext.newInstance(OsmExtract.class);
-        Unmarshaller unmarshaller = context.createUnmarshaller();
-        return (OsmExtract) unmarshaller.unmarshal(file);
+    public void computeGeometry(GeodesicMethod method, Workers workers) {
+        workers.forEach(ways, Way::nodeCount, w -> w.computeGeometry(method));
+        junctions = null;
+    }
+
+    /**
+     * Precompute positions and azimuths along some of the ways only (e.g. those around a change) in parallel
+     * @param method - how to compute the distance and azimuths of each segment
+     */
+    public void computeGeometry(GeodesicMethod method, List<Way> some, Workers workers) {
+        workers.forEach(some, Way::nodeCount, w -> w.computeGeometry(method));
+        junctions = null;
+    }
+
+    /**
+     * @return - how the ways are connected at each node, analysed (in the calling thread) on first use after
+     *           computing the geometry
+     */
+    public Junctions junctions() {
+        return junctions(Workers.CALLER);
+    }
+
+    /**
+     * @return - how the ways are connected at each node, analysed in parallel on first use after computing
+     *           the geometry
+     */
+    public synchronized Junctions junctions(Workers workers) {
+        if (junctions == null) junctions = Junctions.of(nodes, workers);
+        return junctions;
+    }
+
+    /**
+     * @return - how the ways are connected at the nodes of the given ways only, analysed anew in parallel
+     *           (not kept); uses the geometry of all ways at these nodes
+     */
+    public Junctions junctionsAt(List<Way> some, Workers workers) {
+        int[] indices = some.stream().flatMapToInt(w -> IntStream.range(0, w.nodeCount()).map(w::nodeIndex))
+                .sorted().distinct().toArray();
+        return Junctions.of(nodes, indices, workers);
+    }
+
+    /**
+     * @return - the connected components of the ways (by their position in ways), found on first use
+     */
+    public synchronized Components components() {
+        if (components == null) components = Components.of(nodes);
+        return components;
+    }
+
+    /**
+     * Write the nodes, ways and relations of this extract in a compact binary form (c.f. read())
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(nodes.size());
+        for (int i = 0; i < nodes.size(); ++i) {
+            out.writeLong(nodes.id(i));
+            out.writeInt(nodes.latFixed(i));
+            out.writeInt(nodes.lonFixed(i));
+            writeTags(out, nodes.tags(i));
+        }
+        out.writeInt(ways.size());
+        for (Way w : ways) {
+            out.writeLong(w.id);
+            writeTags(out, w.tags);
+            out.writeInt(w.nodeCount());
+            for (int j = 0; j < w.nodeCount(); ++j) out.writeLong(w.nodeId(j));
+        }
+        writeRelations(out, relations, DataOutput::writeUTF);
+    }
+
+    /**
+     * Read an extract written by write()
+     * @param offHeap - whether to hold the nodes in a memory-mapped file
+     */
+    public static OsmExtract read(DataInput in, boolean offHeap) throws IOException {
+        OsmExtract osm = new OsmExtract();
+        Tags.Builder tags = new Tags.Builder(null, new HashMap<>());
+        NodeStore.Builder nodes = new NodeStore.Builder();
+        for (int i = in.readInt(); i > 0; --i)
+            nodes.add(in.readLong(), in.readInt(), in.readInt(), readTags(in, tags));
+        for (int i = in.readInt(); i > 0; --i) {
+            Way w = new Way();
+            w.id = in.readLong();
+            w.tags = readTags(in, tags);
+            long[] ids = new long[in.readInt()];
+            for (int j = 0; j < ids.length; ++j) ids[j] = in.readLong();
+            w.setNodeIds(ids);
+            osm.ways.add(w);
+        }
+        osm.relations = readRelations(in, tags, DataInput::readUTF);
+        osm.link(nodes, offHeap, null);
+        return osm;
+    }
+
+    interface StringEncoder {
+        void write(DataOutput out, String s) throws IOException;
+    }
+
+    interface StringDecoder {
+        String read(DataInput in) throws IOException;
+    }
+
+    // also used by ExtractCache, which writes strings to its own table
+    static void writeRelations(DataOutput out, RelationStore relations, StringEncoder strings) throws IOException {
+        out.writeInt(relations.size());
+        for (Relation r : relations) {
+            out.writeLong(r.id());
+            Tags tags = r.tags();
+            out.writeShort(tags.size());
+            for (int i = 0; i < tags.size(); ++i) {
+                strings.write(out, tags.key(i));
+                strings.write(out, tags.value(i));
+            }
+            List<Relation.Member> members = r.members();
+            out.writeInt(members.size());
+            for (Relation.Member m : members) {
+                out.writeByte(m.type.ordinal());
+                out.writeLong(m.ref);
+                strings.write(out, m.role);
+            }
+        }
+    }
+
+    static RelationStore readRelations(DataInput in, Tags.Builder tags, StringDecoder strings) throws IOException {
+        RelationStore.Builder relations = new RelationStore.Builder();
+        Relation.MemberType[] types = Relation.MemberType.values();
+        for (int i = in.readInt(); i > 0; --i) {
+            long id = in.readLong();
+            for (int j = in.readUnsignedShort(); j > 0; --j) tags.add(strings.read(in), strings.read(in));
+            Tags relationTags = tags.build();
+            for (int j = in.readInt(); j > 0; --j)
+                relations.member(types[in.readUnsignedByte()], in.readLong(), strings.read(in));
+            relations.add(id, relationTags);
+        }
+        return relations.build();
+    }
+
+    // also used by ExtractChunks, like readTags()
+    static void writeTags(DataOutput out, Tags tags) throws IOException {
+        out.writeShort(tags.size());
+        for (int i = 0; i < tags.size(); ++i) {
+            out.writeUTF(tags.key(i));
+            out.writeUTF(tags.value(i));
+        }
+    }
+
+    static Tags readTags(DataInput in, Tags.Builder tags) throws IOException {
+        for (int i = in.readUnsignedShort(); i > 0; --i) tags.add(in.readUTF(), in.readUTF());
+        return tags.build();
+    }
+
+    /**
+     * Build the node store once the nodes have been read and resolve the node references of all ways,
+     * dropping ways outside the region (if any) and ways that end up with less than two nodes
+     */
+    void link(NodeStore.Builder nodes, boolean offHeap, Region region) throws IOException {
+        // node positions are only known after the second pass, so the nodes of the dropped ways are
+        // only removed now, before the final store is built
+        if (region == null) resolve(nodes.build(offHeap));
+        else retain(nodes.build(false), offHeap, region);
+    }
+
+    /**
+     * Keep only the nodes referenced by the ways (dropping ways outside the region first, if any) in a new store,
+     * and resolve the node references of all ways
+     * @param all - the nodes referenced by the ways, and possibly others
+     */
+    void retain(NodeStore all, boolean offHeap, Region region) throws IOException {
+        if (region != null) ways.removeIf(w -> Arrays.stream(w.nodeIds()).noneMatch(id -> {
+            int i = all.indexOf(id);
+            return i >= 0 && region.contains(all.lat(i), all.lon(i));
+        }));
+        resolve(all.retain(ways, offHeap));
+    }
+
+    private void resolve(NodeStore nodes) {
+        this.nodes = nodes;
+        ways.removeIf(w -> !w.resolve(nodes));
+        nodes.index(ways);
     }
 
 }
@@ -0,0 +1,431 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package com.sebalbert.osm2railml.osm;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reader for OSM PBF files (c.f. https://wiki.openstreetmap.org/wiki/PBF_Format).
+ *
+ * Blobs are read sequentially, but decompressed and decoded on a pool of worker threads, as each
+ * PrimitiveBlock can be decoded independently. Results are consumed in file order, so the extract is
+ * the same regardless of the number of threads.
+ */
+class OsmPbfReader extends OsmReader {
+
+    private static final Set<String> SUPPORTED_FEATURES =
+            new HashSet<>(Arrays.asList("OsmSchema-V0.6", "DenseNodes"));
+
+    // c.f. the limits in the format specification
+    private static final int MAX_HEADER_SIZE = 64 * 1024, MAX_BLOB_SIZE = 32 * 1024 * 1024;
+
+    private final int threads;
+    private final ExecutorService decoders;
+
+    OsmPbfReader(File file, OsmExtract.Options options) {
+        super(file, options);
+        this.threads = options.threads;
+        this.decoders = options.decoders;
+    }
+
+    @Override
+    protected void readWays(OsmExtract osm) throws IOException {
+        forEachBlock(this::decodeWays, decoded -> {
+            for (Way w : decoded.ways) addWay(osm, w);
+            addRelations(decoded.relations);
+        });
+    }
+
+    @Override
+    protected void readNodes(NodeStore.Builder nodes) throws IOException {
+        forEachBlock(this::decodeNodes, nodes::addAll);
+    }
+
+    private interface BlockDecoder<T> {
+        T decode(PrimitiveBlock block) throws IOException;
+    }
+
+    private interface BlockConsumer<T> {
+        void accept(T decoded) throws IOException;
+    }
+
+    private <T> void forEachBlock(BlockDecoder<T> decoder, BlockConsumer<T> consumer) throws IOException {
+        ExecutorService pool = decoders != null ? decoders : Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "pbf-decoder");
+            t.setDaemon(true);
+            return t;
+        });
+        // bounded number of blocks in flight, so memory does not depend on how fast the workers are
+        Deque<Future<T>> pending = new ArrayDeque<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            String type;
+            while ((type = readBlobHeader(in)) != null) {
+                byte[] blob = new byte[blobSize];
+                in.readFully(blob);
+                if (type.equals("OSMHeader")) {
+                    checkHeader(new ProtobufInput(inflate(blob)));
+                    continue;
+                }
+                if (!type.equals("OSMData")) continue; // unknown blob types are to be skipped
+                pending.add(pool.submit(() -> decoder.decode(new PrimitiveBlock(inflate(blob)))));
+                if (pending.size() >= 2 * threads) consumer.accept(await(pending.poll()));
+            }
+            while (!pending.isEmpty()) consumer.accept(await(pending.poll()));
+        } finally {
+            if (pool != decoders) pool.shutdownNow();
+            else for (Future<T> f : pending) f.cancel(true);
+        }
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while decoding PBF data", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException("error decoding PBF data", e.getCause());
+        }
+    }
+
+    // size of the blob following the last header read by readBlobHeader()
+    private int blobSize;
+
+    // returns the type of the next blob, or null at the end of the file
+    private String readBlobHeader(DataInputStream in) throws IOException {
+        int headerSize;
+        try {
+            headerSize = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (headerSize < 0 || headerSize > MAX_HEADER_SIZE)
+            throw new IOException("invalid BlobHeader size " + headerSize + " in " + file);
+        byte[] header = new byte[headerSize];
+        in.readFully(header);
+        ProtobufInput h = new ProtobufInput(header);
+        String type = null;
+        blobSize = -1;
+        while (h.hasNext()) {
+            int tag = h.readTag();
+            switch (tag >>> 3) {
+                case 1: type = h.readString(); break;
+                case 3: blobSize = h.readInt(); break;
+                default: h.skip(tag & 7);
+            }
+        }
+        if (type == null || blobSize < 0 || blobSize > MAX_BLOB_SIZE)
+            throw new IOException("invalid BlobHeader in " + file);
+        return type;
+    }
+
+    private static byte[] inflate(byte[] blob) throws IOException {
+        ProtobufInput b = new ProtobufInput(blob);
+        byte[] raw = null, zlib = null;
+        int rawSize = -1;
+        while (b.hasNext()) {
+            int tag = b.readTag();
+            switch (tag >>> 3) {
+                case 1: raw = b.readBytes(); break;
+                case 2: rawSize = b.readInt(); break;
+                case 3: zlib = b.readBytes(); break;
+                case 4: case 5: case 6: case 7:
+                    throw new IOException("unsupported PBF blob compression (only raw and zlib are supported)");
+                default: b.skip(tag & 7);
+            }
+        }
+        if (raw != null) return raw;
+        if (zlib == null || rawSize < 0) throw new IOException("PBF blob without data");
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(zlib);
+            byte[] data = new byte[rawSize];
+            int n = 0;
+            while (n < rawSize && !inflater.finished()) {
+                int inflated = inflater.inflate(data, n, rawSize - n);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                n += inflated;
+            }
+            if (n != rawSize) throw new IOException("PBF blob shorter than its declared raw size");
+            return data;
+        } catch (DataFormatException e) {
+            throw new IOException("corrupt zlib data in PBF blob", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private void checkHeader(ProtobufInput h) throws IOException {
+        while (h.hasNext()) {
+            int tag = h.readTag();
+            if (tag >>> 3 == 4) {
+                String feature = h.readString();
+                if (!SUPPORTED_FEATURES.contains(feature))
+                    throw new IOException("unsupported required feature " + feature + " in " + file);
+            } else h.skip(tag & 7);
+        }
+    }
+
+    /**
+     * Decoded PrimitiveBlock: string table (decoded lazily), coordinate scaling, and the raw PrimitiveGroups
+     */
+    private static class PrimitiveBlock {
+
+        private final byte[] data;
+        private final List<ProtobufInput> groups = new ArrayList<>();
+        private int[] stringOffsets = new int[0];
+        private String[] strings;
+        private long granularity = 100, latOffset = 0, lonOffset = 0;
+
+        PrimitiveBlock(byte[] data) throws IOException {
+            this.data = data;
+            ProtobufInput b = new ProtobufInput(data);
+            // granularity and offsets come after the groups in field order, so only collect the groups here
+            while (b.hasNext()) {
+                int tag = b.readTag();
+                switch (tag >>> 3) {
+                    case 1: readStringTable(b.readMessage()); break;
+                    case 2: groups.add(b.readMessage()); break;
+                    case 17: granularity = b.readVarint(); break;
+                    case 19: latOffset = b.readVarint(); break;
+                    case 20: lonOffset = b.readVarint(); break;
+                    default: b.skip(tag & 7);
+                }
+            }
+            strings = new String[stringOffsets.length];
+        }
+
+        private void readStringTable(ProtobufInput st) throws IOException {
+            int count = 0;
+            while (st.hasNext()) {
+                int tag = st.readTag();
+                if (tag >>> 3 != 1) {
+                    st.skip(tag & 7);
+                    continue;
+                }
+                if (count == stringOffsets.length) stringOffsets = Arrays.copyOf(stringOffsets, count * 2 + 16);
+                stringOffsets[count++] = st.skipDelimited();
+            }
+            stringOffsets = Arrays.copyOf(stringOffsets, count);
+        }
+
+        String string(int index) throws IOException {
+            if (index < 0 || index >= strings.length) throw new IOException("invalid string index in PBF data");
+            String s = strings[index];
+            if (s == null) {
+                int offset = stringOffsets[index];
+                s = strings[index] = new ProtobufInput(data, offset, data.length - offset).readString();
+            }
+            return s;
+        }
+
+        // exact division, so coordinates are the same as parsed from the decimals in OSM XML
+        double lat(long raw) {
+            return (latOffset + granularity * raw) / 1e9;
+        }
+
+        double lon(long raw) {
+            return (lonOffset + granularity * raw) / 1e9;
+        }
+
+    }
+
+    // ways and relations of a block accepted by the filters
+    private static class WaysAndRelations {
+        final List<Way> ways = new ArrayList<>();
+        final RelationStore.Builder relations = new RelationStore.Builder();
+    }
+
+    private WaysAndRelations decodeWays(PrimitiveBlock block) throws IOException {
+        WaysAndRelations decoded = new WaysAndRelations();
+        Tags.Builder tags = wayTagsBuilder();
+        for (ProtobufInput group : block.groups) {
+            while (group.hasNext()) {
+                int tag = group.readTag();
+                switch (tag >>> 3) {
+                    case 3:
+                        Way way = decodeWay(block, group.readMessage(), tags);
+                        if (way != null && wayFilter.test(way)) decoded.ways.add(way);
+                        break;
+                    case 4:
+                        if (readsRelations()) decodeRelation(block, group.readMessage(), decoded.relations, tags);
+                        else group.skip(tag & 7);
+                        break;
+                    default: group.skip(tag & 7);
+                }
+            }
+        }
+        return decoded;
+    }
+
+    private void decodeRelation(PrimitiveBlock block, ProtobufInput r, RelationStore.Builder relations,
+                                Tags.Builder tags) throws IOException {
+        long id = 0;
+        ProtobufInput keys = null, roles = null, refs = null, types = null;
+        Tags relationTags = Tags.EMPTY;
+        while (r.hasNext()) {
+            int tag = r.readTag();
+            switch (tag >>> 3) {
+                case 1: id = r.readVarint(); break;
+                case 2: keys = r.readMessage(); break;
+                case 3:
+                    relationTags = decodeTags(block, keys, r.readMessage(), tags);
+                    // the members follow the tags, so they need not be decoded for relations that are rejected
+                    if (!options.relationFilter.test(relationTags)) return;
+                    break;
+                case 8: roles = r.readMessage(); break;
+                case 9: refs = r.readMessage(); break;
+                case 10: types = r.readMessage(); break;
+                default: r.skip(tag & 7);
+            }
+        }
+        if (refs != null) {
+            if (roles == null || types == null) throw new IOException("relation members without roles or types");
+            long ref = 0;
+            while (refs.hasNext()) {
+                int type = types.readInt();
+                if (type < 0 || type > 2) throw new IOException("invalid relation member type in PBF data");
+                relations.member(Relation.MemberType.values()[type], ref += refs.readSInt64(),
+                        block.string(roles.readInt()));
+            }
+        }
+        addRelation(relations, id, relationTags);
+    }
+
+    // null if rejected by its tags (which precede the node references)
+    private Way decodeWay(PrimitiveBlock block, ProtobufInput w, Tags.Builder tags) throws IOException {
+        Way way = new Way();
+        ProtobufInput keys = null;
+        while (w.hasNext()) {
+            int tag = w.readTag();
+            switch (tag >>> 3) {
+                case 1: way.id = w.readVarint(); break;
+                case 2: keys = w.readMessage(); break;
+                case 3:
+                    way.tags = decodeTags(block, keys, w.readMessage(), tags);
+                    if (rejectsTags(way.tags)) return null;
+                    break;
+                case 8:
+                    ProtobufInput refs = w.readMessage();
+                    long ref = 0;
+                    while (refs.hasNext()) way.addNodeId(ref += refs.readSInt64());
+                    break;
+                default: w.skip(tag & 7);
+            }
+        }
+        return way;
+    }
+
+    private static Tags decodeTags(PrimitiveBlock block, ProtobufInput keys, ProtobufInput vals, Tags.Builder tags)
+            throws IOException {
+        if (keys == null) throw new IOException("PBF tag values without keys");
+        while (keys.hasNext() && vals.hasNext()) tags.add(block.string(keys.readInt()), block.string(vals.readInt()));
+        return tags.build();
+    }
+
+    private NodeStore.Builder decodeNodes(PrimitiveBlock block) throws IOException {
+        NodeStore.Builder nodes = new NodeStore.Builder();
+        Tags.Builder tags = nodeTagsBuilder();
+        for (ProtobufInput group : block.groups) {
+            while (group.hasNext()) {
+                int tag = group.readTag();
+                switch (tag >>> 3) {
+                    case 1: decodeNode(block, group.readMessage(), nodes, tags); break;
+                    case 2: decodeDenseNodes(block, group.readMessage(), nodes, tags); break;
+                    default: group.skip(tag & 7);
+                }
+            }
+        }
+        return nodes;
+    }
+
+    private void decodeNode(PrimitiveBlock block, ProtobufInput n, NodeStore.Builder nodes, Tags.Builder tags)
+            throws IOException {
+        long id = 0, lat = 0, lon = 0;
+        ProtobufInput keys = null, vals = null;
+        while (n.hasNext()) {
+            int tag = n.readTag();
+            switch (tag >>> 3) {
+                case 1: id = n.readSInt64(); break;
+                case 2: keys = n.readMessage(); break;
+                case 3: vals = n.readMessage(); break;
+                case 8: lat = n.readSInt64(); break;
+                case 9: lon = n.readSInt64(); break;
+                default: n.skip(tag & 7);
+            }
+        }
+        if (!isReferenced(id)) return;
+        nodes.add(id, block.lat(lat), block.lon(lon), vals == null ? null : decodeTags(block, keys, vals, tags));
+    }
+
+    private void decodeDenseNodes(PrimitiveBlock block, ProtobufInput d, NodeStore.Builder nodes,
+                                  Tags.Builder tags) throws IOException {
+        ProtobufInput ids = null, lats = null, lons = null, keysVals = null;
+        while (d.hasNext()) {
+            int tag = d.readTag();
+            switch (tag >>> 3) {
+                case 1: ids = d.readMessage(); break;
+                case 8: lats = d.readMessage(); break;
+                case 9: lons = d.readMessage(); break;
+                case 10: keysVals = d.readMessage(); break;
+                default: d.skip(tag & 7);
+            }
+        }
+        if (ids == null) return;
+        if (lats == null || lons == null) throw new IOException("dense nodes without coordinates in PBF data");
+        long id = 0, lat = 0, lon = 0;
+        while (ids.hasNext()) {
+            // all columns are delta-coded, so every entry has to be decoded even for nodes that are skipped
+            id += ids.readSInt64();
+            lat += lats.readSInt64();
+            lon += lons.readSInt64();
+            boolean referenced = isReferenced(id);
+            // keys_vals: pairs of string indices per node, each node's list terminated by 0
+            if (keysVals != null) {
+                int key;
+                while (keysVals.hasNext() && (key = keysVals.readInt()) != 0) {
+                    int val = keysVals.readInt();
+                    if (referenced) tags.add(block.string(key), block.string(val));
+                }
+            }
+            if (referenced) nodes.add(id, block.lat(lat), block.lon(lon), tags.build());
+        }
+    }
+
+}
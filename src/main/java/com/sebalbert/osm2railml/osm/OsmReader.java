@@ -0,0 +1,205 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package com.sebalbert.osm2railml.osm;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Common two-pass strategy of the readers for the different OSM file formats.
+ *
+ * The first pass collects the ways accepted by the filter (skipping all nodes, and checking tags as early as the
+ * format allows) and the relations accepted by the relation filter,
+ * the second pass only keeps those nodes that are referenced by one of these ways.
+ * Thus, memory usage scales with the (railway) network that is extracted, not with the size of the input file.
+ * For networks too large for that, a memory budget for joining (c.f. Options.joinMemory) has the node references
+ * and the nodes sorted in temporary files: the second pass looks up nodes in the sorted references, which are
+ * memory-mapped (so the OS pages them in as the nodes of the file go by in the order of their IDs), and the nodes found
+ * are merged from their sorted runs into a memory-mapped store.
+ * To not hold the ways in memory either, they can be handed to a spill instead (c.f. ExtractChunks).
+ */
+abstract class OsmReader {
+
+    protected final File file;
+    protected final Predicate<Way> wayFilter;
+    protected final OsmExtract.Options options;
+
+    // for deduplicating tag values (like "rail" or "yes") across all elements kept; only those, so it does not
+    // grow with the tags of all the ways and relations that are dropped
+    private final Map<String, String> tagValues = new ConcurrentHashMap<>();
+
+    // IDs of the nodes referenced by the ways added so far (sorted and distinct after the first pass)
+    private long[] refs = new long[1024];
+    private int refCount = 0;
+    // instead, if there is a budget for joining: the IDs sorted externally, and mapped after the first pass
+    private ExternalSort externalRefs;
+    private ExternalSort.Table referenced;
+    // instead of keeping the ways accepted: receives them (c.f. spill())
+    private WaySpill spill;
+
+    // relations accepted by the relation filter, from all blocks read so far
+    private final RelationStore.Builder relations = new RelationStore.Builder();
+
+    protected OsmReader(File file, OsmExtract.Options options) {
+        this.file = file;
+        this.wayFilter = options.wayFilter;
+        this.options = options;
+    }
+
+    OsmExtract read() throws IOException, XMLStreamException {
+        OsmExtract osm = new OsmExtract();
+        if (options.joinMemory > 0) {
+            externalRefs = new ExternalSort(1, options.joinMemory);
+            refs = null;
+        }
+        try {
+            readWays(osm);
+            osm.relations = relations.build();
+            if (externalRefs != null) {
+                referenced = externalRefs.keys();
+            } else {
+                Arrays.sort(refs, 0, refCount);
+                int distinct = 0;
+                for (int i = 0; i < refCount; ++i)
+                    if (distinct == 0 || refs[i] != refs[distinct - 1]) refs[distinct++] = refs[i];
+                refs = Arrays.copyOf(refs, refCount = distinct);
+            }
+        } finally {
+            if (externalRefs != null) externalRefs.close();
+        }
+        NodeStore.Builder nodes = new NodeStore.Builder(options.joinMemory);
+        readNodes(nodes);
+        referenced = null;
+        options.onPhase.accept("index");
+        osm.link(nodes, options.offHeapNodes, options.region);
+        return osm;
+    }
+
+    /**
+     * Receives the ways accepted instead of an extract
+     */
+    interface WaySpill {
+
+        void add(Way way) throws IOException;
+
+        /**
+         * @return - the IDs of the nodes referenced by the ways added, sorted and distinct (after the first pass)
+         */
+        ExternalSort.Table referenced() throws IOException;
+
+    }
+
+    /**
+     * Like read(), but hand the ways accepted to a spill instead of keeping them, and the nodes they reference
+     * to a builder; no relations are read
+     */
+    void spill(WaySpill spill, NodeStore.Builder nodes) throws IOException, XMLStreamException {
+        this.spill = spill;
+        readWays(new OsmExtract());
+        referenced = spill.referenced();
+        readNodes(nodes);
+        referenced = null;
+    }
+
+    /**
+     * First pass: read all ways, handing those accepted by the filter to addWay(), and all relations
+     * (if readsRelations()), handing them to addRelation() and then to addRelations()
+     */
+    protected abstract void readWays(OsmExtract osm) throws IOException, XMLStreamException;
+
+    /**
+     * Second pass: read all nodes for which isReferenced() holds
+     */
+    protected abstract void readNodes(NodeStore.Builder nodes) throws IOException, XMLStreamException;
+
+    /**
+     * @return - a builder for the tags of ways and relations, keeping all tags (so the filters can use them);
+     * their values are only deduplicated once they are accepted (c.f. addWay(), addRelation())
+     */
+    protected Tags.Builder wayTagsBuilder() {
+        return new Tags.Builder(null, null);
+    }
+
+    /**
+     * @return - a builder for the tags of nodes, keeping only the tags to be kept according to the options
+     */
+    protected Tags.Builder nodeTagsBuilder() {
+        return new Tags.Builder(options.tagKeys, tagValues);
+    }
+
+    // whether a way with these tags is rejected anyway, so the rest of it need not be read
+    protected boolean rejectsTags(Tags tags) {
+        return wayFilter instanceof WayFilter && !((WayFilter) wayFilter).acceptsTags(tags);
+    }
+
+    // for ways accepted by the filter; drops the tags that are not to be kept
+    protected void addWay(OsmExtract osm, Way way) throws IOException {
+        way.tags = way.tags.retain(options.tagKeys).intern(tagValues);
+        if (spill != null) {
+            spill.add(way);
+            return;
+        }
+        osm.ways.add(way);
+        if (externalRefs != null) {
+            for (int i = 0; i < way.nodeCount(); ++i) externalRefs.add(way.nodeId(i));
+            return;
+        }
+        for (int i = 0; i < way.nodeCount(); ++i) {
+            if (refCount == refs.length) refs = Arrays.copyOf(refs, refCount * 2);
+            refs[refCount++] = way.nodeId(i);
+        }
+    }
+
+    protected boolean readsRelations() {
+        return options.relationFilter != null && spill == null;
+    }
+
+    /**
+     * Add a relation with the members added to the builder since the previous relation if it is accepted by
+     * the relation filter (dropping the tags that are not to be kept), otherwise drop these members
+     * @param tags - all tags of the relation
+     */
+    protected void addRelation(RelationStore.Builder relations, long id, Tags tags) {
+        if (options.relationFilter.test(tags)) relations.add(id, tags.retain(options.tagKeys).intern(tagValues));
+        else relations.discardMembers();
+    }
+
+    // for the relations added by addRelation(), in the order of the file
+    protected void addRelations(RelationStore.Builder block) {
+        relations.addAll(block);
+    }
+
+    // number of distinct tag values kept so far
+    int tagValues() {
+        return tagValues.size();
+    }
+
+    // only valid during the second pass; safe to be called concurrently
+    protected boolean isReferenced(long nodeId) {
+        if (referenced != null) return referenced.contains(nodeId);
+        return Arrays.binarySearch(refs, 0, refCount, nodeId) >= 0;
+    }
+
+}
@@ -0,0 +1,147 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package com.sebalbert.osm2railml.osm;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Streaming (StAX) reader for OSM XML files
+ */
+class OsmXmlReader extends OsmReader {
+
+    private static final XMLInputFactory factory = XMLInputFactory.newInstance();
+    static {
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    OsmXmlReader(File file, OsmExtract.Options options) {
+        super(file, options);
+    }
+
+    @Override
+    protected void readWays(OsmExtract osm) throws IOException, XMLStreamException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16)) {
+            XMLStreamReader r = factory.createXMLStreamReader(in);
+            Tags.Builder tags = wayTagsBuilder();
+            // the way currently read: node references precede the tags, so they are only collected as IDs
+            // until the tags are known
+            boolean inWay = false;
+            long wayId = 0;
+            long[] refs = new long[256];
+            int refCount = 0;
+            // the relation currently read (if relations are read): members are added to the builder right away
+            RelationStore.Builder relations = new RelationStore.Builder();
+            boolean inRelation = false;
+            long relationId = 0;
+            while (r.hasNext()) {
+                int event = r.next();
+                if (event == XMLStreamConstants.END_ELEMENT && inWay && r.getLocalName().equals("way")) {
+                    Tags wayTags = tags.build();
+                    if (!rejectsTags(wayTags)) {
+                        Way way = new Way();
+                        way.id = wayId;
+                        way.tags = wayTags;
+                        way.setNodeIds(Arrays.copyOf(refs, refCount));
+                        if (wayFilter.test(way)) addWay(osm, way);
+                    }
+                    inWay = false;
+                }
+                if (event == XMLStreamConstants.END_ELEMENT && inRelation && r.getLocalName().equals("relation")) {
+                    addRelation(relations, relationId, tags.build());
+                    inRelation = false;
+                }
+                if (event != XMLStreamConstants.START_ELEMENT) continue;
+                switch (r.getLocalName()) {
+                    case "way":
+                        inWay = true;
+                        wayId = Long.parseLong(r.getAttributeValue(null, "id"));
+                        refCount = 0;
+                        break;
+                    case "nd":
+                        if (!inWay) break;
+                        if (refCount == refs.length) refs = Arrays.copyOf(refs, refCount * 2);
+                        refs[refCount++] = Long.parseLong(r.getAttributeValue(null, "ref"));
+                        break;
+                    case "relation":
+                        if (!readsRelations()) break;
+                        inRelation = true;
+                        relationId = Long.parseLong(r.getAttributeValue(null, "id"));
+                        break;
+                    case "member":
+                        if (!inRelation) break;
+                        String role = r.getAttributeValue(null, "role");
+                        relations.member(Relation.MemberType.valueOf(r.getAttributeValue(null, "type").toUpperCase(Locale.ROOT)),
+                                Long.parseLong(r.getAttributeValue(null, "ref")), role == null ? "" : role);
+                        break;
+                    case "tag":
+                        if (inWay || inRelation) tags.add(r.getAttributeValue(null, "k"), r.getAttributeValue(null, "v"));
+                        break;
+                }
+            }
+            r.close();
+            addRelations(relations);
+        }
+    }
+
+    @Override
+    protected void readNodes(NodeStore.Builder nodes) throws IOException, XMLStreamException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16)) {
+            XMLStreamReader r = factory.createXMLStreamReader(in);
+            // the node currently read (if referenced); it is added at its end tag when its tags are complete
+            long id = 0;
+            double lat = Double.NaN, lon = Double.NaN;
+            Tags.Builder tags = nodeTagsBuilder();
+            boolean inNode = false;
+            while (r.hasNext()) {
+                int event = r.next();
+                if (event == XMLStreamConstants.END_ELEMENT && inNode && r.getLocalName().equals("node")) {
+                    nodes.add(id, lat, lon, tags.build());
+                    inNode = false;
+                }
+                if (event != XMLStreamConstants.START_ELEMENT) continue;
+                switch (r.getLocalName()) {
+                    case "node":
+                        id = Long.parseLong(r.getAttributeValue(null, "id"));
+                        if (!isReferenced(id)) break;
+                        inNode = true;
+                        lat = Double.parseDouble(r.getAttributeValue(null, "lat"));
+                        lon = Double.parseDouble(r.getAttributeValue(null, "lon"));
+                        break;
+                    case "tag":
+                        if (inNode) tags.add(r.getAttributeValue(null, "k"), r.getAttributeValue(null, "v"));
+                        break;
+                }
+            }
+            r.close();
+        }
+    }
+
+}
@@ -0,0 +1,130 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package com.sebalbert.osm2railml.osm;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal decoder for the protocol buffers wire format, as far as needed for OSM PBF files,
+ * working on a range of a byte array without copying
+ */
+final class ProtobufInput {
+
+    static final int VARINT = 0, FIXED64 = 1, LENGTH_DELIMITED = 2, FIXED32 = 5;
+
+    private final byte[] buf;
+    private int pos;
+    private final int limit;
+
+    ProtobufInput(byte[] buf) {
+        this(buf, 0, buf.length);
+    }
+
+    ProtobufInput(byte[] buf, int offset, int length) {
+        this.buf = buf;
+        this.pos = offset;
+        this.limit = offset + length;
+    }
+
+    boolean hasNext() {
+        return pos < limit;
+    }
+
+    /**
+     * @return - the tag of the next field, i.e. (field number << 3) | wire type
+     */
+    int readTag() throws IOException {
+        return (int) readVarint();
+    }
+
+    long readVarint() throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (pos >= limit) throw new IOException("truncated varint in PBF data");
+            byte b = buf[pos++];
+            result |= (long) (b & 0x7f) << shift;
+            if (b >= 0) return result;
+        }
+        throw new IOException("malformed varint in PBF data");
+    }
+
+    int readInt() throws IOException {
+        return (int) readVarint();
+    }
+
+    long readSInt64() throws IOException {
+        long v = readVarint();
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /**
+     * Read a length-delimited field (embedded message, packed repeated field) as a new input over its bytes
+     */
+    ProtobufInput readMessage() throws IOException {
+        int length = readLength();
+        ProtobufInput message = new ProtobufInput(buf, pos, length);
+        pos += length;
+        return message;
+    }
+
+    byte[] readBytes() throws IOException {
+        int length = readLength();
+        byte[] bytes = new byte[length];
+        System.arraycopy(buf, pos, bytes, 0, length);
+        pos += length;
+        return bytes;
+    }
+
+    String readString() throws IOException {
+        int length = readLength();
+        String s = new String(buf, pos, length, StandardCharsets.UTF_8);
+        pos += length;
+        return s;
+    }
+
+    /**
+     * Skip a length-delimited field, returning its offset in the underlying array (the length is found there)
+     */
+    int skipDelimited() throws IOException {
+        int start = pos;
+        int length = readLength();
+        pos += length;
+        return start;
+    }
+
+    void skip(int wireType) throws IOException {
+        switch (wireType) {
+            case VARINT: readVarint(); break;
+            case FIXED64: pos += 8; break;
+            case LENGTH_DELIMITED: int length = readLength(); pos += length; break;
+            case FIXED32: pos += 4; break;
+            default: throw new IOException("unsupported wire type " + wireType + " in PBF data");
+        }
+        if (pos > limit) throw new IOException("truncated field in PBF data");
+    }
+
+    private int readLength() throws IOException {
+        int length = readInt();
+        if (length < 0 || length > limit - pos) throw new IOException("truncated field in PBF data");
+        return length;
+    }
+
+}
@@ -0,0 +1,138 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016-2017  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package com.sebalbert.osm2railml.osm;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An area that ways must touch (with at least one of their nodes) to be kept
+ */
+public interface Region {
+
+    boolean contains(double lat, double lon);
+
+    /**
+     * Bounding box in degrees
+     */
+    class BoundingBox implements Region {
+
+        private final double minLat, minLon, maxLat, maxLon;
+
+        public BoundingBox(double minLat, double minLon, double maxLat, double maxLon) {
+            this.minLat = minLat;
+            this.minLon = minLon;
+            this.maxLat = maxLat;
+            this.maxLon = maxLon;
+        }
+
+        @Override
+        public boolean contains(double lat, double lon) {
+            return lat >= minLat && lat <= maxLat && lon >= minLon && lon <= maxLon;
+        }
+
+    }
+
+    /**
+     * Polygon with any number of outer rings and holes, as in the Osmosis polygon filter file format (.poly)
+     */
+    class Polygon implements Region {
+
+        // rings as alternating lon/lat coordinates (not closed explicitly)
+        private final List<double[]> outer = new ArrayList<>(), holes = new ArrayList<>();
+        private double minLat = Double.POSITIVE_INFINITY, minLon = Double.POSITIVE_INFINITY,
+                maxLat = Double.NEGATIVE_INFINITY, maxLon = Double.NEGATIVE_INFINITY;
+
+        /**
+         * @param ring - alternating lon/lat coordinates of the ring's vertices
+         * @param hole - whether the ring is to be subtracted from the polygon
+         */
+        public void addRing(double[] ring, boolean hole) {
+            (hole ? holes : outer).add(ring);
+            if (hole) return;
+            for (int i = 0; i + 1 < ring.length; i += 2) {
+                minLon = Math.min(minLon, ring[i]);
+                maxLon = Math.max(maxLon, ring[i]);
+                minLat = Math.min(minLat, ring[i + 1]);
+                maxLat = Math.max(maxLat, ring[i + 1]);
+            }
+        }
+
+        @Override
+        public boolean contains(double lat, double lon) {
+            if (lat < minLat || lat > maxLat || lon < minLon || lon > maxLon) return false;
+            boolean inside = false;
+            for (double[] ring : outer) inside |= inRing(ring, lat, lon);
+            if (!inside) return false;
+            for (double[] ring : holes) if (inRing(ring, lat, lon)) return false;
+            return true;
+        }
+
+        // even-odd rule (ray casting towards increasing longitude)
+        private static boolean inRing(double[] ring, double lat, double lon) {
+            boolean inside = false;
+            for (int i = 0, j = ring.length - 2; i < ring.length; j = i, i += 2) {
+                double lon1 = ring[i], lat1 = ring[i + 1], lon2 = ring[j], lat2 = ring[j + 1];
+                if ((lat1 > lat) != (lat2 > lat) && lon < lon1 + (lat - lat1) * (lon2 - lon1) / (lat2 - lat1))
+                    inside = !inside;
+            }
+            return inside;
+        }
+
+        /**
+         * Read a polygon filter file: a name line, then rings of "lon lat" lines, each preceded by a name
+         * (starting with "!" for holes) and terminated by END, and a final END
+         */
+        public static Polygon read(File file) throws IOException {
+            Polygon polygon = new Polygon();
+            try (BufferedReader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                if (in.readLine() == null) throw new IOException("empty polygon file " + file);
+                for (String line; (line = in.readLine()) != null && !line.trim().equals("END"); ) {
+                    boolean hole = line.trim().startsWith("!");
+                    double[] ring = new double[16];
+                    int n = 0;
+                    for (String vertex; !(vertex = readLine(in, file).trim()).equals("END"); ) {
+                        String[] lonLat = vertex.split("\\s+");
+                        if (lonLat.length != 2) throw new IOException("invalid vertex in " + file + ": " + vertex);
+                        if (n + 2 > ring.length) ring = Arrays.copyOf(ring, ring.length * 2);
+                        ring[n++] = Double.parseDouble(lonLat[0]);
+                        ring[n++] = Double.parseDouble(lonLat[1]);
+                    }
+                    if (n < 6) throw new IOException("ring with less than 3 vertices in " + file);
+                    polygon.addRing(Arrays.copyOf(ring, n), hole);
+                }
+            }
+            return polygon;
+        }
+
+        private static String readLine(BufferedReader in, File file) throws IOException {
+            String line = in.readLine();
+            if (line == null) throw new IOException("unexpected end of polygon file " + file);
+            return line;
+        }
+
+    }
+
+}
@@ -0,0 +1,106 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package com.sebalbert.osm2railml.osm;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A Relation in the sense of OSM data (e.g. a railway route or a station area), as a view on its entry
+ * in a RelationStore
+ */
+public final class Relation extends Taggable {
+
+    /**
+     * Element types of members, in the order of their numbers in OSM PBF
+     */
+    public enum MemberType { NODE, WAY, RELATION }
+
+    /**
+     * Reference to a node, way or relation from a relation, with the role it has in the relation
+     */
+    public static final class Member {
+
+        public final MemberType type;
+        public final long ref;
+        public final String role;
+
+        Member(MemberType type, long ref, String role) {
+            this.type = type;
+            this.ref = ref;
+            this.role = role;
+        }
+
+        @Override
+        public String toString() {
+            return type.name().toLowerCase(Locale.ROOT) + " " + ref + (role.isEmpty() ? "" : " as " + role);
+        }
+
+    }
+
+    private final RelationStore store;
+    private final int index;
+
+    Relation(RelationStore store, int index) {
+        this.store = store;
+        this.index = index;
+    }
+
+    public long id() {
+        return store.id(index);
+    }
+
+    /**
+     * @return - the members, in the order given in the relation
+     */
+    public List<Member> members() {
+        int from = store.memberOffset(index), to = store.memberOffset(index + 1);
+        return new AbstractList<Member>() {
+
+            @Override
+            public Member get(int i) {
+                if (i < 0 || from + i >= to) throw new IndexOutOfBoundsException(Integer.toString(i));
+                return store.member(from + i);
+            }
+
+            @Override
+            public int size() {
+                return to - from;
+            }
+
+        };
+    }
+
+    @Override
+    public Tags tags() {
+        return store.tags(index);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Relation && ((Relation) o).store == store && ((Relation) o).index == index;
+    }
+
+    @Override
+    public int hashCode() {
+        return index;
+    }
+
+}
@@ -0,0 +1,297 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package com.sebalbert.osm2railml.osm;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Compact storage of the relations of an extract with their members, in flat arrays sorted by relation ID,
+ * along with an index from each member back to the relations it is a member of.
+ *
+ * Only relations accepted by a filter while reading are stored (c.f. OsmExtract.Options.relationFilter), so
+ * for a large input this holds the routes and station areas of the railway network, not all of its relations.
+ * Members are kept as IDs as given, including those of elements that are not part of the extract.
+ */
+public final class RelationStore extends AbstractList<Relation> {
+
+    private static final Relation.MemberType[] MEMBER_TYPES = Relation.MemberType.values();
+
+    public static final RelationStore EMPTY = new Builder().build();
+
+    private final long[] ids;
+    private final Tags[] tags;
+    // the members of relation i are [memberOffsets[i], memberOffsets[i + 1])
+    private final int[] memberOffsets;
+    private final byte[] memberTypes;
+    private final long[] memberRefs;
+    private final String[] memberRoles;
+    // per member type: IDs of the members (sorted), and the relations they are members of (in parallel)
+    private final long[][] indexRefs = new long[MEMBER_TYPES.length][];
+    private final int[][] indexRelations = new int[MEMBER_TYPES.length][];
+
+    private RelationStore(long[] ids, Tags[] tags, int[] memberOffsets, byte[] memberTypes, long[] memberRefs,
+                          String[] memberRoles) {
+        this.ids = ids;
+        this.tags = tags;
+        this.memberOffsets = memberOffsets;
+        this.memberTypes = memberTypes;
+        this.memberRefs = memberRefs;
+        this.memberRoles = memberRoles;
+        int[] counts = new int[MEMBER_TYPES.length];
+        for (byte t : memberTypes) ++counts[t];
+        for (int t = 0; t < counts.length; ++t) {
+            indexRefs[t] = new long[counts[t]];
+            indexRelations[t] = new int[counts[t]];
+        }
+        Arrays.fill(counts, 0);
+        for (int r = 0; r < ids.length; ++r)
+            for (int m = memberOffsets[r]; m < memberOffsets[r + 1]; ++m) {
+                int t = memberTypes[m], i = counts[t]++;
+                indexRefs[t][i] = memberRefs[m];
+                indexRelations[t][i] = r;
+            }
+        for (int t = 0; t < counts.length; ++t) {
+            sort(indexRefs[t], indexRelations[t], 0, counts[t] - 1);
+            // an element may be a member of the same relation more than once (e.g. in both directions of a route)
+            int distinct = 0;
+            for (int i = 0; i < counts[t]; ++i) {
+                if (distinct > 0 && indexRefs[t][i] == indexRefs[t][distinct - 1] &&
+                        indexRelations[t][i] == indexRelations[t][distinct - 1]) continue;
+                indexRefs[t][distinct] = indexRefs[t][i];
+                indexRelations[t][distinct++] = indexRelations[t][i];
+            }
+            indexRefs[t] = Arrays.copyOf(indexRefs[t], distinct);
+            indexRelations[t] = Arrays.copyOf(indexRelations[t], distinct);
+        }
+    }
+
+    @Override
+    public int size() {
+        return ids.length;
+    }
+
+    public long id(int index) {
+        return ids[index];
+    }
+
+    public Tags tags(int index) {
+        return tags[index];
+    }
+
+    /**
+     * @return - the index of the relation with this ID, or a negative number if there is none
+     */
+    public int indexOf(long id) {
+        return Arrays.binarySearch(ids, id);
+    }
+
+    @Override
+    public Relation get(int index) {
+        if (index < 0 || index >= ids.length) throw new IndexOutOfBoundsException(Integer.toString(index));
+        return new Relation(this, index);
+    }
+
+    /**
+     * @return - the relations that have the given element as a member (each once, ordered by ID)
+     */
+    public List<Relation> of(Relation.MemberType type, long ref) {
+        long[] refs = indexRefs[type.ordinal()];
+        int[] relations = indexRelations[type.ordinal()];
+        int i = Arrays.binarySearch(refs, ref);
+        if (i < 0) return Collections.emptyList();
+        int from = i, to = i + 1;
+        while (from > 0 && refs[from - 1] == ref) --from;
+        while (to < refs.length && refs[to] == ref) ++to;
+        List<Relation> result = new ArrayList<>(to - from);
+        for (int j = from; j < to; ++j) result.add(new Relation(this, relations[j]));
+        return result;
+    }
+
+    /**
+     * @return - the relations that have this way as a member (e.g. the routes running on it)
+     */
+    public List<Relation> ofWay(long wayId) {
+        return of(Relation.MemberType.WAY, wayId);
+    }
+
+    /**
+     * @return - the relations that have this node as a member (e.g. the stop positions of routes)
+     */
+    public List<Relation> ofNode(long nodeId) {
+        return of(Relation.MemberType.NODE, nodeId);
+    }
+
+    int memberOffset(int index) {
+        return memberOffsets[index];
+    }
+
+    Relation.Member member(int m) {
+        return new Relation.Member(MEMBER_TYPES[memberTypes[m]], memberRefs[m], memberRoles[m]);
+    }
+
+    /**
+     * @return - a store of those relations accepted by the filter, with their tags restricted to these keys
+     *         (or all tags if null)
+     */
+    RelationStore retain(Predicate<Tags> filter, Set<String> tagKeys) {
+        Builder retained = new Builder();
+        for (int r = 0; r < ids.length; ++r) {
+            if (!filter.test(tags[r])) continue;
+            for (int m = memberOffsets[r]; m < memberOffsets[r + 1]; ++m)
+                retained.member(MEMBER_TYPES[memberTypes[m]], memberRefs[m], memberRoles[m]);
+            retained.add(ids[r], tags[r].retain(tagKeys));
+        }
+        return retained.build();
+    }
+
+    /**
+     * @return - a store of the same relations without their members of the given type (e.g. ways that have been
+     *         replaced, c.f. TrackGraph)
+     */
+    RelationStore withoutMembers(Relation.MemberType type) {
+        Builder retained = new Builder();
+        for (int r = 0; r < ids.length; ++r) {
+            for (int m = memberOffsets[r]; m < memberOffsets[r + 1]; ++m)
+                if (memberTypes[m] != type.ordinal())
+                    retained.member(MEMBER_TYPES[memberTypes[m]], memberRefs[m], memberRoles[m]);
+            retained.add(ids[r], tags[r]);
+        }
+        return retained.build();
+    }
+
+    // quicksort of parallel arrays by key, then by value
+    private static void sort(long[] keys, int[] values, int low, int high) {
+        while (low < high) {
+            int p = (low + high) >>> 1;
+            long pivotKey = keys[p];
+            int pivotValue = values[p];
+            int i = low, j = high;
+            while (i <= j) {
+                while (keys[i] < pivotKey || (keys[i] == pivotKey && values[i] < pivotValue)) ++i;
+                while (keys[j] > pivotKey || (keys[j] == pivotKey && values[j] > pivotValue)) --j;
+                if (i <= j) {
+                    long key = keys[i]; keys[i] = keys[j]; keys[j] = key;
+                    int value = values[i]; values[i++] = values[j]; values[j--] = value;
+                }
+            }
+            // recurse into the smaller part only, to bound the stack depth
+            if (j - low < high - i) {
+                sort(keys, values, low, j);
+                low = i;
+            } else {
+                sort(keys, values, i, high);
+                high = j;
+            }
+        }
+    }
+
+    /**
+     * Collects relations while reading; members are added first, then the relation they belong to
+     */
+    static final class Builder {
+
+        private long[] ids = new long[16];
+        private Tags[] tags = new Tags[16];
+        // end of the members of each relation
+        private int[] memberEnds = new int[16];
+        private int count = 0;
+        private byte[] memberTypes = new byte[64];
+        private long[] memberRefs = new long[64];
+        private String[] memberRoles = new String[64];
+        // including those of the relation currently read
+        private int members = 0;
+
+        void member(Relation.MemberType type, long ref, String role) {
+            if (members == memberRefs.length) {
+                memberTypes = Arrays.copyOf(memberTypes, members * 2);
+                memberRefs = Arrays.copyOf(memberRefs, members * 2);
+                memberRoles = Arrays.copyOf(memberRoles, members * 2);
+            }
+            memberTypes[members] = (byte) type.ordinal();
+            memberRefs[members] = ref;
+            memberRoles[members++] = role;
+        }
+
+        /**
+         * Add a relation with the members added since the previous one
+         */
+        void add(long id, Tags tags) {
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+                this.tags = Arrays.copyOf(this.tags, count * 2);
+                memberEnds = Arrays.copyOf(memberEnds, count * 2);
+            }
+            ids[count] = id;
+            this.tags[count] = tags;
+            memberEnds[count++] = members;
+        }
+
+        /**
+         * Drop the members added since the previous relation (if the relation they belong to is rejected)
+         */
+        void discardMembers() {
+            members = count == 0 ? 0 : memberEnds[count - 1];
+        }
+
+        void addAll(Builder other) {
+            for (int r = 0, m = 0; r < other.count; ++r) {
+                for (; m < other.memberEnds[r]; ++m)
+                    member(MEMBER_TYPES[other.memberTypes[m]], other.memberRefs[m], other.memberRoles[m]);
+                add(other.ids[r], other.tags[r]);
+            }
+        }
+
+        RelationStore build() {
+            discardMembers();
+            // relations ordered by ID, each with its members in their original order
+            long[] sortedIds = Arrays.copyOf(ids, count);
+            int[] order = new int[count];
+            for (int r = 0; r < count; ++r) order[r] = r;
+            sort(sortedIds, order, 0, count - 1);
+            Tags[] sortedTags = new Tags[count];
+            int[] offsets = new int[count + 1];
+            byte[] types = new byte[members];
+            long[] refs = new long[members];
+            String[] roles = new String[members];
+            Map<String, String> distinctRoles = new HashMap<>();
+            int m = 0;
+            for (int i = 0; i < count; ++i) {
+                int r = order[i];
+                sortedTags[i] = tags[r];
+                for (int j = r == 0 ? 0 : memberEnds[r - 1]; j < memberEnds[r]; ++j, ++m) {
+                    types[m] = memberTypes[j];
+                    refs[m] = memberRefs[j];
+                    roles[m] = distinctRoles.computeIfAbsent(memberRoles[j], role -> role);
+                }
+                offsets[i + 1] = m;
+            }
+            return new RelationStore(sortedIds, sortedTags, offsets, types, refs, roles);
+        }
+
+    }
+
+}
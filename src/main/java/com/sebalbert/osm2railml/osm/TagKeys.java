@@ -0,0 +1,69 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package com.sebalbert.osm2railml.osm;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dictionary of interned tag keys, so tags can refer to their key by a small integer ID.
+ * There are only few distinct keys (compared to the number of tags), so the dictionary is global.
+ */
+public final class TagKeys {
+
+    private static final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private static volatile String[] keys = new String[64];
+    private static int count = 0;
+
+    private TagKeys() { }
+
+    /**
+     * @param key - a tag key
+     * @return - the ID of the key, which is added to the dictionary if necessary
+     */
+    public static int id(String key) {
+        Integer id = ids.get(key);
+        if (id != null) return id;
+        synchronized (TagKeys.class) {
+            id = ids.get(key);
+            if (id != null) return id;
+            String[] k = keys;
+            if (count == k.length) k = Arrays.copyOf(k, count * 2);
+            k[count] = key;
+            keys = k;
+            ids.put(key, count);
+            return count++;
+        }
+    }
+
+    /**
+     * @param key - a tag key
+     * @return - the ID of the key, or -1 if it is not in the dictionary (and thus not used by any tag)
+     */
+    public static int lookup(String key) {
+        Integer id = ids.get(key);
+        return id == null ? -1 : id;
+    }
+
+    public static String key(int id) {
+        return keys[id];
+    }
+
+}
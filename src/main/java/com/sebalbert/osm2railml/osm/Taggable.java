@@ -19,22 +19,15 @@
 
 package com.sebalbert.osm2railml.osm;
 
-import javax.xml.bind.annotation.XmlAttribute;
-import javax.xml.bind.annotation.XmlElement;
-import java.util.ArrayList;
-import java.util.List;
-
 /**
  * Base class for Node, Way and Relation, because all of them can have tags
  */
 public abstract class Taggable {
 
     /**
-     * OSM tags are implemented as List, not as Map, because it is easier with JAXB
-     * and tags are usually few per element so iterating over them is hardly worse than the overhead of hashing
+     * @return - the tags of this element
      */
-    @XmlElement(name = "tag")
-    public List<Tag> tags = new ArrayList<>();
+    public abstract Tags tags();
 
     /**
      * Get the value of a certain key from OSM tags
@@ -42,17 +35,16 @@ public abstract class Taggable {
      * @return - the value of the corresponding tag, or null if there is none
      */
     public String getTag(String key) {
-        return tags.stream().filter(t -> t.key.equals(key)).map(t -> t.value).findAny().orElse(null);
+        return tags().get(key);
     }
 
-    public static class Tag {
-
-        @XmlAttribute(name = "k")
-        public String key;
-
-        @XmlAttribute(name = "v")
-        public String value;
-
+    /**
+     * Get the value of a certain key from OSM tags, without looking up the key in the dictionary first
+     * @param keyId - ID of the key to look up (c.f. TagKeys)
+     * @return - the value of the corresponding tag, or null if there is none
+     */
+    public String getTag(int keyId) {
+        return tags().get(keyId);
     }
 
 }
@@ -0,0 +1,165 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package com.sebalbert.osm2railml.osm;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compact, immutable storage of the tags of an OSM element: key IDs (c.f. TagKeys) and values in parallel arrays.
+ * Tags are usually few per element, so a linear scan over the key IDs is hardly worse than hashing,
+ * and lookups do not allocate anything.
+ */
+public final class Tags {
+
+    public static final Tags EMPTY = new Tags(new int[0], new String[0]);
+
+    private final int[] keys;
+    private final String[] values;
+
+    private Tags(int[] keys, String[] values) {
+        this.keys = keys;
+        this.values = values;
+    }
+
+    public int size() {
+        return keys.length;
+    }
+
+    public String key(int i) {
+        return TagKeys.key(keys[i]);
+    }
+
+    public String value(int i) {
+        return values[i];
+    }
+
+    /**
+     * @param keyId - ID of the key to look up (c.f. TagKeys)
+     * @return - the value of the corresponding tag, or null if there is none
+     */
+    public String get(int keyId) {
+        for (int i = 0; i < keys.length; ++i)
+            if (keys[i] == keyId) return values[i];
+        return null;
+    }
+
+    public String get(String key) {
+        int keyId = TagKeys.lookup(key);
+        return keyId < 0 ? null : get(keyId);
+    }
+
+    /**
+     * @param whitelist - keys of the tags to be kept, or null for all
+     * @return - tags with only the given keys
+     */
+    public Tags retain(Set<String> whitelist) {
+        if (whitelist == null) return this;
+        int n = 0;
+        for (int key : keys) if (whitelist.contains(TagKeys.key(key))) ++n;
+        if (n == keys.length) return this;
+        if (n == 0) return EMPTY;
+        int[] k = new int[n];
+        String[] v = new String[n];
+        n = 0;
+        for (int i = 0; i < keys.length; ++i) {
+            if (!whitelist.contains(TagKeys.key(keys[i]))) continue;
+            k[n] = keys[i];
+            v[n++] = values[i];
+        }
+        return new Tags(k, v);
+    }
+
+    /**
+     * Replace the values by equal ones from the given map (adding those not there yet), so equal values are
+     * shared; only for tags that are not shared yet (i.e. just built or retained)
+     * @return - these tags
+     */
+    Tags intern(Map<String, String> values) {
+        for (int i = 0; i < this.values.length; ++i) {
+            String existing = values.putIfAbsent(this.values[i], this.values[i]);
+            if (existing != null) this.values[i] = existing;
+        }
+        return this;
+    }
+
+    /**
+     * Tags are equal if they have the same tags, in any order
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) return true;
+        if (!(o instanceof Tags) || ((Tags) o).keys.length != keys.length) return false;
+        Tags tags = (Tags) o;
+        for (int i = 0; i < keys.length; ++i)
+            if (!values[i].equals(tags.get(keys[i]))) return false;
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int h = 0;
+        for (int i = 0; i < keys.length; ++i) h += keys[i] * 31 ^ values[i].hashCode();
+        return h;
+    }
+
+    /**
+     * Collects the tags of one element after the other (being reset by build())
+     */
+    static final class Builder {
+
+        private final Set<String> whitelist;
+        private final Map<String, String> values;
+        private int[] k = new int[8];
+        private String[] v = new String[8];
+        private int size = 0;
+
+        /**
+         * @param whitelist - keys of the tags to be kept, or null for all
+         * @param values - for deduplicating equal values (shared across builders, thus must be thread-safe),
+         *               or null to keep the values as they are
+         */
+        Builder(Set<String> whitelist, Map<String, String> values) {
+            this.whitelist = whitelist;
+            this.values = values;
+        }
+
+        void add(String key, String value) {
+            if (whitelist != null && !whitelist.contains(key)) return;
+            if (size == k.length) {
+                k = Arrays.copyOf(k, size * 2);
+                v = Arrays.copyOf(v, size * 2);
+            }
+            String existing = values == null ? null : values.putIfAbsent(value, value);
+            k[size] = TagKeys.id(key);
+            v[size++] = existing == null ? value : existing;
+        }
+
+        Tags build() {
+            if (size == 0) return EMPTY;
+            Tags tags = new Tags(Arrays.copyOf(k, size), Arrays.copyOf(v, size));
+            size = 0;
+            return tags;
+        }
+
+    }
+
+}
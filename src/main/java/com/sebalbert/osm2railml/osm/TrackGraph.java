@@ -0,0 +1,230 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016-2017  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package com.sebalbert.osm2railml.osm;
+
+import com.sebalbert.osm2railml.Workers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Normalisation of the track graph before building tracks: ways are split at the switches, crossings and slips
+ * in their interior, and chains of (parts of) ways that are joined end to end without branching are merged,
+ * so each way of the result runs from one junction or open end to the next.
+ *
+ * The result is a new extract with the same nodes and new ways, in the order of the ways and positions they start
+ * at, which is converted like any other. Each new way keeps the ID of the OSM way it starts in, along with
+ * the number of the part of that way it starts with (c.f. Way.part), so its track is still named after the OSM way.
+ * Parts are only merged if their ways have the same (kept) tags; a merged way runs in the direction of the first
+ * of its parts in the order of the ways and their parts (however the chain is walked), so it may start with another
+ * part walked backwards. Since the parts are renumbered, way members of relations are dropped.
+ * Splitting and finding the ends to be joined (c.f. Junctions.Kind.JOIN) is done per way, walking the chains
+ * per connected component (c.f. Components), as chains never leave a component, and building the new ways per
+ * chain, all on the given workers.
+ */
+public final class TrackGraph {
+
+    private static final int[] NO_SPLITS = new int[0];
+
+    private final NodeStore nodes;
+    private final List<Way> ways;
+    // per way (by number in the store): its first part, where parts of the same way are consecutive
+    private final int[] firstPart;
+    // per part: its way, and the positions of its first and last node within the way
+    private final int[] partWay, partFrom, partTo;
+    // per end of a part (2 * part at its first node, 2 * part + 1 at its last): the end of the part it is joined with,
+    // or -1
+    private final int[] joined;
+
+    private TrackGraph(OsmExtract osm, Workers workers) {
+        Junctions junctions = osm.junctions(workers);
+        nodes = osm.nodes;
+        ways = nodes.ways();
+        int[][] splits = new int[ways.size()][];
+        workers.forEach(ways.size(), w -> splits[w] = splits(junctions, ways.get(w)));
+        firstPart = new int[ways.size() + 1];
+        for (int w = 0; w < ways.size(); ++w) firstPart[w + 1] = firstPart[w] + splits[w].length + 1;
+        int parts = firstPart[ways.size()];
+        partWay = new int[parts];
+        partFrom = new int[parts];
+        partTo = new int[parts];
+        joined = new int[2 * parts];
+        workers.forEach(ways.size(), w -> {
+            int part = firstPart[w], from = 0;
+            for (int split : splits[w]) {
+                setPart(part++, w, from, split);
+                from = split;
+            }
+            setPart(part, w, from, ways.get(w).nodeCount() - 1);
+        });
+        workers.forEach(2 * parts, end -> joined[end] = joinedEnd(junctions, end));
+    }
+
+    /**
+     * Normalise in the calling thread
+     * @param osm - an extract with its geometry computed (c.f. OsmExtract.computeGeometry())
+     * @return - an extract with the same nodes (and relations) and the normalised ways, without geometry computed
+     */
+    public static OsmExtract normalize(OsmExtract osm) {
+        return normalize(osm, Workers.CALLER);
+    }
+
+    /**
+     * @param osm - an extract with its geometry computed (c.f. OsmExtract.computeGeometry())
+     * @return - an extract with the same nodes (and relations) and the normalised ways, without geometry computed
+     */
+    public static OsmExtract normalize(OsmExtract osm, Workers workers) {
+        return new TrackGraph(osm, workers).build(osm, workers);
+    }
+
+    // positions within the way of the junctions in its interior
+    private static int[] splits(Junctions junctions, Way way) {
+        int[] splits = NO_SPLITS;
+        int n = 0;
+        for (int i = 1; i < way.nodeCount() - 1; ++i) {
+            if (junctions.kind(way, i) == Junctions.Kind.NONE) continue;
+            if (n == splits.length) splits = Arrays.copyOf(splits, Math.max(4, n * 2));
+            splits[n++] = i;
+        }
+        return n == splits.length ? splits : Arrays.copyOf(splits, n);
+    }
+
+    private void setPart(int part, int way, int from, int to) {
+        partWay[part] = way;
+        partFrom[part] = from;
+        partTo[part] = to;
+    }
+
+    // the end of the part that the given end is joined with: only at a plain join of two ways with the same tags
+    private int joinedEnd(Junctions junctions, int end) {
+        int part = end >> 1, w = partWay[part];
+        Way way = ways.get(w);
+        int index = (end & 1) == 0 ? partFrom[part] : partTo[part];
+        // ends of parts in the interior of a way are at junctions
+        if ((index != 0 && index != way.nodeCount() - 1) || junctions.kind(way, index) != Junctions.Kind.JOIN)
+            return -1;
+        int node = way.nodeIndex(index), ref = nodes.wayRefOffset(node);
+        if (nodes.wayRefOffset(node + 1) - ref != 2) return -1;
+        if (nodes.wayRefWay(ref) == w && nodes.wayRefIndex(ref) == index) ++ref;
+        int otherWay = nodes.wayRefWay(ref), otherIndex = nodes.wayRefIndex(ref);
+        if (!ways.get(otherWay).tags.equals(way.tags)) return -1;
+        return otherIndex == 0 ? 2 * firstPart[otherWay] : 2 * (firstPart[otherWay + 1] - 1) + 1;
+    }
+
+    // the parts of the chain entered at the given end, each given by the end it is entered at
+    // (i.e. odd if walked backwards), up to an end that is not joined or back to the given end
+    private int[] chain(int end) {
+        int[] chain = new int[4];
+        int n = 0;
+        for (int e = end; e >= 0; ) {
+            if (n == chain.length) chain = Arrays.copyOf(chain, n * 2);
+            chain[n++] = e;
+            e = joined[e ^ 1];
+            if (e == end) break;
+        }
+        return Arrays.copyOf(chain, n);
+    }
+
+    // the chains of the parts of the given ways (a connected component): chains with two ends are found from
+    // the smaller one and walked so that their first part runs forwards (c.f. forwards()), the others are cycles
+    // (walked from their first part, forwards)
+    private List<int[]> chains(int[] component, boolean[] walked) {
+        List<int[]> chains = new ArrayList<>();
+        for (int w : component)
+            for (int end = 2 * firstPart[w]; end < 2 * firstPart[w + 1]; ++end) {
+                if (joined[end] >= 0) continue;
+                int[] chain = chain(end);
+                if (chain[0] < (chain[chain.length - 1] ^ 1)) chains.add(forwards(chain));
+            }
+        for (int[] chain : chains)
+            for (int end : chain) walked[end >> 1] = true;
+        for (int w : component)
+            for (int part = firstPart[w]; part < firstPart[w + 1]; ++part) {
+                if (walked[part]) continue;
+                int[] cycle = chain(2 * part);
+                for (int end : cycle) walked[end >> 1] = true;
+                chains.add(cycle);
+            }
+        return chains;
+    }
+
+    // the given chain, or the same walked from its other end if its first part runs backwards in it
+    private static int[] forwards(int[] chain) {
+        int first = 0;
+        for (int k = 1; k < chain.length; ++k)
+            if (chain[k] >> 1 < chain[first] >> 1) first = k;
+        if ((chain[first] & 1) == 0) return chain;
+        int[] reversed = new int[chain.length];
+        for (int k = 0; k < chain.length; ++k) reversed[k] = chain[chain.length - 1 - k] ^ 1;
+        return reversed;
+    }
+
+    private OsmExtract build(OsmExtract osm, Workers workers) {
+        Components components = osm.components();
+        List<int[]> ofComponent = new ArrayList<>(components.size());
+        for (int c = 0; c < components.size(); ++c) ofComponent.add(components.ways(c));
+        // each component only marks its own parts
+        boolean[] walked = new boolean[partWay.length];
+        List<int[]> chains = new ArrayList<>();
+        for (List<int[]> c : workers.map(ofComponent, this::cost, ways -> chains(ways, walked))) chains.addAll(c);
+        chains.sort(Comparator.comparingInt(c -> c[0]));
+
+        NodeStore normalized = nodes.view();
+        List<Way> result = workers.map(chains, c -> c.length, c -> way(c, normalized));
+        normalized.index(result);
+        OsmExtract extract = new OsmExtract();
+        extract.nodes = normalized;
+        extract.ways.addAll(result);
+        extract.relations = osm.relations.withoutMembers(Relation.MemberType.WAY);
+        return extract;
+    }
+
+    // number of parts of the given ways
+    private long cost(int[] component) {
+        long parts = 0;
+        for (int w : component) parts += firstPart[w + 1] - firstPart[w];
+        return parts;
+    }
+
+    private Way way(int[] chain, NodeStore normalized) {
+        int n = 1;
+        for (int end : chain) n += partTo[end >> 1] - partFrom[end >> 1];
+        int[] indices = new int[n];
+        int i = 0;
+        for (int k = 0; k < chain.length; ++k) {
+            int part = chain[k] >> 1, length = partTo[part] - partFrom[part];
+            boolean backwards = (chain[k] & 1) != 0;
+            Way source = ways.get(partWay[part]);
+            // each part starts at the node the previous one ends at
+            for (int j = k == 0 ? 0 : 1; j <= length; ++j)
+                indices[i++] = source.nodeIndex(backwards ? partTo[part] - j : partFrom[part] + j);
+        }
+        int first = chain[0] >> 1;
+        Way start = ways.get(partWay[first]), way = new Way();
+        way.id = start.id;
+        way.part = start.part + first - firstPart[partWay[first]];
+        way.tags = start.tags;
+        way.setNodes(normalized, indices, 0, n);
+        return way;
+    }
+
+}
@@ -21,79 +21,287 @@ package com.sebalbert.osm2railml.osm;
 
 import net.sf.geographiclib.Geodesic;
 import net.sf.geographiclib.GeodesicData;
+import net.sf.geographiclib.GeodesicMask;
 
-import javax.xml.bind.Unmarshaller;
-import javax.xml.bind.annotation.XmlAttribute;
-import javax.xml.bind.annotation.XmlElement;
-import javax.xml.bind.annotation.XmlIDREF;
-import javax.xml.bind.annotation.XmlTransient;
-import java.util.LinkedList;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
 
 
 /**
  * POJO for a Way in the sense of OpenStreetMap data
+ *
+ * The nodes of a way are held as a range of a flat array of node positions in the NodeStore, which is shared by all
+ * ways of the store once it is indexed (c.f. NodeStore.index()); neighbours and topological positions along the way
+ * are just index arithmetic. NodeRef objects are views ("flyweights") on a position within a way, created on demand.
  */
 public class Way extends Taggable {
 
-    @XmlAttribute
-    public String id = null;
+    private static final long[] NO_IDS = new long[0];
 
-    @XmlElement(name = "nd")
-    public LinkedList<NodeRef> nd = new LinkedList<NodeRef>();
+    public long id;
 
-    public void afterUnmarshal(Unmarshaller u, Object parent) {
-        NodeRef prev = null;
-        for (NodeRef r : nd) {
-            if (prev != null) prev.next = r;
-            r.prev = prev;
-            prev = r;
+    /**
+     * For ways split from OSM ways (c.f. TrackGraph): the number of the part of way id that this way starts with,
+     * where 0 is also used for ways as read
+     */
+    public int part;
+
+    public Tags tags = Tags.EMPTY;
+
+    // IDs of the referenced nodes as read from the input, until resolved (c.f. resolve())
+    private long[] nodeIds = NO_IDS;
+
+    // once resolved: the store holding the referenced nodes, and their positions in it,
+    // which are nodeIndices[offset .. offset + length)
+    NodeStore nodes;
+    private int[] nodeIndices;
+    int offset;
+    private int length;
+
+    // per node reference: distance from the first node along the way, and azimuth (c.f. NodeRef)
+    private double[] positions, azimuths;
+
+    @Override
+    public Tags tags() {
+        return tags;
+    }
+
+    /**
+     * Order of ways by ID and part, e.g. for choosing among the ways at a node
+     */
+    public static int compare(Way a, Way b) {
+        int c = Long.compare(a.id, b.id);
+        return c != 0 ? c : Integer.compare(a.part, b.part);
+    }
+
+    /**
+     * Append a node reference (while reading)
+     */
+    void addNodeId(long id) {
+        if (length == nodeIds.length) nodeIds = Arrays.copyOf(nodeIds, Math.max(4, length * 2));
+        nodeIds[length++] = id;
+    }
+
+    /**
+     * Set the node references (while reading)
+     */
+    void setNodeIds(long[] ids) {
+        nodeIds = ids;
+        length = ids.length;
+    }
+
+    /**
+     * Set the node references as already resolved against a store (c.f. ExtractCache)
+     * @param nodeIndices - holds the positions of the referenced nodes in the store from offset on
+     */
+    void setNodes(NodeStore nodes, int[] nodeIndices, int offset, int length) {
+        this.nodes = nodes;
+        this.nodeIndices = nodeIndices;
+        this.offset = offset;
+        this.length = length;
+        nodeIds = null;
+    }
+
+    public int nodeCount() {
+        return length;
+    }
+
+    /**
+     * @return - the OSM ID of the i-th node of this way
+     */
+    public long nodeId(int i) {
+        return nodeIds != null ? nodeIds[i] : nodes.id(nodeIndex(i));
+    }
+
+    /**
+     * @return - the OSM IDs of all nodes of this way, in order
+     */
+    public long[] nodeIds() {
+        if (nodeIds != null) return Arrays.copyOf(nodeIds, length);
+        long[] ids = new long[length];
+        for (int i = 0; i < length; ++i) ids[i] = nodeId(i);
+        return ids;
+    }
+
+    // position of the i-th node of this way in the NodeStore (once resolved)
+    int nodeIndex(int i) {
+        return nodeIndices[offset + i];
+    }
+
+    public NodeRef nodeRef(int i) {
+        if (i < 0 || i >= length) throw new IndexOutOfBoundsException("node reference " + i + " of way " + id);
+        return new NodeRef(this, i);
+    }
+
+    public NodeRef first() {
+        return nodeRef(0);
+    }
+
+    public NodeRef last() {
+        return nodeRef(length - 1);
+    }
+
+    /**
+     * @return - views on all node references of this way, in order (once resolved)
+     */
+    public List<NodeRef> nodeRefs() {
+        return new NodeRefs();
+    }
+
+    private class NodeRefs extends AbstractList<NodeRef> implements RandomAccess {
+
+        @Override
+        public NodeRef get(int index) {
+            return nodeRef(index);
+        }
+
+        @Override
+        public int size() {
+            return length;
+        }
+
+    }
+
+    /**
+     * Resolve the node references of this way, dropping those whose node is not contained in the extract
+     * (ways at the border of a cut-out extract usually reference nodes outside of it)
+     * @param nodes - the nodes read
+     * @return - whether enough nodes are left for this to still be a way
+     */
+    boolean resolve(NodeStore nodes) {
+        int[] indices = new int[length];
+        int n = 0;
+        for (int i = 0; i < length; ++i) {
+            int index = nodes.indexOf(nodeId(i));
+            if (index >= 0) indices[n++] = index;
+        }
+        setNodes(nodes, n == length ? indices : Arrays.copyOf(indices, n), 0, n);
+        positions = azimuths = null;
+        return n > 1;
+    }
+
+    /**
+     * Compute the positions and azimuths of all node references in one walk along this way
+     * (this is done lazily with GeodesicMethod.GEODESIC unless done explicitly before)
+     * @param method - how to compute the distance and azimuths of each segment
+     */
+    public void computeGeometry(GeodesicMethod method) {
+        int n = length;
+        double[] pos = new double[n], azi = new double[n], segment = new double[3];
+        double lat = Double.NaN, lon = Double.NaN;
+        for (int i = 0; i < n; ++i) {
+            int node = nodeIndices[offset + i];
+            double lat2 = nodes.lat(node), lon2 = nodes.lon(node);
+            if (i > 0) {
+                method.inverse(lat, lon, lat2, lon2, segment);
+                pos[i] = pos[i - 1] + segment[GeodesicMethod.DISTANCE];
+                azi[i] = Math.toRadians(segment[GeodesicMethod.AZIMUTH2]);
+                if (i == 1) azi[0] = Math.toRadians(segment[GeodesicMethod.AZIMUTH1]);
+            }
+            lat = lat2;
+            lon = lon2;
         }
+        azimuths = azi;
+        positions = pos;
+    }
+
+    private double[] positions() {
+        if (positions == null) computeGeometry(GeodesicMethod.GEODESIC);
+        return positions;
     }
 
-    public static class NodeRef {
+    private double[] azimuths() {
+        if (azimuths == null) computeGeometry(GeodesicMethod.GEODESIC);
+        return azimuths;
+    }
+
+    /**
+     * A reference of a way to one of its nodes, as a view on its position within the way;
+     * references are equal if they refer to the same position of the same way
+     */
+    public static final class NodeRef {
 
         public final static int FIRST = 1, LAST = -1, INTERIOR = 0;
 
-        @XmlAttribute(name = "ref") @XmlIDREF
-        public Node node;
+        public final Way way;
 
-        @XmlTransient
-        public Way way;
+        // position of this reference within its way
+        final int index;
 
-        @XmlTransient
-        public NodeRef prev, next;
+        NodeRef(Way way, int index) {
+            this.way = way;
+            this.index = index;
+        }
 
-        public void afterUnmarshal(Unmarshaller u, Object parent) {
-            this.way = (Way) parent;
-            this.node.wayRefs.add(this);
+        // position of the referenced node in the NodeStore
+        int nodeIndex() {
+            return way.nodeIndex(index);
+        }
+
+        // position of this reference in the node -> way incidence of the NodeStore (c.f. Junctions)
+        int incidence() {
+            return way.nodes.incidence(way.offset + index);
+        }
+
+        public Node node() {
+            return way.nodes.get(nodeIndex());
+        }
+
+        /**
+         * @return - the reference to the previous node of the way, or null for the first
+         */
+        public NodeRef prev() {
+            return index == 0 ? null : new NodeRef(way, index - 1);
+        }
+
+        /**
+         * @return - the reference to the next node of the way, or null for the last
+         */
+        public NodeRef next() {
+            return index == way.length - 1 ? null : new NodeRef(way, index + 1);
+        }
+
+        /**
+         * @return - how often the way has passed the node of this reference before (0 unless the way runs through
+         * the node more than once, like a ring of a single way)
+         */
+        public int visit() {
+            int visit = 0;
+            for (NodeRef r : node().wayRefs())
+                if (r.way == way && r.index < index) ++visit;
+            return visit;
         }
 
         public int topologicalPosition() {
-            if (prev == null) return FIRST;
-            if (next == null) return LAST;
+            if (index == 0) return FIRST;
+            if (index == way.length - 1) return LAST;
             return INTERIOR;
         }
 
-        private GeodesicData geodesicData = null;
-        private Double position = null;
-        private Double azimuth = null;
-
+        /**
+         * @return - the geodesic from the previous node to this one (computed on each call), or null for the first
+         */
         public GeodesicData geodesicData() {
-            if (geodesicData == null && topologicalPosition() != FIRST)
-                geodesicData = Geodesic.WGS84.Inverse(prev.node.lat, prev.node.lon, node.lat, node.lon);
-            return geodesicData;
+            if (topologicalPosition() == FIRST) return null;
+            int prev = way.nodeIndex(index - 1), node = nodeIndex();
+            return Geodesic.WGS84.Inverse(way.nodes.lat(prev), way.nodes.lon(prev),
+                    way.nodes.lat(node), way.nodes.lon(node), GeodesicMask.DISTANCE | GeodesicMask.AZIMUTH);
         }
 
+        /**
+         * @return - distance from the first node along the way (in metres)
+         */
         public double position() {
-            if (position == null) position = topologicalPosition() == FIRST ? 0.0 :
-                    prev.position() + geodesicData().s12;
-            return position;
+            return way.positions()[index];
         }
 
+        /**
+         * @return - azimuth of the way at this node in direction of the way (in radians)
+         */
         public double azimuth() {
-            if (azimuth == null) azimuth = Math.toRadians(topologicalPosition() == FIRST ? next.geodesicData().azi1 :
-                    geodesicData().azi2);
-            return azimuth;
+            return way.azimuths()[index];
         }
 
         public double azimuthTowardsWay() {
@@ -101,7 +309,16 @@ public class Way extends Taggable {
             return azimuth() + (topologicalPosition() == LAST ? Math.PI : 0.0);
         }
 
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof NodeRef && ((NodeRef) o).way == way && ((NodeRef) o).index == index;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(way) + index;
+        }
+
     }
 
 }
-
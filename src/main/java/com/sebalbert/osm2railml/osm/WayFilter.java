@@ -0,0 +1,79 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016-2017  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package com.sebalbert.osm2railml.osm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Filter for ways by their tags, e.g. railway in {rail, light_rail, tram}, but not service=siding.
+ *
+ * Since it only looks at tags, the readers apply it as soon as the tags of a way are known, so the node
+ * references of rejected ways need not be decoded (PBF) or kept (XML).
+ */
+public class WayFilter implements Predicate<Way> {
+
+    private final int railway = TagKeys.id("railway");
+    private final Set<String> railwayValues;
+    // parallel lists of key IDs and values of excluded tags
+    private final List<Integer> excludedKeys = new ArrayList<>();
+    private final List<String> excludedValues = new ArrayList<>();
+
+    /**
+     * @param railwayValues - values of the railway tag to accept, or null to accept any value
+     */
+    public WayFilter(Set<String> railwayValues) {
+        this.railwayValues = railwayValues;
+    }
+
+    public WayFilter(String... railwayValues) {
+        this(new HashSet<>(Arrays.asList(railwayValues)));
+    }
+
+    /**
+     * Reject ways that have the given tag (even if their railway tag is accepted)
+     * @return - this filter
+     */
+    public WayFilter exclude(String key, String value) {
+        excludedKeys.add(TagKeys.id(key));
+        excludedValues.add(value);
+        return this;
+    }
+
+    /**
+     * @return - whether ways with these tags are accepted
+     */
+    public boolean acceptsTags(Tags tags) {
+        String value = tags.get(railway);
+        if (value == null || (railwayValues != null && !railwayValues.contains(value))) return false;
+        for (int i = 0; i < excludedKeys.size(); ++i)
+            if (excludedValues.get(i).equals(tags.get(excludedKeys.get(i)))) return false;
+        return true;
+    }
+
+    @Override
+    public boolean test(Way way) {
+        return acceptsTags(way.tags);
+    }
+
+}
@@ -0,0 +1,190 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016-2017  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package com.sebalbert.osm2railml;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CompletionException;
+
+import javax.management.ObjectName;
+
+/**
+ * Unit test for running conversions as a service
+ */
+public class BatchServiceTest
+    extends TestCase
+{
+    public BatchServiceTest(String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( BatchServiceTest.class );
+    }
+
+    /**
+     * Jobs run concurrently give the same output as run on their own, and failing jobs are reported
+     */
+    public void testServe() throws Exception
+    {
+        File input = new File( BatchServiceTest.class.getResource( "/fixtures/simple-switch.osm" ).toURI() );
+        File single = File.createTempFile( "single", ".xml" ), first = File.createTempFile( "first", ".xml" ),
+                second = File.createTempFile( "second", ".xml" );
+        try ( Workers workers = new Workers( 2 ) )
+        {
+            new Main.Job( new String[] { "--output", single.getPath(), input.getPath() } )
+                    .run( workers, System.out );
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try ( BatchService service = new BatchService( workers, 2, 1L << 30,
+                    Collections.singletonList( "--compact" ) ) )
+            {
+                String jobs = "# two conversions and one without output\n" +
+                        "--output " + first.getPath() + " " + input.getPath() + "\n\n" +
+                        input.getPath() + "\n" +
+                        "--threads 1 --output " + second.getPath() + " " + input.getPath() + "\n" +
+                        "shutdown\n" +
+                        "--output " + single.getPath() + " nothing.osm\n";
+                assertTrue( service.serve( new BufferedReader( new StringReader( jobs ) ),
+                        new PrintStream( out, true, "UTF-8" ) ) );
+            }
+            String[] report = new String( out.toByteArray(), "UTF-8" ).split( "\n" );
+            Arrays.sort( report );
+            assertEquals( 3, report.length );
+            assertTrue( report[0], report[0].startsWith( "1 done in " ) );
+            assertEquals( "2 failed: java.lang.IllegalArgumentException: batch jobs need --output", report[1] );
+            assertTrue( report[2], report[2].startsWith( "3 done in " ) );
+            byte[] compact = Files.readAllBytes( first.toPath() );
+            assertTrue( Arrays.equals( compact, Files.readAllBytes( second.toPath() ) ) );
+            assertTrue( compact.length < single.length() );
+        }
+        finally
+        {
+            single.delete();
+            first.delete();
+            second.delete();
+        }
+    }
+
+    /**
+     * Only connections sending the token are served, a connection sending "shutdown" stops listening,
+     * and --profile is rejected while jobs run concurrently
+     */
+    public void testListen() throws Exception
+    {
+        int port;
+        try ( ServerSocket free = new ServerSocket( 0, 1, InetAddress.getLoopbackAddress() ) )
+        {
+            port = free.getLocalPort();
+        }
+        File tokenFile = File.createTempFile( "osm2railml", ".token" );
+        tokenFile.deleteOnExit();
+        try ( Workers workers = new Workers( 2 );
+              BatchService service = new BatchService( workers, 2, 1L << 30, Collections.<String>emptyList() ) )
+        {
+            Thread listener = new Thread( () -> {
+                try
+                {
+                    service.listen( port, tokenFile );
+                }
+                catch ( Exception e )
+                {
+                    throw new IllegalStateException( e );
+                }
+            } );
+            listener.start();
+            assertEquals( "unauthorized", send( port, "wrong\n--output x.xml x.osm\nshutdown\n" ) );
+            assertTrue( listener.isAlive() );
+            if ( Files.getFileStore( tokenFile.toPath() ).supportsFileAttributeView( "posix" ) )
+                assertEquals( "rw-------", PosixFilePermissions.toString(
+                        Files.getPosixFilePermissions( tokenFile.toPath() ) ) );
+            String token = new String( Files.readAllBytes( tokenFile.toPath() ), "US-ASCII" );
+            assertEquals( 32, token.length() );
+            assertEquals( "1 failed: java.lang.IllegalArgumentException: --profile requires --jobs 1",
+                    send( port, token + "\n--profile --output x.xml x.osm\nshutdown\n" ) );
+            listener.join( 10000 );
+            assertFalse( listener.isAlive() );
+            assertFalse( tokenFile.exists() );
+        }
+    }
+
+    // the first line of the reply to the lines sent to the port (once the service is listening)
+    private static String send( int port, String lines ) throws Exception
+    {
+        for ( int attempt = 0; ; ++attempt )
+        {
+            try ( Socket socket = new Socket( InetAddress.getLoopbackAddress(), port ) )
+            {
+                socket.getOutputStream().write( lines.getBytes( "UTF-8" ) );
+                return new BufferedReader( new InputStreamReader( socket.getInputStream(), "UTF-8" ) ).readLine();
+            }
+            catch ( ConnectException e )
+            {
+                // not listening yet
+                if ( attempt == 50 ) throw e;
+                Thread.sleep( 100 );
+            }
+        }
+    }
+
+    /**
+     * The RunReport of a job is removed from the MBean server when it has finished, even if it failed
+     */
+    public void testJmxOfFailedJob() throws Exception
+    {
+        ObjectName reports = new ObjectName( "com.sebalbert.osm2railml:type=RunReport,*" );
+        int before = ManagementFactory.getPlatformMBeanServer().queryNames( reports, null ).size();
+        try ( Workers workers = new Workers( 2 );
+              BatchService service = new BatchService( workers, 1, 1L << 30, Collections.singletonList( "--jmx" ) ) )
+        {
+            File output = File.createTempFile( "failed", ".xml" );
+            output.deleteOnExit();
+            try
+            {
+                service.submit( Arrays.asList( "--output", output.getPath(), "nothing.osm" ), System.out ).join();
+                fail( "the input does not exist" );
+            }
+            catch ( CompletionException e )
+            {
+                assertTrue( e.getCause() instanceof IOException );
+            }
+        }
+        assertEquals( before, ManagementFactory.getPlatformMBeanServer().queryNames( reports, null ).size() );
+    }
+
+}
@@ -0,0 +1,117 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016-2017  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package com.sebalbert.osm2railml;
+
+import com.sebalbert.osm2railml.osm.ExtractChunks;
+import com.sebalbert.osm2railml.osm.GeodesicMethod;
+import com.sebalbert.osm2railml.osm.OsmExtract;
+import com.sebalbert.osm2railml.osm.SyntheticOsm;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.railml.schemas._2016.ETrack;
+import org.railml.schemas._2016.ETracks;
+import org.railml.schemas._2016.Infrastructure;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Unit test for converting in chunks of ways
+ */
+public class ChunkedConversionTest
+    extends TestCase
+{
+    private static final String[] COUNTERS = { "tracks", "switches", "crossings", "openEnds", "bufferStops",
+            "doubleSlipsSkipped", "singleSlipsSkipped", "diagnostics", "unresolvedReferences" };
+
+    public ChunkedConversionTest(String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( ChunkedConversionTest.class );
+    }
+
+    /**
+     * With a memory budget far smaller than the ways, they are read and converted in many chunks, but the tracks
+     * (in the order of the ways), the diagnostics and the counters are the same as with a single Conversion
+     */
+    public void testSameAsSingleConversion() throws Exception
+    {
+        File[] files = { Fixtures.file( "simple-switch.osm" ), Fixtures.file( "simple-switch.osm.pbf" ),
+                Fixtures.file( "chain.osm" ), Fixtures.file( "station-throat.osm" ), Fixtures.file( "loop.osm" ),
+                Fixtures.file( "diamond-crossing.osm" ), Fixtures.file( "double-slip.osm" ),
+                SyntheticOsm.write( 300, 0.2 ) };
+        for ( File file : files )
+        {
+            RunReport expectedReport = new RunReport();
+            Conversion conversion = new Conversion( expectedReport );
+            OsmExtract osm = OsmExtract.fromFile( file );
+            osm.computeGeometry( GeodesicMethod.GEODESIC );
+            String expected = Fixtures.marshal( conversion.convert( osm ) );
+
+            OsmExtract.Options options = new OsmExtract.Options();
+            options.joinMemory = 1024;
+            RunReport report = new RunReport();
+            Infrastructure is = new Infrastructure();
+            is.setId( "is" );
+            is.setTracks( new ETracks() );
+            List<ETrack> tracks = is.getTracks().getTrack();
+            try ( Workers workers = new Workers( 4 ); ExtractChunks chunks = ExtractChunks.read( file, options ) )
+            {
+                assertEquals( osm.ways.size(), chunks.ways() );
+                assertEquals( osm.nodes.size(), chunks.nodes() );
+                ChunkedConversion chunked = new ChunkedConversion( report, workers );
+                chunked.convert( chunks, GeodesicMethod.GEODESIC, tracks::add );
+                assertTrue( file.getName(), chunks.chunks() > 1 );
+                assertNull( chunks.next() );
+                assertEquals( file.getName(), expected, Fixtures.marshal( is ) );
+                assertEquals( conversion.diagnostics().toString(), chunked.diagnostics().toString() );
+            }
+            for ( String counter : COUNTERS )
+                assertEquals( file.getName() + " " + counter, expectedReport.get( counter ), report.get( counter ) );
+        }
+    }
+
+    /**
+     * A region drops the ways outside of it before the chunks are formed, as when reading an extract
+     */
+    public void testRegion() throws Exception
+    {
+        File file = SyntheticOsm.write( 300, 0.2 );
+        OsmExtract.Options options = new OsmExtract.Options();
+        options.region = new com.sebalbert.osm2railml.osm.Region.BoundingBox( 50.0, 10.0, 50.015, 10.03 );
+        OsmExtract osm = OsmExtract.fromFile( file, options );
+        options.joinMemory = 4096;
+        try ( ExtractChunks chunks = ExtractChunks.read( file, options ) )
+        {
+            assertTrue( osm.ways.size() < 300 );
+            assertEquals( osm.ways.size(), chunks.ways() );
+            assertEquals( osm.nodes.size(), chunks.nodes() );
+            int ways = 0;
+            for ( ExtractChunks.Chunk chunk; ( chunk = chunks.next() ) != null; )
+                for ( int i = 0; i < chunk.ways.size(); ++i )
+                    assertEquals( osm.ways.get( ways++ ).id, chunk.ways.get( i ).id );
+            assertEquals( osm.ways.size(), ways );
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016-2017  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package com.sebalbert.osm2railml;
+
+import com.sebalbert.osm2railml.osm.Components;
+import com.sebalbert.osm2railml.osm.OsmExtract;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.Arrays;
+
+/**
+ * Unit test for converting by connected components
+ */
+public class ComponentConversionTest
+    extends TestCase
+{
+    public ComponentConversionTest(String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( ComponentConversionTest.class );
+    }
+
+    /**
+     * Ways are in the same component if they share nodes, directly or through other ways
+     */
+    public void testComponents() throws Exception
+    {
+        OsmExtract osm = Fixtures.extract( "chain.osm" );
+        Components components = osm.components();
+        assertEquals( 2, components.size() );
+        assertEquals( "[0, 1, 2, 3, 4, 5]", Arrays.toString( components.ways( 0 ) ) );
+        assertEquals( "[6, 7]", Arrays.toString( components.ways( 1 ) ) );
+        assertEquals( 1, components.of( 7 ) );
+        assertSame( components, osm.components() );
+
+        // the crossing way is connected with the switch
+        assertEquals( 1, Fixtures.extract( "simple-switch.osm" ).components().size() );
+    }
+
+    /**
+     * Components are converted on their own, but the result is the same as with a single Conversion,
+     * for any number of threads
+     */
+    public void testSameAsSingleConversion() throws Exception
+    {
+        for ( String fixture : new String[] { "simple-switch.osm", "chain.osm", "station-throat.osm" } )
+        {
+            Conversion conversion = new Conversion();
+            String expected = Fixtures.marshal( conversion.convert( Fixtures.extract( fixture ) ) );
+            for ( int threads : new int[] { 1, 4 } )
+            {
+                try ( Workers workers = new Workers( threads ) )
+                {
+                    RunReport report = new RunReport();
+                    ComponentConversion components = new ComponentConversion( report, workers );
+                    assertEquals( fixture, expected, Fixtures.marshal( components.convert( Fixtures.extract( fixture ) ) ) );
+                    assertEquals( conversion.diagnostics().toString(), components.diagnostics().toString() );
+                }
+            }
+        }
+    }
+}
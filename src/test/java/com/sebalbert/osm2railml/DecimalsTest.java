@@ -0,0 +1,82 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016-2017  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package com.sebalbert.osm2railml;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Random;
+
+/**
+ * Unit test for decimal values of railML attributes
+ */
+public class DecimalsTest
+    extends TestCase
+{
+    public DecimalsTest(String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( DecimalsTest.class );
+    }
+
+    /**
+     * Positions are the same as made from their decimal string before
+     */
+    public void testFixed()
+    {
+        Random random = new Random( 42 );
+        for ( int i = 0; i < 100000; ++i ) {
+            double value = random.nextDouble() * Math.pow( 10, random.nextInt( 7 ) );
+            BigDecimal expected = new BigDecimal( new BigInteger( Long.toString( Math.round( value * 1e6 ) ) ), 6 );
+            BigDecimal actual = Decimals.fixed( value, 6 );
+            assertEquals( expected, actual );
+            assertEquals( expected.toPlainString(), actual.toPlainString() );
+        }
+        assertEquals( "0.000000", Decimals.fixed( 0.0, 6 ).toPlainString() );
+    }
+
+    /**
+     * Speeds are truncated like BigDecimal.setScale(ROUND_DOWN), and invalid ones are rejected likewise
+     */
+    public void testTruncate()
+    {
+        for ( String value : new String[] { "40", "40.0", "40.55", "160.99", "0", "-0", "-12.345", "+5", ".5", "40.",
+                "007", "1e2", "123456789012345678901234", "99999999999999999.9" } ) {
+            BigDecimal expected = new BigDecimal( value ).setScale( 1, BigDecimal.ROUND_DOWN );
+            assertEquals( value, expected, Decimals.truncate( value, 1 ) );
+            assertEquals( value, expected.toString(), Decimals.truncate( value, 1 ).toString() );
+        }
+        for ( String value : new String[] { "", "-", ".", "40 mph", "4.0.0", "none" } ) {
+            try {
+                Decimals.truncate( value, 1 );
+                fail( value );
+            } catch ( NumberFormatException e ) {
+                // like new BigDecimal(value)
+            }
+        }
+    }
+
+}
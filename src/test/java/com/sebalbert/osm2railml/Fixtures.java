@@ -0,0 +1,66 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016-2017  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package com.sebalbert.osm2railml;
+
+import com.sebalbert.osm2railml.osm.GeodesicMethod;
+import com.sebalbert.osm2railml.osm.OsmExtract;
+
+import javax.xml.bind.Marshaller;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+/**
+ * Fixtures of the tests of conversions (c.f. OsmExtractTest.fixture() for those of reading)
+ */
+final class Fixtures
+{
+    private Fixtures()
+    {
+    }
+
+    /**
+     * @return - an OSM file in /fixtures
+     */
+    static File file( String name ) throws Exception
+    {
+        return new File( Fixtures.class.getResource( "/fixtures/" + name ).toURI() );
+    }
+
+    /**
+     * @return - an OSM file in /fixtures read, with the geometry of its ways computed
+     */
+    static OsmExtract extract( String name ) throws Exception
+    {
+        OsmExtract osm = OsmExtract.fromFile( file( name ) );
+        osm.computeGeometry( GeodesicMethod.GEODESIC );
+        return osm;
+    }
+
+    /**
+     * @return - railML infrastructure marshalled with indentation
+     */
+    static String marshal( Object is ) throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Marshaller marshaller = RailmlWriter.context().createMarshaller();
+        marshaller.setProperty( Marshaller.JAXB_FORMATTED_OUTPUT, true );
+        marshaller.marshal( is, out );
+        return out.toString( "UTF-8" );
+    }
+}
@@ -0,0 +1,328 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016-2017  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package com.sebalbert.osm2railml;
+
+import com.sebalbert.osm2railml.osm.GeodesicMethod;
+import com.sebalbert.osm2railml.osm.OsmExtract;
+import com.sebalbert.osm2railml.osm.SyntheticOsm;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.railml.schemas._2016.Infrastructure;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+import javax.xml.XMLConstants;
+import javax.xml.bind.Marshaller;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Golden-output tests of the conversion on a corpus of fixtures (listed in /golden/corpus.txt), each with
+ * budgets for the time taken and the memory allocated by reading, converting and marshalling it. Each fixture
+ * is converted both as a whole (Conversion) and by connected components (ComponentConversion, the default of
+ * the command line), and both must give the golden output.
+ *
+ * The output is compared with the golden railML in a canonical form (attributes sorted, whitespace ignored),
+ * and the diagnostics with the golden diagnostics (none if there is no such file). Generated networks are compared
+ * by the SHA-256 digest of their canonical form instead. On a mismatch, the actual output is written to target/golden.
+ *
+ * System properties: golden.update=true writes the actual outputs as golden files (to be reviewed before committing),
+ * budget.factor scales all budgets (e.g. for slow machines; 0 disables them), and railml.schema names a copy
+ * (file or URL) of the railML 2.3 infrastructure.xsd to validate all outputs against. Without it, the schema is
+ * looked up as /railml-2.3/infrastructure.xsd on the class path, and then at the URL the railML classes are generated
+ * from (c.f. pom.xml); the tests fail if it cannot be loaded, so outputs are always validated.
+ */
+public class GoldenTest
+    extends TestCase
+{
+    private static final File GOLDEN = new File( "src/test/resources/golden" ), ACTUAL = new File( "target/golden" );
+    private static final String SYNTHETIC = "synthetic-";
+    // the schema the railML classes are generated from (c.f. pom.xml)
+    private static final String SCHEMA =
+            "http://www.railml.org/files/download/schemas/2016/railML-2.3/schema/infrastructure.xsd";
+    // loaded by the first test, for all
+    private static Schema schema;
+
+    private final String fixture;
+    private final boolean components;
+    private final double millisBudget;
+    private final long allocationBudget;
+
+    /**
+     * @param fixture - name of an OSM file in /fixtures, or synthetic-ways-switchDensity for a generated network
+     *                (c.f. SyntheticOsm)
+     * @param components - whether to convert by connected components (c.f. ComponentConversion)
+     * @param millisBudget - wall time budget of converting the fixture (after a warm-up)
+     * @param allocationBudget - budget of bytes allocated converting the fixture
+     */
+    public GoldenTest( String fixture, boolean components, double millisBudget, long allocationBudget )
+    {
+        super( components ? fixture + " by components" : fixture );
+        this.fixture = fixture;
+        this.components = components;
+        this.millisBudget = millisBudget;
+        this.allocationBudget = allocationBudget;
+    }
+
+    public static Test suite() throws IOException
+    {
+        TestSuite suite = new TestSuite( "golden outputs" );
+        try ( BufferedReader in = new BufferedReader( new InputStreamReader(
+                GoldenTest.class.getResourceAsStream( "/golden/corpus.txt" ), StandardCharsets.UTF_8 ) ) )
+        {
+            for ( String line; ( line = in.readLine() ) != null; )
+            {
+                line = line.trim();
+                if ( line.isEmpty() || line.startsWith( "#" ) ) continue;
+                String[] fields = line.split( "\\s+" );
+                for ( boolean components : new boolean[] { false, true } )
+                    suite.addTest( new GoldenTest( fields[0], components, Double.parseDouble( fields[1] ),
+                            Long.parseLong( fields[2] ) << 20 ) );
+            }
+        }
+        return suite;
+    }
+
+    @Override
+    protected void runTest() throws Throwable
+    {
+        File input = input();
+        // warm-up, so the budgets do not include class loading and compilation
+        convert( input, new RunReport(), new ArrayList<>() );
+        RunReport report = new RunReport();
+        List<String> diagnostics = new ArrayList<>();
+        byte[] xml = convert( input, report, diagnostics );
+        String canonical = canonical( xml );
+        String base = base();
+        // where to write the actual output on a mismatch
+        String actual = components ? base + ".components" : base;
+        boolean synthetic = fixture.startsWith( SYNTHETIC );
+        String expected = synthetic ? base + ".sha256" : base + ".railml.xml";
+        String actualDiagnostics = String.join( "\n", diagnostics );
+
+        if ( Boolean.getBoolean( "golden.update" ) )
+        {
+            // both ways of converting have the same golden files
+            if ( components ) return;
+            Files.write( new File( GOLDEN, expected ).toPath(),
+                    synthetic ? ( digest( canonical ) + "\n" ).getBytes( StandardCharsets.UTF_8 ) : xml );
+            File golden = new File( GOLDEN, base + ".diagnostics.txt" );
+            if ( diagnostics.isEmpty() ) golden.delete();
+            else Files.write( golden.toPath(), ( actualDiagnostics + "\n" ).getBytes( StandardCharsets.UTF_8 ) );
+        }
+        else
+        {
+            byte[] golden = resource( "/golden/" + expected ),
+                    goldenDiagnostics = resource( "/golden/" + base + ".diagnostics.txt" );
+            assertNotNull( "no golden output " + expected + " (c.f. golden.update)", golden );
+            boolean same = synthetic ? new String( golden, StandardCharsets.UTF_8 ).trim().equals( digest( canonical ) )
+                    : canonical( golden ).equals( canonical );
+            String expectedDiagnostics = goldenDiagnostics == null ? "" :
+                    new String( goldenDiagnostics, StandardCharsets.UTF_8 ).trim();
+            if ( !same || !expectedDiagnostics.equals( actualDiagnostics ) )
+            {
+                ACTUAL.mkdirs();
+                Files.write( new File( ACTUAL, actual + ".railml.xml" ).toPath(), xml );
+                Files.write( new File( ACTUAL, actual + ".diagnostics.txt" ).toPath(),
+                        actualDiagnostics.getBytes( StandardCharsets.UTF_8 ) );
+            }
+            assertTrue( "output differs from " + expected + ", see " + ACTUAL, same );
+            assertEquals( "diagnostics differ, see " + ACTUAL, expectedDiagnostics, actualDiagnostics );
+        }
+
+        validate( xml );
+        checkBudgets( report );
+    }
+
+    private String base()
+    {
+        return fixture.replaceFirst( "\\.osm$", "" );
+    }
+
+    private File input() throws Exception
+    {
+        if ( !fixture.startsWith( SYNTHETIC ) )
+            return new File( GoldenTest.class.getResource( "/fixtures/" + fixture ).toURI() );
+        String[] parameters = fixture.substring( SYNTHETIC.length() ).split( "-" );
+        return SyntheticOsm.write( Integer.parseInt( parameters[0] ), Double.parseDouble( parameters[1] ) );
+    }
+
+    private byte[] convert( File input, RunReport report, List<String> diagnostics ) throws Exception
+    {
+        OsmExtract.Options options = new OsmExtract.Options();
+        options.tagKeys = Conversion.TAG_KEYS;
+        options.onPhase = report::phase;
+        report.phase( RunReport.PARSE );
+        OsmExtract osm = OsmExtract.fromFile( input, options );
+        report.phase( RunReport.GEODESIC );
+        osm.computeGeometry( GeodesicMethod.GEODESIC );
+        report.phase( RunReport.JUNCTIONS );
+        osm.junctions();
+        Infrastructure is;
+        List<Linker.Diagnostic> found;
+        if ( components )
+        {
+            ComponentConversion conversion = new ComponentConversion( report, Workers.COMMON );
+            is = conversion.convert( osm );
+            found = conversion.diagnostics();
+        }
+        else
+        {
+            Conversion conversion = new Conversion( report, Workers.COMMON );
+            is = conversion.convert( osm );
+            found = conversion.diagnostics();
+        }
+        report.phase( RunReport.MARSHAL );
+        Marshaller marshaller = RailmlWriter.context().createMarshaller();
+        marshaller.setProperty( Marshaller.JAXB_FORMATTED_OUTPUT, true );
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        marshaller.marshal( is, out );
+        report.end();
+        for ( Linker.Diagnostic d : found )
+            diagnostics.add( d.toString() );
+        return out.toByteArray();
+    }
+
+    private void checkBudgets( RunReport report )
+    {
+        double factor = Double.parseDouble( System.getProperty( "budget.factor", "1" ) );
+        if ( factor <= 0.0 ) return;
+        double millis = 0.0;
+        for ( double m : report.getPhaseMillis().values() )
+            millis += m;
+        assertTrue( fixture + " took " + Math.round( millis ) + " ms, budget " + millisBudget * factor,
+                millis <= millisBudget * factor );
+        long allocated = 0;
+        for ( long bytes : report.getPhaseAllocatedBytes().values() )
+        {
+            // not measurable on this JVM
+            if ( bytes < 0 ) return;
+            allocated += bytes;
+        }
+        assertTrue( fixture + " allocated " + ( allocated >> 20 ) + " MiB, budget " +
+                ( ( long ) ( allocationBudget * factor ) >> 20 ), allocated <= allocationBudget * factor );
+    }
+
+    private static void validate( byte[] xml ) throws Exception
+    {
+        schema().newValidator().validate( new StreamSource( new ByteArrayInputStream( xml ) ) );
+    }
+
+    private static synchronized Schema schema() throws Exception
+    {
+        if ( schema != null ) return schema;
+        String location = System.getProperty( "railml.schema" );
+        URL url = location == null || location.isEmpty() ?
+                GoldenTest.class.getResource( "/railml-2.3/infrastructure.xsd" ) :
+                location.contains( "://" ) ? new URL( location ) : new File( location ).toURI().toURL();
+        if ( url == null ) url = new URL( SCHEMA );
+        try
+        {
+            schema = SchemaFactory.newInstance( XMLConstants.W3C_XML_SCHEMA_NS_URI ).newSchema( url );
+        }
+        catch ( SAXException e )
+        {
+            fail( "cannot load the railML schema from " + url + " (c.f. railml.schema): " + e );
+        }
+        return schema;
+    }
+
+    private static byte[] resource( String name ) throws IOException
+    {
+        try ( InputStream in = GoldenTest.class.getResourceAsStream( name ) )
+        {
+            if ( in == null ) return null;
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1 << 16];
+            for ( int n; ( n = in.read( buffer ) ) > 0; )
+                out.write( buffer, 0, n );
+            return out.toByteArray();
+        }
+    }
+
+    private static String digest( String canonical ) throws Exception
+    {
+        StringBuilder hex = new StringBuilder();
+        for ( byte b : MessageDigest.getInstance( "SHA-256" ).digest( canonical.getBytes( StandardCharsets.UTF_8 ) ) )
+            hex.append( String.format( "%02x", b ) );
+        return hex.toString();
+    }
+
+    /**
+     * @return - the elements of the document, one per line and indented, with their attributes sorted
+     *         and their text (if any), i.e. regardless of formatting and of the order of attributes
+     */
+    static String canonical( byte[] xml ) throws Exception
+    {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware( true );
+        Document document = factory.newDocumentBuilder().parse( new ByteArrayInputStream( xml ) );
+        StringBuilder out = new StringBuilder();
+        canonical( document.getDocumentElement(), "", out );
+        return out.toString();
+    }
+
+    private static void canonical( Element element, String indent, StringBuilder out )
+    {
+        out.append( indent ).append( '{' ).append( element.getNamespaceURI() ).append( '}' )
+                .append( element.getLocalName() );
+        Map<String, String> attributes = new TreeMap<>();
+        NamedNodeMap map = element.getAttributes();
+        for ( int i = 0; i < map.getLength(); ++i )
+        {
+            Attr a = ( Attr ) map.item( i );
+            if ( XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals( a.getNamespaceURI() ) ) continue;
+            attributes.put( a.getNamespaceURI() == null ? a.getLocalName() :
+                    "{" + a.getNamespaceURI() + "}" + a.getLocalName(), a.getValue() );
+        }
+        for ( Map.Entry<String, String> a : attributes.entrySet() )
+            out.append( ' ' ).append( a.getKey() ).append( "=\"" ).append( a.getValue() ).append( '"' );
+        out.append( '\n' );
+        for ( Node child = element.getFirstChild(); child != null; child = child.getNextSibling() )
+        {
+            if ( child instanceof Element )
+                canonical( ( Element ) child, indent + "  ", out );
+            else if ( child.getNodeType() == Node.TEXT_NODE && !child.getNodeValue().trim().isEmpty() )
+                out.append( indent ).append( "  \"" ).append( child.getNodeValue().trim() ).append( "\"\n" );
+        }
+    }
+
+}
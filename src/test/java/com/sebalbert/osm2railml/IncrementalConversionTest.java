@@ -0,0 +1,178 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016-2017  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package com.sebalbert.osm2railml;
+
+import com.sebalbert.osm2railml.osm.GeodesicMethod;
+import com.sebalbert.osm2railml.osm.OsmChange;
+import com.sebalbert.osm2railml.osm.OsmExtract;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Unit test for applying OSM changes to a snapshot
+ */
+public class IncrementalConversionTest
+    extends TestCase
+{
+    public IncrementalConversionTest(String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( IncrementalConversionTest.class );
+    }
+
+    private static String write( IncrementalConversion conversion ) throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RailmlWriter writer = new RailmlWriter( out, "is", true );
+        conversion.write( writer );
+        writer.close();
+        return out.toString( "UTF-8" );
+    }
+
+    private static String stream( File file ) throws Exception
+    {
+        OsmExtract osm = OsmExtract.fromFile( file );
+        osm.computeGeometry( GeodesicMethod.GEODESIC );
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RailmlWriter writer = new RailmlWriter( out, "is", true );
+        new Conversion().convert( osm, writer );
+        writer.close();
+        return out.toString( "UTF-8" );
+    }
+
+    /**
+     * Applying changes to a snapshot yields the same as converting the changed data completely
+     */
+    public void testApplySameAsFullConversion() throws Exception
+    {
+        OsmExtract osm = OsmExtract.fromFile( Fixtures.file( "simple-switch.osm" ) );
+        osm.computeGeometry( GeodesicMethod.GEODESIC );
+        RunReport report = new RunReport();
+        IncrementalConversion full = IncrementalConversion.convert( osm, report, Workers.CALLER );
+        assertEquals( 1, report.get( "switches" ) );
+        assertEquals( stream( Fixtures.file( "simple-switch.osm" ) ), write( full ) );
+
+        File snapshot = File.createTempFile( "osm2railml", ".snapshot" );
+        snapshot.deleteOnExit();
+        full.save( snapshot );
+        IncrementalConversion loaded = IncrementalConversion.load( snapshot, false );
+        assertEquals( write( full ), write( loaded ) );
+        assertEquals( full.diagnostics(), loaded.diagnostics() );
+
+        OsmExtract.Options options = new OsmExtract.Options();
+        OsmChange change = OsmChange.read( Fixtures.file( "simple-switch.osc" ) );
+        assertEquals( 6, change.size() );
+        try ( Workers workers = new Workers( 2 ) ) {
+            assertTrue( loaded.apply( change, options, GeodesicMethod.GEODESIC, new RunReport(), workers ) > 0 );
+        }
+        assertEquals( 4, loaded.extract().ways.size() );
+        assertTrue( loaded.extract().nodes.indexOf( 6L ) < 0 );
+        assertEquals( stream( Fixtures.file( "simple-switch-updated.osm" ) ), write( loaded ) );
+    }
+
+    private static int count( List<Linker.Diagnostic> diagnostics, String message )
+    {
+        int n = 0;
+        for ( Linker.Diagnostic d : diagnostics )
+            if ( d.message.equals( message ) ) ++n;
+        return n;
+    }
+
+    private static IncrementalConversion reload( IncrementalConversion conversion ) throws Exception
+    {
+        File snapshot = File.createTempFile( "osm2railml", ".snapshot" );
+        snapshot.deleteOnExit();
+        conversion.save( snapshot );
+        return IncrementalConversion.load( snapshot, false );
+    }
+
+    /**
+     * Diagnostics of the tracks converted again are replaced, also those about duplicate IDs, which belong to no
+     * track, and nodes that a changed way loses are reported with it
+     */
+    public void testApplyReplacesDiagnostics() throws Exception
+    {
+        OsmExtract osm = OsmExtract.fromFile( Fixtures.file( "duplicate-way.osm" ) );
+        osm.computeGeometry( GeodesicMethod.GEODESIC );
+        IncrementalConversion conversion = IncrementalConversion.convert( osm, new RunReport(), Workers.CALLER );
+        assertEquals( 1, count( conversion.diagnostics(), Linker.DUPLICATE_ID ) );
+
+        // a change elsewhere keeps it, without repeating it
+        OsmExtract.Options options = new OsmExtract.Options();
+        conversion = reload( conversion );
+        conversion.apply( OsmChange.read( Fixtures.file( "duplicate-way-far.osc" ) ), options,
+                GeodesicMethod.GEODESIC, new RunReport(), Workers.CALLER );
+        conversion = reload( conversion );
+        assertEquals( 1, count( conversion.diagnostics(), Linker.DUPLICATE_ID ) );
+
+        // way 40 is only once in the change, and its node 7 is neither in the snapshot nor in the change
+        OsmChange change = OsmChange.read( Fixtures.file( "duplicate-way.osc" ) );
+        RunReport report = new RunReport();
+        conversion.apply( change, options, GeodesicMethod.GEODESIC, report, Workers.CALLER );
+        assertEquals( 1, report.get( "missingNodes" ) );
+        assertEquals( 1, change.missingNodes().size() );
+        assertTrue( Arrays.equals( new long[] { 7 }, change.missingNodes().get( 41L ) ) );
+        conversion = reload( conversion );
+        List<Linker.Diagnostic> diagnostics = conversion.diagnostics();
+        assertEquals( 0, count( diagnostics, Linker.DUPLICATE_ID ) );
+        assertEquals( 1, count( diagnostics, IncrementalConversion.MISSING_NODE ) );
+        Linker.Diagnostic missing = diagnostics.stream()
+                .filter( d -> d.message.equals( IncrementalConversion.MISSING_NODE ) ).findFirst().get();
+        assertEquals( "w_41", missing.from );
+        assertEquals( "node_7", missing.to );
+
+        OsmExtract updated = OsmExtract.fromFile( Fixtures.file( "duplicate-way-updated.osm" ) );
+        updated.computeGeometry( GeodesicMethod.GEODESIC );
+        IncrementalConversion full = IncrementalConversion.convert( updated, new RunReport(), Workers.CALLER );
+        assertEquals( write( full ), write( conversion ) );
+        diagnostics.remove( missing );
+        assertEquals( full.diagnostics(), diagnostics );
+
+        // the lost node is still reported after changes elsewhere
+        conversion.apply( OsmChange.read( Fixtures.file( "duplicate-way-far.osc" ) ), options,
+                GeodesicMethod.GEODESIC, new RunReport(), Workers.CALLER );
+        assertEquals( 1, count( conversion.diagnostics(), IncrementalConversion.MISSING_NODE ) );
+    }
+
+    /**
+     * Only the geometry of the ways converted again and their neighbours is computed
+     */
+    public void testApplyMeasuresAffectedWaysOnly() throws Exception
+    {
+        OsmExtract osm = OsmExtract.fromFile( Fixtures.file( "duplicate-way.osm" ) );
+        osm.computeGeometry( GeodesicMethod.GEODESIC );
+        IncrementalConversion conversion = reload(
+                IncrementalConversion.convert( osm, new RunReport(), Workers.CALLER ) );
+        RunReport report = new RunReport();
+        assertEquals( 1, conversion.apply( OsmChange.read( Fixtures.file( "duplicate-way-far.osc" ) ),
+                new OsmExtract.Options(), GeodesicMethod.GEODESIC, report, Workers.CALLER ) );
+        assertEquals( 1, report.get( "geometries" ) );
+        assertEquals( 4, conversion.extract().ways.size() );
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package com.sebalbert.osm2railml;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Unit test for linking references between railML objects
+ */
+public class LinkerTest
+    extends TestCase
+{
+    public LinkerTest(String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( LinkerTest.class );
+    }
+
+    /**
+     * References registered concurrently are resolved in the order of the referencing IDs
+     */
+    public void testDeterministicResolve()
+    {
+        Linker<String> linker = new Linker<>();
+        List<String> order = new ArrayList<>();
+        linker.register( "target", "t" );
+        IntStream.range( 0, 1000 ).parallel().forEach( i ->
+                linker.referenceLater( String.format( "from%04d", i ), "target", target -> {
+                    order.add( i + ":" + target );
+                    return null;
+                } ) );
+        assertTrue( linker.resolve().isEmpty() );
+        assertEquals( 1000, order.size() );
+        for ( int i = 0; i < 1000; ++i )
+            assertEquals( i + ":t", order.get( i ) );
+    }
+
+    /**
+     * Missing targets, failed resolvers and duplicate IDs are reported
+     */
+    public void testDiagnostics()
+    {
+        Linker<String> linker = new Linker<>();
+        assertTrue( linker.register( "a", "first" ) );
+        assertFalse( linker.register( "a", "second" ) );
+        linker.referenceLater( "x", "missing", target -> null );
+        linker.referenceLater( "y", "a", target -> "first".equals( target ) ? "refused" : null );
+        List<Linker.Diagnostic> diagnostics = linker.resolve();
+        assertEquals( 3, diagnostics.size() );
+        List<String> messages = new ArrayList<>();
+        for ( Linker.Diagnostic d : diagnostics )
+            messages.add( d.from + ">" + d.to + ":" + d.message );
+        assertEquals( Arrays.asList( "a>a:duplicate ID", "y>a:refused", "x>missing:no object with this ID" ),
+                messages );
+    }
+}
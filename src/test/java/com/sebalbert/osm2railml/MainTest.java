@@ -19,10 +19,18 @@
 
 package com.sebalbert.osm2railml;
 
+import com.sebalbert.osm2railml.osm.OsmExtract;
+import com.sebalbert.osm2railml.osm.Way;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
 
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 /**
  * Unit test for simple App.
  */
@@ -54,4 +62,34 @@ public class MainTest
     {
         assertTrue( true );
     }
+
+    /**
+     * --exclude applies whether it is given before or after --railway
+     */
+    public void testExcludeAndRailwayInAnyOrder() throws Exception
+    {
+        File file = File.createTempFile( "filter", ".osm" );
+        file.deleteOnExit();
+        try ( PrintWriter out = new PrintWriter( file, "UTF-8" ) ) {
+            out.println( "<osm version=\"0.6\">" );
+            out.println( "  <node id=\"1\" lat=\"52.0\" lon=\"13.0\"/>" );
+            out.println( "  <node id=\"2\" lat=\"52.0\" lon=\"13.001\"/>" );
+            out.println( "  <way id=\"10\"><nd ref=\"1\"/><nd ref=\"2\"/><tag k=\"railway\" v=\"rail\"/></way>" );
+            out.println( "  <way id=\"11\"><nd ref=\"1\"/><nd ref=\"2\"/><tag k=\"railway\" v=\"rail\"/>" +
+                    "<tag k=\"service\" v=\"siding\"/></way>" );
+            out.println( "  <way id=\"12\"><nd ref=\"1\"/><nd ref=\"2\"/><tag k=\"railway\" v=\"tram\"/></way>" );
+            out.println( "</osm>" );
+        }
+        String[][] orders = {
+                { "--railway", "rail", "--exclude", "service=siding", file.getPath() },
+                { "--exclude", "service=siding", "--railway", "rail", file.getPath() } };
+        for ( String[] args : orders ) {
+            Main.Job job = new Main.Job( args );
+            List<Long> ids = new ArrayList<>();
+            for ( Way w : OsmExtract.fromFile( file, job.options ).ways )
+                ids.add( w.id );
+            assertEquals( Arrays.toString( args ), Arrays.asList( 10L ), ids );
+        }
+    }
+
 }
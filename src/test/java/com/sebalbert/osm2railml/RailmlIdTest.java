@@ -0,0 +1,106 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016-2017  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package com.sebalbert.osm2railml;
+
+import com.sebalbert.osm2railml.osm.Way;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for numeric IDs of railML objects
+ */
+public class RailmlIdTest
+    extends TestCase
+{
+    public RailmlIdTest(String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( RailmlIdTest.class );
+    }
+
+    private static Way way( long id, int part )
+    {
+        Way way = new Way();
+        way.id = id;
+        way.part = part;
+        return way;
+    }
+
+    /**
+     * IDs are written as before they were numeric, and IDs of the same object are equal
+     */
+    public void testIds()
+    {
+        RailmlId conn = RailmlId.connection( RailmlId.Kind.CONNECTION, way( 10, 0 ), 2, way( 11, 0 ) );
+        assertEquals( "conn_10_2_11", conn.toString() );
+        assertEquals( "conn_11_2_10", conn.reverse().toString() );
+        assertEquals( "conn_10_2_11_cont", conn.continuation().toString() );
+        assertEquals( "crossing_conn_12_8_13",
+                RailmlId.connection( RailmlId.Kind.CROSSING_CONNECTION, way( 12, 0 ), 8, way( 13, 0 ) ).toString() );
+        assertEquals( "crossing_12_8", RailmlId.crossing( way( 12, 0 ), 8 ).toString() );
+        assertEquals( "switch_4000000000", RailmlId.switchAt( 4000000000L ).toString() );
+        assertEquals( "w_10", RailmlId.track( way( 10, 0 ) ).toString() );
+        assertEquals( "tB_10", RailmlId.trackBegin( way( 10, 0 ) ).toString() );
+        assertEquals( "tE_10", RailmlId.trackEnd( way( 10, 0 ) ).toString() );
+
+        assertEquals( conn, conn.reverse().reverse() );
+        assertEquals( conn.hashCode(), conn.reverse().reverse().hashCode() );
+        assertFalse( conn.equals( conn.continuation() ) );
+        assertTrue( conn.compareTo( conn.reverse() ) < 0 );
+        assertEquals( 0,
+                conn.compareTo( RailmlId.connection( RailmlId.Kind.CONNECTION, way( 10, 0 ), 2, way( 11, 0 ) ) ) );
+    }
+
+    /**
+     * Parts of a way after the first (c.f. TrackGraph) are told apart by a suffix, even in connections
+     */
+    public void testParts()
+    {
+        assertEquals( "w_10.2", RailmlId.track( way( 10, 2 ) ).toString() );
+        RailmlId conn = RailmlId.connection( RailmlId.Kind.CONNECTION, way( 10, 1 ), 2, way( 11, 0 ) );
+        assertEquals( "conn_10.1_2_11", conn.toString() );
+        assertEquals( "conn_11_2_10.1", conn.reverse().toString() );
+        assertFalse( conn.equals( RailmlId.connection( RailmlId.Kind.CONNECTION, way( 10, 0 ), 2, way( 11, 0 ) ) ) );
+        assertTrue( RailmlId.track( way( 10, 0 ) ).compareTo( RailmlId.track( way( 10, 1 ) ) ) < 0 );
+    }
+
+    /**
+     * A way passing a node more than once (like a ring of one way) is told apart by the number of its pass
+     */
+    public void testVisits() throws Exception
+    {
+        Way ring = null;
+        for ( Way w : Fixtures.extract( "loop.osm" ).ways )
+            if ( w.id == 52 ) ring = w;
+        assertEquals( 0, ring.first().visit() );
+        assertEquals( 1, ring.last().visit() );
+        RailmlId conn = RailmlId.connection( RailmlId.Kind.CONNECTION, ring.first(), ring.last() );
+        assertEquals( "conn_52_10_52-2", conn.toString() );
+        assertEquals( "conn_52-2_10_52", conn.reverse().toString() );
+        assertEquals( "conn_52_10_52-2_cont", conn.continuation().toString() );
+        assertFalse( conn.equals( conn.reverse() ) );
+        assertEquals( conn, RailmlId.connection( RailmlId.Kind.CONNECTION, ring.last(), ring.first() ).reverse() );
+    }
+
+}
@@ -0,0 +1,94 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016-2017  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package com.sebalbert.osm2railml;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.w3c.dom.Document;
+
+import javax.xml.bind.Marshaller;
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Unit test for writing railML track by track
+ */
+public class RailmlWriterTest
+    extends TestCase
+{
+    public RailmlWriterTest(String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( RailmlWriterTest.class );
+    }
+
+    private static Document parse( byte[] xml ) throws Exception
+    {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware( true );
+        factory.setIgnoringElementContentWhitespace( true );
+        Document doc = factory.newDocumentBuilder().parse( new ByteArrayInputStream( xml ) );
+        doc.normalizeDocument();
+        return doc;
+    }
+
+    /**
+     * Streaming yields the same document as marshalling the whole infrastructure at once
+     */
+    public void testStreamEqualsMarshal() throws Exception
+    {
+        Conversion conversion = new Conversion();
+        ByteArrayOutputStream marshalled = new ByteArrayOutputStream();
+        Marshaller marshaller = RailmlWriter.context().createMarshaller();
+        marshaller.marshal( conversion.convert( Fixtures.extract( "simple-switch.osm" ) ), marshalled );
+
+        Conversion streaming = new Conversion();
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        RailmlWriter writer = new RailmlWriter( streamed, "is", false );
+        streaming.convert( Fixtures.extract( "simple-switch.osm" ), writer );
+        writer.close();
+
+        assertEquals( conversion.diagnostics().toString(), streaming.diagnostics().toString() );
+        assertTrue( parse( marshalled.toByteArray() ).getDocumentElement().isEqualNode(
+                parse( streamed.toByteArray() ).getDocumentElement() ) );
+    }
+
+    /**
+     * Pretty printing only adds whitespace between elements
+     */
+    public void testPrettyEqualsCompact() throws Exception
+    {
+        ByteArrayOutputStream compact = new ByteArrayOutputStream(), pretty = new ByteArrayOutputStream();
+        RailmlWriter writer = new RailmlWriter( compact, "is", false );
+        new Conversion().convert( Fixtures.extract( "simple-switch.osm" ), writer );
+        writer.close();
+        writer = new RailmlWriter( pretty, "is", true );
+        new Conversion().convert( Fixtures.extract( "simple-switch.osm" ), writer );
+        writer.close();
+        String prettyXml = pretty.toString( "UTF-8" );
+        assertTrue( prettyXml.contains( "\n        <track id=\"w_10\" code=\"A\">\n" ) );
+        assertEquals( compact.toString( "UTF-8" ).trim(), prettyXml.replaceAll( ">\\s+<", "><" ).trim() );
+    }
+}
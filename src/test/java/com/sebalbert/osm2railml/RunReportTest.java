@@ -0,0 +1,106 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016-2017  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package com.sebalbert.osm2railml;
+
+import com.sebalbert.osm2railml.osm.GeodesicMethod;
+import com.sebalbert.osm2railml.osm.OsmExtract;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Unit test for the timings and counters of a run
+ */
+public class RunReportTest
+    extends TestCase
+{
+    public RunReportTest(String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( RunReportTest.class );
+    }
+
+    /**
+     * Converting the fixture counts what has been created, and its phases are reported in order
+     */
+    public void testConversionCounters() throws Exception
+    {
+        RunReport report = new RunReport();
+        OsmExtract.Options options = new OsmExtract.Options();
+        options.onPhase = report::phase;
+        report.phase( RunReport.PARSE );
+        OsmExtract osm = OsmExtract.fromFile(
+                new File( RunReportTest.class.getResource( "/fixtures/simple-switch.osm" ).toURI() ), options );
+        report.phase( RunReport.GEODESIC );
+        osm.computeGeometry( GeodesicMethod.GEODESIC );
+        new Conversion( report ).convert( osm );
+        report.end();
+
+        assertEquals( 4, report.get( "tracks" ) );
+        assertEquals( 1, report.get( "switches" ) );
+        assertEquals( 1, report.get( "bufferStops" ) );
+        assertEquals( 0, report.get( "unresolvedReferences" ) );
+        assertEquals( 0, report.get( "doubleSlipsSkipped" ) );
+        assertEquals( Arrays.asList( RunReport.PARSE, RunReport.INDEX, RunReport.GEODESIC,
+                RunReport.TRACKS, RunReport.RESOLVE ), new ArrayList<>( report.getPhaseMillis().keySet() ) );
+        String json = report.toJson();
+        assertTrue( json.contains( "\"switches\": 1" ) );
+        assertTrue( json.contains( "\"tracks\": {\"wallMillis\": " ) );
+    }
+
+    /**
+     * With a profiler, the phases, ways and junctions of a conversion are recorded and summarised
+     */
+    public void testProfiler() throws Exception
+    {
+        if ( !jdk.jfr.FlightRecorder.isAvailable() )
+            return;
+        RunReport report = new RunReport();
+        Profiler profiler = Profiler.start( null );
+        report.setProfiler( profiler );
+        OsmExtract osm = OsmExtract.fromFile(
+                new File( RunReportTest.class.getResource( "/fixtures/simple-switch.osm" ).toURI() ) );
+        osm.computeGeometry( GeodesicMethod.GEODESIC );
+        new Conversion( report ).convert( osm );
+        report.end();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        profiler.summarize( new PrintStream( out, true, "UTF-8" ) );
+        String summary = out.toString( "UTF-8" );
+
+        assertTrue( summary, summary.contains( "    tracks " ) );
+        assertTrue( summary, summary.contains( "    resolve " ) );
+        for ( long way : new long[] { 10, 11, 12, 13 } )
+            assertTrue( summary, summary.matches( "(?s).*\\n    way " + way + " .*" ) );
+        assertTrue( summary, summary.matches( "(?s).*\\n    node \\d+ .* SWITCH .*" ) );
+        // whichever allocation events the JDK records with the "profile" settings
+        assertTrue( summary, summary.matches( "(?s).*allocation sites[^\\n]*\\n +\\d+\\.\\d MiB .*" ) );
+        assertTrue( profiler.file().delete() );
+    }
+
+}
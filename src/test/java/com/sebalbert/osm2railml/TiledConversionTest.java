@@ -0,0 +1,133 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016-2017  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package com.sebalbert.osm2railml;
+
+import com.sebalbert.osm2railml.osm.ExtractChunks;
+import com.sebalbert.osm2railml.osm.GeodesicMethod;
+import com.sebalbert.osm2railml.osm.OsmExtract;
+import com.sebalbert.osm2railml.osm.SyntheticOsm;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+/**
+ * Unit test for converting in spatial tiles
+ */
+public class TiledConversionTest
+    extends TestCase
+{
+    private static final String[] COUNTERS = { "tracks", "switches", "crossings", "openEnds", "bufferStops",
+            "doubleSlipsSkipped", "singleSlipsSkipped", "diagnostics", "unresolvedReferences" };
+
+    public TiledConversionTest(String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( TiledConversionTest.class );
+    }
+
+    /**
+     * References across tile borders are found in the stubs of the neighbouring tiles, and duplicate IDs across
+     * tiles are found in each of them, so the tracks (in the order of the ways), the diagnostics and the counters
+     * do not depend on the tile size and are the same as with a single Conversion
+     */
+    public void testSameAsSingleConversion() throws Exception
+    {
+        File[] files = { Fixtures.file( "simple-switch.osm" ), Fixtures.file( "station-throat.osm" ),
+                Fixtures.file( "loop.osm" ), Fixtures.file( "duplicate-way.osm" ), SyntheticOsm.write( 300, 0.2 ) };
+        for ( File file : files )
+        {
+            RunReport expectedReport = new RunReport();
+            Conversion conversion = new Conversion( expectedReport );
+            OsmExtract osm = OsmExtract.fromFile( file );
+            osm.computeGeometry( GeodesicMethod.GEODESIC );
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            RailmlWriter writer = new RailmlWriter( expected, "is", true );
+            conversion.convert( osm, writer );
+            writer.close();
+
+            for ( double tileSize : new double[] { 0.0005, 0.002, 10.0 } )
+            {
+                OsmExtract.Options options = new OsmExtract.Options();
+                options.joinMemory = 1 << 16;
+                RunReport report = new RunReport();
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                try ( Workers workers = new Workers( 4 );
+                      ExtractChunks chunks = ExtractChunks.read( file, options, tileSize, workers.parallelism() ) )
+                {
+                    TiledConversion tiled = new TiledConversion( report, workers );
+                    writer = new RailmlWriter( out, "is", true );
+                    tiled.convert( chunks, GeodesicMethod.GEODESIC, writer );
+                    writer.close();
+                    assertNull( chunks.next() );
+                    assertTrue( chunks.chunks() >= chunks.tiles() );
+                    if ( tileSize == 0.0005 ) assertTrue( file.getName(), chunks.tiles() > 1 );
+                    if ( tileSize == 10.0 ) assertEquals( file.getName(), 1, chunks.tiles() );
+                    String name = file.getName() + " in tiles of " + tileSize;
+                    assertEquals( name, expected.toString( "UTF-8" ), out.toString( "UTF-8" ) );
+                    assertEquals( name, conversion.diagnostics().toString(), tiled.diagnostics().toString() );
+                }
+                for ( String counter : COUNTERS )
+                    assertEquals( file.getName() + " " + counter, expectedReport.get( counter ),
+                            report.get( counter ) );
+            }
+        }
+    }
+
+    /**
+     * Each chunk holds ways of one tile only, and all ways are handed out once
+     */
+    public void testChunksOfOneTile() throws Exception
+    {
+        File file = SyntheticOsm.write( 300, 0.2 );
+        OsmExtract osm = OsmExtract.fromFile( file );
+        OsmExtract.Options options = new OsmExtract.Options();
+        options.joinMemory = 4096;
+        double tileSize = 0.005;
+        try ( ExtractChunks chunks = ExtractChunks.read( file, options, tileSize, 2 ) )
+        {
+            boolean[] seen = new boolean[chunks.ways()];
+            for ( ExtractChunks.Chunk chunk; ( chunk = chunks.next() ) != null; )
+            {
+                String tile = null;
+                for ( int i = 0; i < chunk.ways.size(); ++i )
+                {
+                    assertEquals( osm.ways.get( chunk.positions[i] ).id, chunk.ways.get( i ).id );
+                    assertFalse( seen[chunk.positions[i]] );
+                    seen[chunk.positions[i]] = true;
+                    com.sebalbert.osm2railml.osm.Node first = osm.ways.get( chunk.positions[i] ).first().node();
+                    String t = Math.floor( ( first.lat() + 90.0 ) / tileSize ) + "/"
+                            + Math.floor( ( first.lon() + 180.0 ) / tileSize );
+                    if ( tile == null ) tile = t;
+                    assertEquals( tile, t );
+                }
+            }
+            for ( boolean s : seen )
+                assertTrue( s );
+            assertTrue( chunks.tiles() > 1 );
+            assertTrue( chunks.chunks() > chunks.tiles() );
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016-2017  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package com.sebalbert.osm2railml;
+
+import com.sebalbert.osm2railml.osm.GeodesicMethod;
+import com.sebalbert.osm2railml.osm.OsmExtract;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import javax.xml.bind.Marshaller;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Unit test for converting in parallel on dedicated threads
+ */
+public class WorkersTest
+    extends TestCase
+{
+    public WorkersTest(String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( WorkersTest.class );
+    }
+
+    /**
+     * Results keep the order of the items, however uneven their costs are
+     */
+    public void testMapKeepsOrder()
+    {
+        List<Integer> items = new ArrayList<>();
+        for ( int i = 0; i < 1000; ++i )
+            items.add( i );
+        for ( int threads : new int[] { 1, 3, 8 } ) {
+            try ( Workers workers = new Workers( threads ) ) {
+                List<Integer> squares = workers.map( items, i -> i % 100 == 0 ? 10000 : 1, i -> i * i );
+                assertEquals( items.size(), squares.size() );
+                for ( int i = 0; i < items.size(); ++i )
+                    assertEquals( i * i, (int) squares.get( i ) );
+            }
+        }
+    }
+
+    /**
+     * An exception thrown for an item is thrown to the caller
+     */
+    public void testMapRethrows()
+    {
+        try ( Workers workers = new Workers( 4 ) ) {
+            workers.map( Arrays.asList( 1, 2, 3, 0, 5 ), i -> 1, i -> 10 / i );
+            fail( "expected an ArithmeticException" );
+        } catch ( ArithmeticException e ) {
+            // expected
+        }
+    }
+
+    /**
+     * Each index of a range is processed exactly once, for any number of threads
+     */
+    public void testForEachIndex()
+    {
+        for ( int threads : new int[] { 1, 3, 8 } ) {
+            try ( Workers workers = new Workers( threads ) ) {
+                for ( int size : new int[] { 0, 5, 1000 } ) {
+                    AtomicIntegerArray seen = new AtomicIntegerArray( size );
+                    workers.forEach( size, seen::incrementAndGet );
+                    for ( int i = 0; i < size; ++i )
+                        assertEquals( 1, seen.get( i ) );
+                }
+            }
+        }
+    }
+
+    /**
+     * The CALLER workers process all items in the calling thread
+     */
+    public void testCallerRunsInline()
+    {
+        Thread caller = Thread.currentThread();
+        List<Boolean> inline = Workers.CALLER.map( Arrays.asList( 1, 2, 3 ), i -> 1000,
+                i -> Thread.currentThread() == caller );
+        assertEquals( Arrays.asList( true, true, true ), inline );
+        assertEquals( 1, Workers.CALLER.parallelism() );
+    }
+
+    private static byte[] convert( File file, int threads ) throws Exception
+    {
+        OsmExtract osm = OsmExtract.fromFile( file );
+        osm.computeGeometry( GeodesicMethod.GEODESIC );
+        try ( Workers workers = new Workers( threads ) ) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Marshaller marshaller = RailmlWriter.context().createMarshaller();
+            marshaller.marshal( new Conversion( new RunReport(), workers ).convert( osm ), out );
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * The output is the same for any number of threads
+     */
+    public void testSameOutputForAnyThreads() throws Exception
+    {
+        File file = new File( WorkersTest.class.getResource( "/fixtures/simple-switch.osm" ).toURI() );
+        byte[] sequential = convert( file, 1 );
+        for ( int threads : new int[] { 2, 4 } )
+            assertTrue( Arrays.equals( sequential, convert( file, threads ) ) );
+    }
+
+    /**
+     * Of two ways passing straight through the same switch node, the first one at the node carries the switch,
+     * and the other one is reported
+     */
+    public void testTwoWaysThroughSwitch() throws Exception
+    {
+        File file = File.createTempFile( "two-through", ".osm" );
+        file.deleteOnExit();
+        try ( PrintWriter out = new PrintWriter( file, "UTF-8" ) ) {
+            out.println( "<osm version=\"0.6\">" );
+            out.println( "  <node id=\"1\" lat=\"52.0\" lon=\"13.0\"/>" );
+            out.println( "  <node id=\"2\" lat=\"52.0\" lon=\"13.001\"><tag k=\"railway\" v=\"switch\"/></node>" );
+            out.println( "  <node id=\"3\" lat=\"52.0\" lon=\"13.002\"/>" );
+            out.println( "  <node id=\"4\" lat=\"51.999\" lon=\"13.001\"/>" );
+            out.println( "  <node id=\"5\" lat=\"52.001\" lon=\"13.001\"/>" );
+            out.println( "  <way id=\"30\"><nd ref=\"1\"/><nd ref=\"2\"/><nd ref=\"3\"/><tag k=\"railway\" v=\"rail\"/></way>" );
+            out.println( "  <way id=\"31\"><nd ref=\"4\"/><nd ref=\"2\"/><nd ref=\"5\"/><tag k=\"railway\" v=\"rail\"/></way>" );
+            out.println( "</osm>" );
+        }
+        OsmExtract osm = OsmExtract.fromFile( file );
+        osm.computeGeometry( GeodesicMethod.GEODESIC );
+        for ( int threads : new int[] { 1, 4 } ) {
+            Conversion conversion;
+            try ( Workers workers = new Workers( threads ) ) {
+                conversion = new Conversion( new RunReport(), workers );
+                conversion.convert( osm );
+            }
+            assertEquals( 1, conversion.diagnostics().size() );
+            Linker.Diagnostic d = conversion.diagnostics().get( 0 );
+            assertEquals( "w_31", d.from );
+            assertEquals( "switch_2", d.to );
+        }
+    }
+
+}
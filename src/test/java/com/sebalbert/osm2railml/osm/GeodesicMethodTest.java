@@ -0,0 +1,91 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package com.sebalbert.osm2railml.osm;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.Random;
+
+/**
+ * Unit test for the error bounds of the approximate geodesic methods
+ */
+public class GeodesicMethodTest
+    extends TestCase
+{
+    public GeodesicMethodTest(String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( GeodesicMethodTest.class );
+    }
+
+    // maximum errors (distance relative to segment length, azimuth in degrees) over random segments up to 1 km
+    private static double[] maxError( GeodesicMethod method )
+    {
+        Random random = new Random( 42 );
+        double[] approx = new double[3], exact = new double[3], max = new double[2];
+        for ( int i = 0; i < 100000; ++i ) {
+            double lat1 = random.nextDouble() * 140.0 - 70.0, lon1 = random.nextDouble() * 360.0 - 180.0;
+            double d = random.nextDouble() * 1000.0, azi = random.nextDouble() * 360.0;
+            double lat2 = lat1 + d * Math.cos( Math.toRadians( azi ) ) / 111000.0;
+            double lon2 = lon1 + d * Math.sin( Math.toRadians( azi ) ) / 111000.0 / Math.cos( Math.toRadians( lat1 ) );
+            method.inverse( lat1, lon1, lat2, lon2, approx );
+            GeodesicMethod.GEODESIC.inverse( lat1, lon1, lat2, lon2, exact );
+            if ( exact[GeodesicMethod.DISTANCE] < 1.0 ) continue;
+            max[0] = Math.max( max[0], Math.abs( approx[GeodesicMethod.DISTANCE] - exact[GeodesicMethod.DISTANCE] )
+                    / exact[GeodesicMethod.DISTANCE] );
+            for ( int a = GeodesicMethod.AZIMUTH1; a <= GeodesicMethod.AZIMUTH2; ++a ) {
+                double diff = Math.abs( approx[a] - exact[a] ) % 360.0;
+                max[1] = Math.max( max[1], Math.min( diff, 360.0 - diff ) );
+            }
+        }
+        return max;
+    }
+
+    public void testEllipsoidalPlane()
+    {
+        double[] max = maxError( GeodesicMethod.ELLIPSOIDAL_PLANE );
+        assertTrue( max[0] < 2e-8 );
+        assertTrue( max[1] < 1e-6 );
+    }
+
+    public void testSpherical()
+    {
+        double[] max = maxError( GeodesicMethod.SPHERICAL );
+        assertTrue( max[0] < 6e-3 );
+        assertTrue( max[1] < 0.2 );
+    }
+
+    /**
+     * The error over an extract can be measured as well
+     */
+    public void testMaxErrorOnExtract() throws Exception
+    {
+        OsmExtract osm = OsmExtract.fromFile( OsmExtractTest.fixture( "simple-switch.osm" ) );
+        double[] max = GeodesicMethod.ELLIPSOIDAL_PLANE.maxError( osm.ways );
+        assertTrue( max[0] < 1e-3 );
+        assertEquals( 0.0, GeodesicMethod.GEODESIC.maxError( osm.ways )[0] );
+    }
+}
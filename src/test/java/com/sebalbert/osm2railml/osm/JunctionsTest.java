@@ -0,0 +1,86 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package com.sebalbert.osm2railml.osm;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the analysis of how ways meet at nodes
+ */
+public class JunctionsTest
+    extends TestCase
+{
+    public JunctionsTest(String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( JunctionsTest.class );
+    }
+
+    private static Way.NodeRef ref( OsmExtract osm, long way, long node )
+    {
+        for ( Way w : osm.ways )
+            if ( w.id == way )
+                for ( Way.NodeRef r : w.nodeRefs() )
+                    if ( r.node().id() == node ) return r;
+        throw new AssertionError( "no reference from way " + way + " to node " + node );
+    }
+
+    /**
+     * Each node of the fixture is classified, and partners and switch branches are found
+     */
+    public void testClassification() throws Exception
+    {
+        OsmExtract osm = OsmExtract.fromFile( OsmExtractTest.fixture( "simple-switch.osm" ) );
+        osm.computeGeometry( GeodesicMethod.GEODESIC );
+        Junctions junctions = osm.junctions();
+
+        assertEquals( Junctions.Kind.NONE, junctions.kind( ref( osm, 10, 1 ) ) );
+
+        // way 11 branches off the interior of way 10 towards the north-east
+        Way.NodeRef through = ref( osm, 10, 2 ), branch = ref( osm, 11, 2 );
+        assertEquals( Junctions.Kind.SWITCH, junctions.kind( branch ) );
+        assertEquals( through, junctions.switchOwner( branch ) );
+        assertTrue( junctions.carriesSwitch( through ) );
+        assertFalse( junctions.carriesSwitch( branch ) );
+        assertNull( junctions.partner( branch ) );
+        assertEquals( Junctions.OUTGOING | Junctions.LEFT, junctions.orientation( branch ) );
+        assertEquals( 0, junctions.orientation( through ) );
+
+        // ways 10 and 12 are joined end to end, and the join is modelled at the smaller way ID
+        Way.NodeRef end = ref( osm, 10, 3 ), begin = ref( osm, 12, 3 );
+        assertEquals( Junctions.Kind.JOIN, junctions.kind( end ) );
+        assertEquals( begin, junctions.partner( end ) );
+        assertEquals( end, junctions.partner( begin ) );
+        assertTrue( junctions.isCanonical( end ) );
+        assertFalse( junctions.isCanonical( begin ) );
+        assertNull( junctions.switchOwner( end ) );
+
+        Way.NodeRef crossing = ref( osm, 13, 8 );
+        assertEquals( Junctions.Kind.CROSSING, junctions.kind( crossing ) );
+        assertTrue( junctions.isCanonical( crossing ) );
+        assertNull( junctions.partner( crossing ) );
+    }
+
+}
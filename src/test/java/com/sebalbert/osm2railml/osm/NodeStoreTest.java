@@ -0,0 +1,89 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package com.sebalbert.osm2railml.osm;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.HashMap;
+
+/**
+ * Unit test for the primitive-array node store
+ */
+public class NodeStoreTest
+    extends TestCase
+{
+    public NodeStoreTest(String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( NodeStoreTest.class );
+    }
+
+    private static NodeStore.Builder unsorted() throws Exception
+    {
+        NodeStore.Builder b = new NodeStore.Builder();
+        b.add( 30, 52.5, 13.25, null );
+        Tags.Builder tags = new Tags.Builder( null, new HashMap<String, String>() );
+        tags.add( "railway", "buffer_stop" );
+        b.add( 10, -33.8688197, 151.2092955, tags.build() );
+        b.add( 20, 0.0000001, -179.9999999, null );
+        b.add( 20, 0.0000001, -179.9999999, null );
+        return b;
+    }
+
+    private static void assertStore( NodeStore s )
+    {
+        assertEquals( 3, s.size() );
+        assertEquals( 10, s.id( 0 ) );
+        assertEquals( 20, s.id( 1 ) );
+        assertEquals( 30, s.id( 2 ) );
+        assertEquals( -33.8688197, s.lat( 0 ) );
+        assertEquals( 151.2092955, s.lon( 0 ) );
+        assertEquals( 0.0000001, s.lat( 1 ) );
+        assertEquals( -179.9999999, s.lon( 1 ) );
+        assertEquals( 1, s.indexOf( 20 ) );
+        assertTrue( s.indexOf( 25 ) < 0 );
+        assertEquals( "buffer_stop", s.get( 0 ).getTag( "railway" ) );
+        assertNull( s.get( 2 ).getTag( "railway" ) );
+    }
+
+    /**
+     * Nodes are sorted by ID, duplicates dropped, and coordinates kept at OSM precision
+     */
+    public void testHeap() throws Exception
+    {
+        assertStore( unsorted().build( false ) );
+    }
+
+    /**
+     * The memory-mapped variant holds the same data
+     */
+    public void testMapped() throws Exception
+    {
+        NodeStore s = unsorted().build( true );
+        assertTrue( s instanceof NodeStore.Mapped );
+        assertStore( s );
+    }
+}
@@ -0,0 +1,407 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+
+package com.sebalbert.osm2railml.osm;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.File;
+import java.util.Collections;
+
+/**
+ * Unit test for reading OSM data
+ */
+public class OsmExtractTest
+    extends TestCase
+{
+    public OsmExtractTest(String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( OsmExtractTest.class );
+    }
+
+    static File fixture(String name) throws Exception
+    {
+        return new File( OsmExtractTest.class.getResource( "/fixtures/" + name ).toURI() );
+    }
+
+    /**
+     * Only railway ways and the nodes referenced by them are kept
+     */
+    public void testOnlyRailwayWaysAndTheirNodes() throws Exception
+    {
+        OsmExtract osm = OsmExtract.fromFile( fixture( "simple-switch.osm" ) );
+        assertEquals( 4, osm.ways.size() );
+        assertEquals( 8, osm.nodes.size() );
+        for ( Way w : osm.ways )
+            assertNotNull( w.getTag( "railway" ) );
+        for ( Node n : osm.nodes )
+            assertFalse( n.wayRefs().isEmpty() );
+    }
+
+    /**
+     * Node references are resolved and linked along each way
+     */
+    public void testLinking() throws Exception
+    {
+        OsmExtract osm = OsmExtract.fromFile( fixture( "simple-switch.osm" ) );
+        Way w = osm.ways.get( 0 );
+        assertEquals( 10, w.id );
+        assertEquals( "A", w.getTag( "ref" ) );
+        assertEquals( 3, w.nodeCount() );
+        assertEquals( 2, w.nodeRef( 1 ).node().id() );
+        assertEquals( 2, w.nodeId( 1 ) );
+        assertEquals( w.nodeRef( 0 ), w.nodeRef( 1 ).prev() );
+        assertEquals( w.nodeRef( 2 ), w.nodeRef( 1 ).next() );
+        assertNull( w.first().prev() );
+        assertNull( w.last().next() );
+        assertEquals( Way.NodeRef.FIRST, w.first().topologicalPosition() );
+        assertEquals( Way.NodeRef.INTERIOR, w.nodeRef( 1 ).topologicalPosition() );
+        assertEquals( Way.NodeRef.LAST, w.last().topologicalPosition() );
+        assertEquals( 2, w.nodeRef( 1 ).node().wayRefs().size() );
+        assertTrue( w.nodeRef( 1 ).node().wayRefs().contains( w.nodeRef( 1 ) ) );
+        assertEquals( "switch", w.nodeRef( 1 ).node().getTag( "railway" ) );
+    }
+
+    /**
+     * PBF input (dense nodes, zlib blobs) yields the same extract as the equivalent XML
+     */
+    public void testPbfSameAsXml() throws Exception
+    {
+        OsmExtract xml = OsmExtract.fromFile( fixture( "simple-switch.osm" ) );
+        OsmExtract pbf = OsmExtract.fromFile( fixture( "simple-switch.osm.pbf" ) );
+        assertEquals( xml.ways.size(), pbf.ways.size() );
+        assertEquals( xml.nodes.size(), pbf.nodes.size() );
+        for ( int i = 0; i < xml.nodes.size(); ++i ) {
+            Node x = xml.nodes.get( i ), p = pbf.nodes.get( i );
+            assertEquals( x.id(), p.id() );
+            assertEquals( x.lat(), p.lat() );
+            assertEquals( x.lon(), p.lon() );
+            assertEquals( x.getTag( "railway" ), p.getTag( "railway" ) );
+        }
+        for ( int i = 0; i < xml.ways.size(); ++i ) {
+            Way x = xml.ways.get( i ), p = pbf.ways.get( i );
+            assertEquals( x.id, p.id );
+            assertEquals( x.tags.size(), p.tags.size() );
+            assertEquals( x.nodeCount(), p.nodeCount() );
+            for ( int j = 0; j < x.nodeCount(); ++j )
+                assertEquals( x.nodeRef( j ).node().id(), p.nodeRef( j ).node().id() );
+        }
+    }
+
+    /**
+     * With a tiny memory budget for joining, node references and nodes are sorted in many temporary runs
+     * (merged in between, too), but the extract is the same as when joining in memory
+     */
+    public void testExternalJoin() throws Exception
+    {
+        File synthetic = SyntheticOsm.write( 300, 0.2 );
+        for ( File file : new File[] { fixture( "simple-switch.osm" ), fixture( "simple-switch.osm.pbf" ), synthetic } ) {
+            OsmExtract.Options options = new OsmExtract.Options();
+            options.joinMemory = 160;
+            OsmExtract external = OsmExtract.fromFile( file, options );
+            assertTrue( external.nodes instanceof NodeStore.Mapped );
+            assertEquals( file.getName(), bytes( OsmExtract.fromFile( file ) ), bytes( external ) );
+        }
+
+        ExternalSort sort = new ExternalSort( 2, 160 );
+        for ( long i = 0; i < 2000; ++i )
+            sort.add( ( i * 7919 ) % 1000, i );
+        assertTrue( sort.runs() < ExternalSort.MERGE_WAYS );
+        try ( ExternalSort.Cursor c = sort.sorted() ) {
+            for ( long key = 0; key < 1000; ++key ) {
+                assertTrue( c.next() );
+                assertEquals( key, c.get( 0 ) );
+            }
+            assertFalse( c.next() );
+        }
+        sort.close();
+
+        // unless distinct, all records are kept (e.g. the references of many ways to the same node)
+        ExternalSort all = new ExternalSort( 2, 160, false );
+        for ( long i = 0; i < 2000; ++i )
+            all.add( ( i * 7919 ) % 1000, i );
+        try ( ExternalSort.Cursor c = all.sorted() ) {
+            long last = -1;
+            for ( int i = 0; i < 2000; ++i ) {
+                assertTrue( c.next() );
+                assertTrue( c.get( 0 ) >= last );
+                assertEquals( c.get( 0 ), ( c.get( 1 ) * 7919 ) % 1000 );
+                last = c.get( 0 );
+            }
+            assertFalse( c.next() );
+        }
+        all.close();
+    }
+
+    private static String bytes( OsmExtract osm ) throws Exception
+    {
+        java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+        osm.write( new java.io.DataOutputStream( out ) );
+        return java.util.Base64.getEncoder().encodeToString( out.toByteArray() );
+    }
+
+    /**
+     * Tags not in the whitelist are dropped, after the way filter has seen them
+     */
+    public void testTagWhitelist() throws Exception
+    {
+        OsmExtract.Options options = new OsmExtract.Options();
+        options.tagKeys = Collections.singleton( "ref" );
+        OsmExtract osm = OsmExtract.fromFile( fixture( "simple-switch.osm" ), options );
+        assertEquals( 4, osm.ways.size() );
+        Way w = osm.ways.get( 0 );
+        assertEquals( 1, w.tags().size() );
+        assertEquals( "A", w.getTag( TagKeys.id( "ref" ) ) );
+        assertNull( w.getTag( "railway" ) );
+        for ( Node n : osm.nodes )
+            assertEquals( 0, n.tags().size() );
+    }
+
+    /**
+     * Ways rejected by a WayFilter are dropped along with their nodes, in both formats
+     */
+    public void testWayFilter() throws Exception
+    {
+        for ( String file : new String[] { "simple-switch.osm", "simple-switch.osm.pbf" } ) {
+            OsmExtract.Options options = new OsmExtract.Options();
+            options.wayFilter = new WayFilter( "rail", "tram" ).exclude( "ref", "A" );
+            OsmExtract osm = OsmExtract.fromFile( fixture( file ), options );
+            assertEquals( 3, osm.ways.size() );
+            assertEquals( 11, osm.ways.get( 0 ).id );
+            assertEquals( 7, osm.nodes.size() );
+            assertTrue( osm.nodes.indexOf( 1L ) < 0 );
+            options.wayFilter = new WayFilter( "tram" );
+            assertEquals( 1, OsmExtract.fromFile( fixture( file ), options ).ways.size() );
+        }
+    }
+
+    /**
+     * Only ways touching the region are kept, with all their nodes
+     */
+    public void testRegion() throws Exception
+    {
+        OsmExtract.Options options = new OsmExtract.Options();
+        options.region = new Region.BoundingBox( 51.9, 12.9, 52.0001, 13.0015 );
+        OsmExtract osm = OsmExtract.fromFile( fixture( "simple-switch.osm" ), options );
+        assertEquals( 2, osm.ways.size() );
+        assertEquals( 4, osm.nodes.size() );
+        assertEquals( 52.0002, osm.nodes.get( osm.nodes.indexOf( 4L ) ).lat(), 1e-9 );
+        assertEquals( 2, osm.nodes.get( osm.nodes.indexOf( 2L ) ).wayRefs().size() );
+
+        File poly = File.createTempFile( "region", ".poly" );
+        poly.deleteOnExit();
+        try ( java.io.PrintWriter out = new java.io.PrintWriter( poly, "UTF-8" ) ) {
+            out.println( "region" );
+            out.println( "outer" );
+            out.println( "   13.0025 51.99" );
+            out.println( "   13.0035 51.99" );
+            out.println( "   13.0035 52.01" );
+            out.println( "   13.0025 52.01" );
+            out.println( "END" );
+            out.println( "!hole" );
+            out.println( "   13.0029 51.9995" );
+            out.println( "   13.0031 51.9995" );
+            out.println( "   13.0031 52.0001" );
+            out.println( "   13.0029 52.0001" );
+            out.println( "END" );
+            out.println( "END" );
+        }
+        options.region = Region.Polygon.read( poly );
+        assertTrue( options.region.contains( 52.0, 13.0026 ) );
+        assertFalse( options.region.contains( 52.0, 13.003 ) );
+        assertFalse( options.region.contains( 52.0, 13.004 ) );
+        osm = OsmExtract.fromFile( fixture( "simple-switch.osm" ), options );
+        // only nodes 4 (way 11), 6 and 7 (way 13) lie inside, node 8 (ways 12 and 13) in the hole
+        assertEquals( 2, osm.ways.size() );
+        assertEquals( 11, osm.ways.get( 0 ).id );
+        assertEquals( 13, osm.ways.get( 1 ).id );
+    }
+    /**
+     * Rail relations are kept with their members, and can be looked up by their members
+     */
+    public void testRelations() throws Exception
+    {
+        for ( String file : new String[] { "simple-switch.osm", "simple-switch.osm.pbf" } ) {
+            OsmExtract osm = OsmExtract.fromFile( fixture( file ) );
+            // not the bus route
+            assertEquals( file, 3, osm.relations.size() );
+            assertTrue( osm.relations.indexOf( 31 ) < 0 );
+            Relation route = osm.relations.get( osm.relations.indexOf( 30 ) );
+            assertEquals( "RB 1", route.getTag( "ref" ) );
+            assertEquals( 4, route.members().size() );
+            Relation.Member stop = route.members().get( 2 );
+            assertEquals( Relation.MemberType.NODE, stop.type );
+            assertEquals( 1, stop.ref );
+            assertEquals( "stop", stop.role );
+            assertEquals( "", route.members().get( 0 ).role );
+
+            // way 10 is a member of the route (twice) and of the station area
+            assertEquals( 2, osm.relations.ofWay( 10 ).size() );
+            assertEquals( 30, osm.relations.ofWay( 10 ).get( 0 ).id() );
+            assertEquals( 33, osm.relations.ofWay( 10 ).get( 1 ).id() );
+            assertEquals( route, osm.relations.ofNode( 1 ).get( 0 ) );
+            assertEquals( 32, osm.relations.of( Relation.MemberType.RELATION, 30 ).get( 0 ).id() );
+            assertTrue( osm.relations.ofWay( 13 ).isEmpty() );
+            assertTrue( osm.relations.ofWay( 11 ).isEmpty() );
+
+            java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+            osm.write( new java.io.DataOutputStream( bytes ) );
+            OsmExtract read = OsmExtract.read( new java.io.DataInputStream(
+                    new java.io.ByteArrayInputStream( bytes.toByteArray() ) ), false );
+            assertEquals( 3, read.relations.size() );
+            assertEquals( "stop", read.relations.ofNode( 1 ).get( 0 ).members().get( 2 ).role );
+        }
+
+        OsmExtract.Options options = new OsmExtract.Options();
+        options.tagKeys = Collections.singleton( "ref" );
+        OsmExtract osm = OsmExtract.fromFile( fixture( "simple-switch.osm" ), options );
+        assertEquals( 1, osm.relations.get( 0 ).tags().size() );
+        options.relationFilter = null;
+        assertEquals( 0, OsmExtract.fromFile( fixture( "simple-switch.osm.pbf" ), options ).relations.size() );
+    }
+
+    /**
+     * Only the tag values of the ways, relations and nodes kept are deduplicated, so the values of the others
+     * are not held on to
+     */
+    public void testTagValuesOfRejectedWays() throws Exception
+    {
+        for ( String name : new String[] { "simple-switch.osm", "simple-switch.osm.pbf" } ) {
+            OsmExtract.Options options = new OsmExtract.Options();
+            options.relationFilter = null;
+            options.wayFilter = new WayFilter( "subway" );
+            OsmReader reader = OsmExtract.reader( fixture( name ), options );
+            assertEquals( 0, reader.read().ways.size() );
+            assertEquals( name, 0, reader.tagValues() );
+
+            // "tram" and the tag of node 8, "railway_crossing"
+            options.wayFilter = new WayFilter( "tram" );
+            reader = OsmExtract.reader( fixture( name ), options );
+            assertEquals( 1, reader.read().ways.size() );
+            assertEquals( name, 2, reader.tagValues() );
+        }
+    }
+
+    /**
+     * A cached extract equals the parsed one, is shared by runs with different filters and is rebuilt
+     * when the input changes
+     */
+    public void testCache() throws Exception
+    {
+        File source = File.createTempFile( "simple-switch", ".osm" );
+        source.deleteOnExit();
+        java.nio.file.Files.copy( fixture( "simple-switch.osm" ).toPath(), source.toPath(),
+                java.nio.file.StandardCopyOption.REPLACE_EXISTING );
+        File directory = cacheDirectory();
+        File cache = ExtractCache.file( directory, source );
+        cache.deleteOnExit();
+        OsmExtract.Options options = new OsmExtract.Options();
+        options.cache = directory;
+
+        OsmExtract parsed = OsmExtract.fromFile( source );
+        for ( int run = 0; run < 2; ++run ) {
+            OsmExtract osm = OsmExtract.fromFile( source, options );
+            assertTrue( cache.isFile() );
+            assertEquals( parsed.nodes.size(), osm.nodes.size() );
+            for ( int i = 0; i < osm.nodes.size(); ++i ) {
+                assertEquals( parsed.nodes.id( i ), osm.nodes.id( i ) );
+                assertEquals( parsed.nodes.lat( i ), osm.nodes.lat( i ) );
+                assertEquals( parsed.nodes.get( i ).getTag( "railway" ), osm.nodes.get( i ).getTag( "railway" ) );
+                assertEquals( parsed.nodes.wayRefs( i ).size(), osm.nodes.wayRefs( i ).size() );
+            }
+            assertEquals( parsed.ways.size(), osm.ways.size() );
+            for ( int i = 0; i < osm.ways.size(); ++i ) {
+                assertEquals( parsed.ways.get( i ).id, osm.ways.get( i ).id );
+                assertEquals( parsed.ways.get( i ).getTag( "ref" ), osm.ways.get( i ).getTag( "ref" ) );
+                assertEquals( parsed.ways.get( i ).nodeCount(), osm.ways.get( i ).nodeCount() );
+                assertSame( osm.ways.get( i ), osm.ways.get( i ).last().way );
+            }
+            assertEquals( parsed.relations.size(), osm.relations.size() );
+            for ( int i = 0; i < osm.relations.size(); ++i ) {
+                assertEquals( parsed.relations.id( i ), osm.relations.id( i ) );
+                assertEquals( parsed.relations.get( i ).members().size(), osm.relations.get( i ).members().size() );
+            }
+        }
+        long written = cache.lastModified();
+
+        options.wayFilter = new WayFilter( "tram" );
+        OsmExtract trams = OsmExtract.fromFile( source, options );
+        assertEquals( 1, trams.ways.size() );
+        assertEquals( 13, trams.ways.get( 0 ).id );
+        assertEquals( 3, trams.nodes.size() );
+        assertEquals( 1, trams.nodes.wayRefs( trams.nodes.indexOf( 8L ) ).size() );
+
+        // a changed input is parsed again (the cache only records its size and modification time)
+        java.nio.file.Files.write( source.toPath(), new String( java.nio.file.Files.readAllBytes( source.toPath() ),
+                "UTF-8" ).replace( "v=\"tram\"", "v=\"light_rail\"" ).getBytes( "UTF-8" ) );
+        assertTrue( source.setLastModified( written + 2000 ) );
+        assertEquals( 0, OsmExtract.fromFile( source, options ).ways.size() );
+        options.wayFilter = new WayFilter( "light_rail" );
+        assertEquals( 1, OsmExtract.fromFile( source, options ).ways.size() );
+    }
+
+    /**
+     * Inputs sharing a cache directory each get their own extract, even with the same size and modification time
+     */
+    public void testCacheDirectory() throws Exception
+    {
+        String xml = new String( java.nio.file.Files.readAllBytes( fixture( "simple-switch.osm" ).toPath() ), "UTF-8" );
+        File tram = File.createTempFile( "simple-switch", ".osm" ), rail = File.createTempFile( "simple-switch", ".osm" );
+        tram.deleteOnExit();
+        rail.deleteOnExit();
+        java.nio.file.Files.write( tram.toPath(), xml.getBytes( "UTF-8" ) );
+        // same length as the original
+        java.nio.file.Files.write( rail.toPath(), xml.replace( "v=\"tram\"", "v=\"rail\"" ).getBytes( "UTF-8" ) );
+        assertEquals( tram.length(), rail.length() );
+        assertTrue( rail.setLastModified( tram.lastModified() ) );
+        OsmExtract.Options options = new OsmExtract.Options();
+        options.cache = cacheDirectory();
+        ExtractCache.file( options.cache, tram ).deleteOnExit();
+        ExtractCache.file( options.cache, rail ).deleteOnExit();
+        options.wayFilter = new WayFilter( "tram" );
+
+        for ( int run = 0; run < 2; ++run ) {
+            assertEquals( 1, OsmExtract.fromFile( tram, options ).ways.size() );
+            assertEquals( 0, OsmExtract.fromFile( rail, options ).ways.size() );
+        }
+        assertTrue( ExtractCache.file( options.cache, tram ).isFile() );
+        assertTrue( ExtractCache.file( options.cache, rail ).isFile() );
+        assertFalse( ExtractCache.file( options.cache, tram ).equals( ExtractCache.file( options.cache, rail ) ) );
+
+        // a cache file written for another input (e.g. with the same hash) is not used but rebuilt
+        java.nio.file.Files.copy( ExtractCache.file( options.cache, rail ).toPath(),
+                ExtractCache.file( options.cache, tram ).toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING );
+        assertEquals( 1, OsmExtract.fromFile( tram, options ).ways.size() );
+    }
+
+    private static File cacheDirectory() throws Exception
+    {
+        File directory = java.nio.file.Files.createTempDirectory( "osm2railml-cache" ).toFile();
+        directory.deleteOnExit();
+        return directory;
+    }
+
+}
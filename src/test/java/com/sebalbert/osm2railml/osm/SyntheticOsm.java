@@ -0,0 +1,110 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016-2017  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package com.sebalbert.osm2railml.osm;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Generator of synthetic OSM XML files for tests and benchmarks: parallel trunk lines, each with branches leaving
+ * at switches and ending at buffer stops (some of them sidings), and as many highways (to be filtered out)
+ * as trunk lines.
+ * The output only depends on the parameters.
+ */
+public final class SyntheticOsm {
+
+    // nodes per trunk line and per branch, and distance between nodes in degrees
+    private static final int TRUNK_NODES = 200, BRANCH_NODES = 5;
+    private static final double STEP = 0.0005;
+
+    private SyntheticOsm() { }
+
+    /**
+     * @param railwayWays - (approximate) number of railway ways to generate
+     * @param switchDensity - probability of an interior trunk node being a switch to a branch
+     * @return - a temporary file (deleted on exit)
+     */
+    public static File write(int railwayWays, double switchDensity) throws IOException {
+        File file = File.createTempFile("synthetic", ".osm");
+        file.deleteOnExit();
+        Random random = new Random(railwayWays * 31L + Double.doubleToLongBits(switchDensity));
+        StringBuilder nodes = new StringBuilder(), ways = new StringBuilder();
+        long nodeId = 0, wayId = 0;
+        int railway = 0;
+        for (int line = 0; railway < railwayWays; ++line) {
+            double lat = 50.0 + line * 0.01;
+            long first = nodeId + 1;
+            boolean[] switches = new boolean[TRUNK_NODES];
+            ways.append("  <way id=\"").append(++wayId).append("\">");
+            for (int i = 0; i < TRUNK_NODES; ++i) {
+                switches[i] = i > 0 && i < TRUNK_NODES - 1 && random.nextDouble() < switchDensity;
+                node(nodes, ++nodeId, lat, 10.0 + i * STEP, i == 0 ? "buffer_stop" : switches[i] ? "switch" : null);
+                ways.append("<nd ref=\"").append(nodeId).append("\"/>");
+            }
+            ways.append("<tag k=\"railway\" v=\"rail\"/><tag k=\"ref\" v=\"L").append(line)
+                    .append("\"/></way>\n");
+            ++railway;
+            // branches at the switches just created, diverging to the north-east
+            for (int s = 1; s < TRUNK_NODES - 1 && railway < railwayWays; ++s) {
+                if (!switches[s]) continue;
+                double lon = 10.0 + s * STEP;
+                ways.append("  <way id=\"").append(++wayId).append("\"><nd ref=\"").append(first + s)
+                        .append("\"/>");
+                for (int i = 1; i < BRANCH_NODES; ++i) {
+                    node(nodes, ++nodeId, lat + i * STEP * 0.3, lon + i * STEP,
+                            i == BRANCH_NODES - 1 ? "buffer_stop" : null);
+                    ways.append("<nd ref=\"").append(nodeId).append("\"/>");
+                }
+                ways.append("<tag k=\"railway\" v=\"rail\"/>");
+                if (random.nextInt(4) == 0) ways.append("<tag k=\"service\" v=\"siding\"/>");
+                ways.append("<tag k=\"railway:maxspeed:diverging\" v=\"40\"/></way>\n");
+                ++railway;
+            }
+            // a highway alongside, which is not to be converted
+            ways.append("  <way id=\"").append(++wayId).append("\">");
+            for (int i = 0; i < 10; ++i) {
+                node(nodes, ++nodeId, lat + 0.005, 10.0 + i * STEP * 10, null);
+                ways.append("<nd ref=\"").append(nodeId).append("\"/>");
+            }
+            ways.append("<tag k=\"highway\" v=\"primary\"/><tag k=\"name\" v=\"Road ").append(line)
+                    .append("\"/></way>\n");
+        }
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),
+                StandardCharsets.UTF_8))) {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<osm version=\"0.6\" generator=\"synthetic\">\n");
+            out.append(nodes).append(ways);
+            out.write("</osm>\n");
+        }
+        return file;
+    }
+
+    private static void node(StringBuilder nodes, long id, double lat, double lon, String railway) {
+        nodes.append(String.format(Locale.ROOT, "  <node id=\"%d\" lat=\"%.7f\" lon=\"%.7f\"", id, lat, lon));
+        if (railway == null) nodes.append("/>\n");
+        else nodes.append("><tag k=\"railway\" v=\"").append(railway).append("\"/></node>\n");
+    }
+
+}
@@ -0,0 +1,153 @@
+/**
+ osm2railML - creating railML infrastructure from OpenStreetMap data
+ Copyright (C) 2016-2017  Sebastian Albert
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ */
+package com.sebalbert.osm2railml.osm;
+
+import com.sebalbert.osm2railml.Workers;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.Arrays;
+
+/**
+ * Unit test for splitting ways at junctions and merging chains of ways
+ */
+public class TrackGraphTest
+    extends TestCase
+{
+    public TrackGraphTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( TrackGraphTest.class );
+    }
+
+    private static OsmExtract normalize( String fixture ) throws Exception
+    {
+        OsmExtract osm = OsmExtract.fromFile( OsmExtractTest.fixture( fixture ) );
+        osm.computeGeometry( GeodesicMethod.GEODESIC );
+        OsmExtract normalized = TrackGraph.normalize( osm );
+        normalized.computeGeometry( GeodesicMethod.GEODESIC );
+        return normalized;
+    }
+
+    /**
+     * Ways are split at the switch in between, joined ways are merged (in either direction) if their tags match,
+     * and a ring of ways becomes one closed way
+     */
+    public void testSplitAndMerge() throws Exception
+    {
+        OsmExtract osm = normalize( "chain.osm" );
+        assertEquals( 5, osm.ways.size() );
+        assertTrue( Arrays.equals( new long[] { 1, 2, 3, 4 }, osm.ways.get( 0 ).nodeIds() ) );
+        assertTrue( Arrays.equals( new long[] { 4, 5, 6 }, osm.ways.get( 1 ).nodeIds() ) );
+        assertTrue( Arrays.equals( new long[] { 4, 7 }, osm.ways.get( 2 ).nodeIds() ) );
+        assertTrue( Arrays.equals( new long[] { 6, 8, 9 }, osm.ways.get( 3 ).nodeIds() ) );
+        assertEquals( "B", osm.ways.get( 3 ).getTag( "ref" ) );
+        assertTrue( Arrays.equals( new long[] { 20, 21, 22, 23, 20 }, osm.ways.get( 4 ).nodeIds() ) );
+        // named after the OSM way (and part of it) each starts in
+        long[] ids = { 40, 42, 43, 44, 50 };
+        int[] parts = { 0, 1, 0, 0, 0 };
+        for ( int i = 0; i < osm.ways.size(); ++i )
+        {
+            assertEquals( ids[i], osm.ways.get( i ).id );
+            assertEquals( parts[i], osm.ways.get( i ).part );
+        }
+        // the switch is now where three tracks meet
+        Junctions junctions = osm.junctions();
+        assertEquals( Junctions.Kind.SWITCH, junctions.kind( osm.ways.get( 0 ).last() ) );
+        assertEquals( 3, osm.ways.get( 0 ).last().node().wayRefs().size() );
+        assertEquals( osm.ways.get( 1 ).first(), junctions.partner( osm.ways.get( 0 ).last() ) );
+    }
+
+    /**
+     * A merged way runs in the direction of its first part (in the order of the ways), even where that part
+     * is entered at its last node, and is named after the part it starts with
+     */
+    public void testMergeDirection() throws Exception
+    {
+        OsmExtract osm = normalize( "reversed-chain.osm" );
+        assertEquals( 1, osm.ways.size() );
+        assertTrue( Arrays.equals( new long[] { 33, 32, 31, 30 }, osm.ways.get( 0 ).nodeIds() ) );
+        assertEquals( 61, osm.ways.get( 0 ).id );
+        assertEquals( 0, osm.ways.get( 0 ).part );
+    }
+
+    /**
+     * The result is the same on any number of threads, and relations lose their way members,
+     * which refer to the ways before normalising
+     */
+    public void testWorkersAndRelations() throws Exception
+    {
+        OsmExtract osm = OsmExtract.fromFile( OsmExtractTest.fixture( "simple-switch.osm" ) );
+        osm.computeGeometry( GeodesicMethod.GEODESIC );
+        OsmExtract sequential = TrackGraph.normalize( osm ), parallel;
+        try ( Workers workers = new Workers( 4 ) )
+        {
+            parallel = TrackGraph.normalize( osm, workers );
+        }
+        assertEquals( sequential.ways.size(), parallel.ways.size() );
+        for ( int i = 0; i < sequential.ways.size(); ++i )
+        {
+            assertEquals( sequential.ways.get( i ).id, parallel.ways.get( i ).id );
+            assertEquals( sequential.ways.get( i ).part, parallel.ways.get( i ).part );
+            assertTrue( Arrays.equals( sequential.ways.get( i ).nodeIds(), parallel.ways.get( i ).nodeIds() ) );
+        }
+        assertEquals( osm.relations.size(), parallel.relations.size() );
+        assertFalse( osm.relations.ofWay( 10 ).isEmpty() );
+        assertTrue( parallel.relations.ofWay( 10 ).isEmpty() );
+        assertEquals( osm.relations.ofNode( 1 ).size(), parallel.relations.ofNode( 1 ).size() );
+    }
+
+    /**
+     * On all fixtures, no junction is left in the interior of a way, no plain join of ways with the same tags is left,
+     * and the track length is kept
+     */
+    public void testNormalForm() throws Exception
+    {
+        for ( String fixture : new String[] { "simple-switch.osm", "double-slip.osm", "diamond-crossing.osm",
+                "station-throat.osm", "loop.osm", "chain.osm", "reversed-chain.osm" } )
+        {
+            OsmExtract original = OsmExtract.fromFile( OsmExtractTest.fixture( fixture ) );
+            OsmExtract osm = normalize( fixture );
+            Junctions junctions = osm.junctions();
+            int segments = 0;
+            for ( Way w : original.ways )
+                segments += w.nodeCount() - 1;
+            for ( Way w : osm.ways )
+            {
+                segments -= w.nodeCount() - 1;
+                for ( int i = 1; i < w.nodeCount() - 1; ++i )
+                    assertEquals( fixture, Junctions.Kind.NONE, junctions.kind( w, i ) );
+            }
+            assertEquals( fixture, 0, segments );
+            for ( Node n : osm.nodes )
+            {
+                if ( n.wayRefs().size() != 2 ) continue;
+                Way.NodeRef a = n.wayRefs().get( 0 ), b = n.wayRefs().get( 1 );
+                if ( a.way != b.way && junctions.kind( a ) == Junctions.Kind.JOIN )
+                    assertFalse( fixture + " node " + n.id(), a.way.tags.equals( b.way.tags ) );
+            }
+        }
+    }
+
+}